@@ -0,0 +1,91 @@
+package com.michoelchaikin.hebrewbooks;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.michoelchaikin.hebrewbooks.cache.DiskCache;
+import com.michoelchaikin.hebrewbooks.cache.MetadataStore;
+import com.michoelchaikin.hebrewbooks.fixtures.Fixtures;
+import com.michoelchaikin.hebrewbooks.fixtures.SamplePages;
+
+/**
+ * HebrewBook.init() for a book whose page is in the cache. Cold, its metadata record is
+ * removed before each call, so the page is scanned; warm, the record saved by the first
+ * call is read instead.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class InitBenchmark {
+
+	private static final int BOOK_ID = 1;
+	private static final int PAGES = 500;
+
+	@State(Scope.Thread)
+	public static class Book {
+
+		File mDir;
+		CacheDirProvider mProvider;
+
+		@Setup
+		public void setUp() throws IOException {
+			Fixtures.silenceLogs();
+			mDir = Fixtures.newDirectory("init");
+			DiskCache cache = DiskCache.open(mDir);
+			String name = Integer.toString(BOOK_ID);
+			Fixtures.write(cache.file(name), SamplePages.bookPage(BOOK_ID, PAGES).getBytes("UTF-8"));
+			cache.put(name);
+			mProvider = new CacheDirProvider() {
+				public File getCacheDir() {
+					return mDir;
+				}
+			};
+		}
+
+		@TearDown
+		public void tearDown() {
+			Fixtures.delete(mDir);
+		}
+
+		HebrewBook init() throws IOException {
+			HebrewBook book = new HebrewBook(mProvider, BOOK_ID);
+			book.init();
+			return book;
+		}
+	}
+
+	@State(Scope.Thread)
+	public static class ColdBook extends Book {
+
+		@Setup(Level.Invocation)
+		public void forget() {
+			MetadataStore.open(mDir).remove(BOOK_ID);
+		}
+	}
+
+	@Benchmark
+	public HebrewBook cold(ColdBook book) throws IOException {
+		return book.init();
+	}
+
+	@Benchmark
+	public HebrewBook warm(Book book) throws IOException {
+		return book.init();
+	}
+}
@@ -0,0 +1,107 @@
+package com.michoelchaikin.hebrewbooks;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The page state table under contention, against the synchronized list of statuses it
+ * replaced. In each group, scanning threads walk the prefetch window around the reader's
+ * page as the scheduler and waiters do, while claiming threads take pending pages and hand
+ * them back, as the download threads do.
+ */
+@State(Scope.Group)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PageStateTableBenchmark {
+
+	private static final int PAGES = 1500;
+	private static final int REQUEST = 700;
+	private static final int WINDOW = 16;
+
+	private PageStateTable mTable;
+	private List<PageStatus> mList;
+	private final AtomicInteger mNext = new AtomicInteger();
+
+	@Setup
+	public void setUp() {
+		mTable = new PageStateTable(PAGES + 1);
+		mList = Collections.synchronizedList(new ArrayList<PageStatus>(Collections.nCopies(PAGES + 1, PageStatus.PENDING)));
+
+		// Every other page in the window is rendered, so scans don't stop at the first page
+		for(int page = REQUEST - WINDOW; page <= REQUEST + WINDOW; page += 2) {
+			mTable.set(page, PageStatus.RENDERED);
+			mList.set(page, PageStatus.RENDERED);
+		}
+	}
+
+	@Benchmark
+	@Group("table")
+	@GroupThreads(3)
+	public int tableScan() {
+		int pending = 0;
+		for(int page = REQUEST - WINDOW; page <= REQUEST + WINDOW; page++) {
+			if(mTable.is(page, PageStatus.PENDING)) pending++;
+		}
+		return pending;
+	}
+
+	@Benchmark
+	@Group("table")
+	@GroupThreads(1)
+	public boolean tableClaim() {
+		int page = nextPage();
+		boolean claimed = mTable.claim(page);
+		if(claimed) mTable.set(page, PageStatus.PENDING);
+		return claimed;
+	}
+
+	@Benchmark
+	@Group("list")
+	@GroupThreads(3)
+	public int listScan() {
+		int pending = 0;
+		for(int page = REQUEST - WINDOW; page <= REQUEST + WINDOW; page++) {
+			if(mList.get(page) == PageStatus.PENDING) pending++;
+		}
+		return pending;
+	}
+
+	@Benchmark
+	@Group("list")
+	@GroupThreads(1)
+	public boolean listClaim() {
+		int page = nextPage();
+		boolean claimed;
+		synchronized(mList) {
+			claimed = mList.get(page) == PageStatus.PENDING;
+			if(claimed) mList.set(page, PageStatus.DOWNLOADING);
+		}
+		if(claimed) mList.set(page, PageStatus.PENDING);
+		return claimed;
+	}
+
+	// Pages in the window, in turn
+
+	private int nextPage() {
+		return REQUEST - WINDOW + (mNext.getAndIncrement() & Integer.MAX_VALUE) % (2 * WINDOW + 1);
+	}
+}
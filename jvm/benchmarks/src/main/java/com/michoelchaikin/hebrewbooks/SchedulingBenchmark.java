@@ -0,0 +1,69 @@
+package com.michoelchaikin.hebrewbooks;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.michoelchaikin.hebrewbooks.fixtures.FixtureBook;
+import com.michoelchaikin.hebrewbooks.fixtures.Fixtures;
+
+/**
+ * The scheduler picking the next page to download around the reader's page, with part of
+ * the prefetch window already rendered. Each call hands the page it claimed back, so every
+ * call does the same scan.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SchedulingBenchmark {
+
+	private static final int PAGES = 1500;
+	private static final int REQUEST = 700;
+
+	// Pages already rendered on either side of the reader's page
+	@Param({ "0", "4", "10" })
+	public int rendered;
+
+	private File mDir;
+	private PageCacheManager mManager;
+
+	@Setup
+	public void setUp() throws IOException {
+		Fixtures.silenceLogs();
+		mDir = Fixtures.newDirectory("scheduling");
+		mManager = new PageCacheManager(FixtureBook.open(mDir, 1, PAGES, null));
+		mManager.setStatus(REQUEST, PageStatus.RENDERED);
+		for(int i = 1; i <= rendered; i++) {
+			mManager.setStatus(REQUEST + i, PageStatus.RENDERED);
+			mManager.setStatus(REQUEST - i, PageStatus.RENDERED);
+		}
+	}
+
+	@TearDown
+	public void tearDown() {
+		Fixtures.delete(mDir);
+	}
+
+	@Benchmark
+	public int getNextPageToDownload() {
+		int page = mManager.getNextPageToDownload(REQUEST);
+		if(page != 0) mManager.setStatus(page, PageStatus.PENDING);
+		return page;
+	}
+}
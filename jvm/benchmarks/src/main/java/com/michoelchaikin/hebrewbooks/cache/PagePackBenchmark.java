@@ -0,0 +1,141 @@
+package com.michoelchaikin.hebrewbooks.cache;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.michoelchaikin.hebrewbooks.fixtures.Fixtures;
+
+/**
+ * Reading page images of a long book from its pack, against a file per page in a cache
+ * directory holding the book's PDFs as well, as pages were kept before packs.
+ *
+ * A cold open reads the index and the first page of a pack opened from scratch, or stats
+ * and reads the first page's file. Random reads take pages in a fixed random order from a
+ * pack that is already open, or from the page files as findRenderedFile() found them.
+ * Every read copies the image out, as decoding it would. The files stay in the operating
+ * system's cache throughout, so this measures the app's side of the work, not the disk.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PagePackBenchmark {
+
+	private static final int PAGES = 1500;
+	private static final int IMAGE_SIZE = 32 * 1024;
+	private static final String NAME = "hebrewbooks_org_1";
+
+	private File mDir;
+	private File mLooseDir;
+	private PagePack mPack;
+	private int[] mOrder = new int[PAGES];
+	private int mNext;
+	private byte[] mBuffer = new byte[IMAGE_SIZE];
+
+	@Setup
+	public void setUp() throws IOException {
+		Fixtures.silenceLogs();
+		mDir = Fixtures.newDirectory("pack");
+		mLooseDir = new File(mDir, "loose");
+		mLooseDir.mkdirs();
+
+		Random random = new Random(1);
+		byte[] image = new byte[IMAGE_SIZE];
+		File temp = new File(mDir, "page.tmp");
+		PagePack pack = PagePack.open(mDir, NAME);
+		for(int page = 1; page <= PAGES; page++) {
+			random.nextBytes(image);
+			Fixtures.write(temp, image);
+			pack.put(page, temp, 0, 0);
+			Fixtures.write(new File(mLooseDir, NAME + "_" + page + ".png"), image);
+			Fixtures.write(new File(mLooseDir, NAME + "_" + page + ".pdf"), new byte[1024]);
+		}
+		temp.delete();
+		pack.close();
+		mPack = new PagePack(pack.getDataFile(), pack.getIndexFile());
+
+		for(int i = 0; i < PAGES; i++) {
+			mOrder[i] = 1 + random.nextInt(PAGES);
+		}
+	}
+
+	@TearDown
+	public void tearDown() {
+		mPack.close();
+		Fixtures.delete(mDir);
+	}
+
+	@Benchmark
+	public int packColdOpen() {
+		PagePack pack = new PagePack(mPack.getDataFile(), mPack.getIndexFile());
+		try {
+			return copy(pack.get(1));
+		} finally {
+			pack.close();
+		}
+	}
+
+	@Benchmark
+	public int looseColdOpen() throws IOException {
+		return read(1);
+	}
+
+	@Benchmark
+	public int packRandomRead() {
+		return copy(mPack.get(nextPage()));
+	}
+
+	@Benchmark
+	public int looseRandomRead() throws IOException {
+		return read(nextPage());
+	}
+
+	private int nextPage() {
+		mNext = (mNext + 1) % PAGES;
+		return mOrder[mNext];
+	}
+
+	private int copy(ByteBuffer image) {
+		int length = image.remaining();
+		image.get(mBuffer, 0, length);
+		return length;
+	}
+
+	// Finds a page's file as the loose layout did, with a stat for its existence and one
+	// for its length, then reads it
+
+	private int read(int page) throws IOException {
+		File file = new File(mLooseDir, NAME + "_" + page + ".png");
+		if(! file.exists() || file.length() == 0) return 0;
+		InputStream in = new FileInputStream(file);
+		try {
+			int read = 0;
+			int len;
+			while((len = in.read(mBuffer, read, mBuffer.length - read)) > 0) {
+				read += len;
+			}
+			return read;
+		} finally {
+			in.close();
+		}
+	}
+}
@@ -0,0 +1,138 @@
+package com.michoelchaikin.hebrewbooks.harness;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import com.michoelchaikin.hebrewbooks.BookDownloader;
+import com.michoelchaikin.hebrewbooks.PageCacheManager;
+import com.michoelchaikin.hebrewbooks.fixtures.FixtureBook;
+import com.michoelchaikin.hebrewbooks.fixtures.FixtureServer;
+import com.michoelchaikin.hebrewbooks.fixtures.Fixtures;
+import com.michoelchaikin.hebrewbooks.fixtures.SamplePdfs;
+
+/**
+ * Downloading a whole 300-page book for offline reading, from a server that takes 80 ms
+ * to answer each request.
+ *
+ * Prints the time to download and extract every page for a range of download and
+ * extraction thread counts, and with a bandwidth cap. Then times the reader loading random
+ * pages not yet downloaded, on its own and while the book download runs, and prints the
+ * median and slowest load of each. Run from jvm/ with
+ *
+ *   java -cp benchmarks/target/benchmarks.jar com.michoelchaikin.hebrewbooks.harness.BookDownloadHarness
+ */
+public class BookDownloadHarness {
+
+	private static final int PAGES = 300;
+	private static final long LATENCY_MILLIS = 80;
+
+	// Small scans, so the time goes on requests rather than bytes
+	private static final int WIDTH = 60;
+	private static final int HEIGHT = 84;
+
+	// Download threads, extraction threads and bytes per second (0 for no cap)
+	private static final long[][] SETTINGS = {
+		{ 1, 1, 0 }, { 2, 2, 0 }, { 3, 1, 0 }, { 3, 4, 0 }, { 4, 2, 0 }, { 3, 2, 20 * 1024 }
+	};
+
+	// Random pages the reader loads, and the downloader's settings while it does
+	private static final int READER_LOADS = 25;
+	private static final int READER_DOWNLOAD_THREADS = 3;
+	private static final int READER_EXTRACT_THREADS = 2;
+
+	public static void main(String[] args) throws Exception {
+		Fixtures.silenceLogs();
+		System.out.println("Page PDFs of " + SamplePdfs.page(WIDTH, HEIGHT, 1).length + " bytes, "
+				+ PAGES + " pages, " + LATENCY_MILLIS + " ms per response");
+		for(long[] settings : SETTINGS) {
+			downloadBook((int) settings[0], (int) settings[1], settings[2]);
+		}
+		loadPages(false);
+		loadPages(true);
+	}
+
+	private static void downloadBook(int downloadThreads, int extractThreads, long bytesPerSecond) throws Exception {
+		Session session = new Session();
+		try {
+			BookDownloader downloader = new BookDownloader(session.mManager);
+			downloader.setDownloadThreads(downloadThreads);
+			downloader.setExtractThreads(extractThreads);
+			downloader.setMaxBytesPerSecond(bytesPerSecond);
+
+			long start = System.nanoTime();
+			downloader.start();
+			while(downloader.getState() != BookDownloader.State.COMPLETE) {
+				Thread.sleep(10);
+			}
+			long millis = (System.nanoTime() - start) / 1000000;
+			downloader.shutdown();
+
+			System.out.println("Download/extract threads " + downloadThreads + "/" + extractThreads
+					+ (bytesPerSecond > 0 ? ", capped at " + bytesPerSecond / 1024 + " KB/s" : "")
+					+ ": " + millis + " ms for " + downloader.getPagesDone() + " pages");
+		} finally {
+			session.close();
+		}
+	}
+
+	private static void loadPages(boolean downloading) throws Exception {
+		Session session = new Session();
+		BookDownloader downloader = null;
+		try {
+			if(downloading) {
+				downloader = new BookDownloader(session.mManager);
+				downloader.setDownloadThreads(READER_DOWNLOAD_THREADS);
+				downloader.setExtractThreads(READER_EXTRACT_THREADS);
+				downloader.start();
+			}
+
+			Random random = new Random(1);
+			List<Long> loads = new ArrayList<Long>();
+			while(loads.size() < READER_LOADS) {
+				int page = 1 + random.nextInt(PAGES);
+				if(session.mBook.isPageRendered(page)) continue;
+				long start = System.nanoTime();
+				session.mManager.request(page).get(60, TimeUnit.SECONDS);
+				loads.add((System.nanoTime() - start) / 1000000);
+			}
+
+			Collections.sort(loads);
+			System.out.println("Reader loads " + (downloading ? "during" : "without") + " the book download: median "
+					+ loads.get(loads.size() / 2) + " ms, slowest " + loads.get(loads.size() - 1) + " ms");
+		} finally {
+			if(downloader != null) downloader.shutdown();
+			session.close();
+		}
+	}
+
+	// A book on a server of its own, opened by the reader on page 1
+
+	private static class Session {
+
+		final File mDir;
+		final FixtureServer mServer;
+		final FixtureBook mBook;
+		final PageCacheManager mManager;
+
+		Session() throws Exception {
+			mDir = Fixtures.newDirectory("bookdownload");
+			mServer = new FixtureServer();
+			mBook = FixtureBook.open(mDir, 1, PAGES, mServer);
+			mBook.servePages(WIDTH, HEIGHT);
+			mManager = new PageCacheManager(mBook, 1);
+			mManager.init();
+			mManager.request(1).get(60, TimeUnit.SECONDS);
+			mServer.setLatency(LATENCY_MILLIS);
+		}
+
+		void close() {
+			mManager.shutdown();
+			mServer.close();
+			Fixtures.delete(mDir);
+		}
+	}
+}
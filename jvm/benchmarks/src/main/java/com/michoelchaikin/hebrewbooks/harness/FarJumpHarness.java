@@ -0,0 +1,73 @@
+package com.michoelchaikin.hebrewbooks.harness;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import com.michoelchaikin.hebrewbooks.PageCacheManager;
+import com.michoelchaikin.hebrewbooks.cache.DiskCache;
+import com.michoelchaikin.hebrewbooks.fixtures.FixtureBook;
+import com.michoelchaikin.hebrewbooks.fixtures.FixtureServer;
+import com.michoelchaikin.hebrewbooks.fixtures.Fixtures;
+import com.michoelchaikin.hebrewbooks.fixtures.SamplePdfs;
+
+/**
+ * A reader jumping far ahead while the pages after the one they are on are prefetching.
+ *
+ * The reader opens page 12 of a 1000-page book served at about 1.5 s a page, waits for it,
+ * then jumps to page 800 while pages 13-17 are downloading. Prints how long the jump took
+ * and which pages were left as part files to resume. Run from jvm/ with
+ *
+ *   java -cp benchmarks/target/benchmarks.jar com.michoelchaikin.hebrewbooks.harness.FarJumpHarness [runs]
+ */
+public class FarJumpHarness {
+
+	private static final int PAGES = 1000;
+	private static final int FIRST = 12;
+	private static final int JUMP = 800;
+	private static final int WIDTH = 1200;
+	private static final int HEIGHT = 1700;
+	private static final long PAGE_MILLIS = 1500;
+
+	// Time given to the prefetches after the first page to get going
+	private static final long PREFETCH_MILLIS = 300;
+
+	public static void main(String[] args) throws Exception {
+		Fixtures.silenceLogs();
+		int runs = args.length > 0 ? Integer.parseInt(args[0]) : 5;
+		for(int run = 1; run <= runs; run++) {
+			run(run);
+		}
+	}
+
+	private static void run(int run) throws Exception {
+		File dir = Fixtures.newDirectory("farjump");
+		FixtureServer server = new FixtureServer();
+		PageCacheManager manager = null;
+		try {
+			FixtureBook book = FixtureBook.open(dir, 1, PAGES, server);
+			book.servePages(WIDTH, HEIGHT);
+			server.setBytesPerSecond(SamplePdfs.page(WIDTH, HEIGHT, 1).length * 1000L / PAGE_MILLIS);
+
+			manager = new PageCacheManager(book, FIRST);
+			manager.init();
+			manager.request(FIRST).get(60, TimeUnit.SECONDS);
+			Thread.sleep(PREFETCH_MILLIS);
+
+			long start = System.nanoTime();
+			manager.request(JUMP).get(60, TimeUnit.SECONDS);
+			long millis = (System.nanoTime() - start) / 1000000;
+
+			List<String> parts = new ArrayList<String>();
+			for(String name : dir.list()) {
+				if(name.endsWith(DiskCache.SCRATCH_SUFFIX)) parts.add(name);
+			}
+			System.out.println("Run " + run + ": jump to page " + JUMP + " took " + millis + " ms, part files left: " + parts);
+		} finally {
+			if(manager != null) manager.shutdown();
+			server.close();
+			Fixtures.delete(dir);
+		}
+	}
+}
@@ -0,0 +1,140 @@
+package com.michoelchaikin.hebrewbooks.harness;
+
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.util.concurrent.TimeUnit;
+
+import com.michoelchaikin.hebrewbooks.BookDownloader;
+import com.michoelchaikin.hebrewbooks.PageCacheManager;
+import com.michoelchaikin.hebrewbooks.fixtures.FixtureBook;
+import com.michoelchaikin.hebrewbooks.fixtures.FixtureServer;
+import com.michoelchaikin.hebrewbooks.fixtures.Fixtures;
+import com.michoelchaikin.hebrewbooks.fixtures.SamplePdfs;
+
+/**
+ * Importing a whole book from one PDF with HebrewBook.importPdf().
+ *
+ * Imports a 300-page, 128 MB PDF of 1200x1700 scans from a file with 1, 2 and 4 threads,
+ * printing the time and the peak heap used, then the same PDF by URL from a server that
+ * takes 80 ms to answer. Then compares a book of 300 small pages imported by URL against
+ * downloading its pages one at a time through the page feed, with 3 download threads.
+ * Run from jvm/ with a heap too small to hold the PDF:
+ *
+ *   java -Xmx48m -cp benchmarks/target/benchmarks.jar com.michoelchaikin.hebrewbooks.harness.ImportHarness
+ */
+public class ImportHarness {
+
+	private static final int PAGES = 300;
+	private static final long BOOK_SIZE = 128L * 1024 * 1024;
+	private static final int WIDTH = 1200;
+	private static final int HEIGHT = 1700;
+	private static final int[] THREADS = { 1, 2, 4 };
+	private static final int URL_THREADS = 2;
+	private static final long LATENCY_MILLIS = 80;
+
+	private static final int SMALL_WIDTH = 60;
+	private static final int SMALL_HEIGHT = 84;
+	private static final int PAGE_FEED_THREADS = 3;
+
+	public static void main(String[] args) throws Exception {
+		Fixtures.silenceLogs();
+		File dir = Fixtures.newDirectory("import");
+		try {
+			File pdf = new File(dir, "book.pdf");
+			SamplePdfs.padded(pdf, PAGES, WIDTH, HEIGHT, BOOK_SIZE / PAGES);
+			System.out.println(PAGES + "-page PDF of " + pdf.length() / (1024 * 1024) + " MB, heap limit "
+					+ Runtime.getRuntime().maxMemory() / (1024 * 1024) + " MB");
+			for(int threads : THREADS) {
+				importBook(pdf, threads, false);
+			}
+			importBook(pdf, URL_THREADS, true);
+
+			File small = new File(dir, "small.pdf");
+			SamplePdfs.book(small, PAGES, SMALL_WIDTH, SMALL_HEIGHT);
+			importBook(small, URL_THREADS, true);
+			downloadPages();
+		} finally {
+			Fixtures.delete(dir);
+		}
+	}
+
+	private static void importBook(File pdf, int threads, boolean byUrl) throws Exception {
+		File dir = Fixtures.newDirectory("import-cache");
+		FixtureServer server = new FixtureServer();
+		HeapSampler heap = new HeapSampler();
+		try {
+			FixtureBook book = FixtureBook.open(dir, 1, PAGES, server);
+			server.put(book.getBookPath(), pdf);
+			server.setLatency(LATENCY_MILLIS);
+
+			System.gc();
+			heap.start();
+			long start = System.nanoTime();
+			int pages = byUrl ? book.importPdf(book.getBookURL(), threads) : book.importPdf(pdf, threads);
+			long millis = (System.nanoTime() - start) / 1000000;
+			heap.interrupt();
+			heap.join();
+			book.close();
+
+			System.out.println((byUrl ? "By URL" : "From file") + ", " + threads + " thread" + (threads == 1 ? "" : "s")
+					+ ": " + pages + " pages of " + pdf.length() / 1024 + " KB in " + millis + " ms, peak heap "
+					+ heap.mPeak / (1024 * 1024) + " MB");
+		} finally {
+			server.close();
+			Fixtures.delete(dir);
+		}
+	}
+
+	private static void downloadPages() throws Exception {
+		File dir = Fixtures.newDirectory("import-pages");
+		FixtureServer server = new FixtureServer();
+		PageCacheManager manager = null;
+		try {
+			FixtureBook book = FixtureBook.open(dir, 1, PAGES, server);
+			book.servePages(SMALL_WIDTH, SMALL_HEIGHT);
+			server.setLatency(LATENCY_MILLIS);
+			manager = new PageCacheManager(book, 1);
+			manager.init();
+			manager.request(1).get(60, TimeUnit.SECONDS);
+
+			BookDownloader downloader = new BookDownloader(manager);
+			downloader.setDownloadThreads(PAGE_FEED_THREADS);
+			long start = System.nanoTime();
+			downloader.start();
+			while(downloader.getState() != BookDownloader.State.COMPLETE) {
+				Thread.sleep(10);
+			}
+			long millis = (System.nanoTime() - start) / 1000000;
+			downloader.shutdown();
+			System.out.println("Page feed, " + PAGE_FEED_THREADS + " download threads: " + PAGES + " pages in " + millis + " ms");
+		} finally {
+			if(manager != null) manager.shutdown();
+			server.close();
+			Fixtures.delete(dir);
+		}
+	}
+
+	// Keeps the largest heap use seen until interrupted
+
+	private static class HeapSampler extends Thread {
+
+		private final MemoryMXBean mMemory = ManagementFactory.getMemoryMXBean();
+		volatile long mPeak;
+
+		HeapSampler() {
+			setDaemon(true);
+		}
+
+		public void run() {
+			while(! isInterrupted()) {
+				mPeak = Math.max(mPeak, mMemory.getHeapMemoryUsage().getUsed());
+				try {
+					Thread.sleep(2);
+				} catch (InterruptedException e) {
+					return;
+				}
+			}
+		}
+	}
+}
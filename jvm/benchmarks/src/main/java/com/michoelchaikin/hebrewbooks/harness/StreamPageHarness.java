@@ -0,0 +1,90 @@
+package com.michoelchaikin.hebrewbooks.harness;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import com.michoelchaikin.hebrewbooks.fixtures.FixtureBook;
+import com.michoelchaikin.hebrewbooks.fixtures.FixtureServer;
+import com.michoelchaikin.hebrewbooks.fixtures.Fixtures;
+import com.michoelchaikin.hebrewbooks.utils.Log;
+
+/**
+ * Getting a page ready by extracting its image while it downloads, with
+ * HebrewBook.streamPage(), against downloading the PDF with getPage() and then extracting
+ * it with renderPage().
+ *
+ * Serves a book of 1200x1700 scans with 50 ms of latency at 2 MB/s, and gets its pages
+ * ready one at a time, alternating between the two ways. Prints the median and mean time
+ * from asking for a page to having its image, and the bytes written to the cache
+ * directory per page, as HebrewBook counts them in its log. Run from jvm/ with
+ *
+ *   java -cp benchmarks/target/benchmarks.jar com.michoelchaikin.hebrewbooks.harness.StreamPageHarness [pages]
+ */
+public class StreamPageHarness {
+
+	private static final int WIDTH = 1200;
+	private static final int HEIGHT = 1700;
+	private static final long LATENCY_MILLIS = 50;
+	private static final long BYTES_PER_SECOND = 2L * 1024 * 1024;
+
+	private static final Pattern BYTES_WRITTEN = Pattern.compile("(\\d+) bytes written");
+
+	private static final AtomicLong sBytesWritten = new AtomicLong();
+
+	public static void main(String[] args) throws Exception {
+		int pages = args.length > 0 ? Integer.parseInt(args[0]) : 40;
+		Log.setLogger(new Log.Logger() {
+			public void log(int priority, String tag, String message) {
+				Matcher matcher = BYTES_WRITTEN.matcher(message);
+				if(matcher.find()) sBytesWritten.addAndGet(Long.parseLong(matcher.group(1)));
+			}
+		});
+
+		File dir = Fixtures.newDirectory("streampage");
+		FixtureServer server = new FixtureServer();
+		try {
+			FixtureBook book = FixtureBook.open(dir, 1, pages * 2, server);
+			book.servePages(WIDTH, HEIGHT);
+			server.setLatency(LATENCY_MILLIS);
+			server.setBytesPerSecond(BYTES_PER_SECOND);
+
+			long[][] millis = new long[2][pages];
+			long[] written = new long[2];
+			for(int i = 0; i < pages * 2; i++) {
+				int page = i + 1;
+				boolean streaming = i % 2 == 0;
+				sBytesWritten.set(0);
+				long start = System.nanoTime();
+				ByteBuffer image = streaming
+						? book.streamPage(page)
+						: book.renderPage(page, book.getPage(page));
+				if(image == null) throw new IllegalStateException("Page " + page + " did not come out");
+				millis[streaming ? 0 : 1][i / 2] = (System.nanoTime() - start) / 1000000;
+				written[streaming ? 0 : 1] += sBytesWritten.get();
+			}
+
+			System.out.println(pages + " pages each way, " + WIDTH + "x" + HEIGHT + " scans, "
+					+ LATENCY_MILLIS + " ms latency, " + BYTES_PER_SECOND / 1024 + " KB/s");
+			print("streamPage()", millis[0], written[0]);
+			print("getPage() + renderPage()", millis[1], written[1]);
+		} finally {
+			server.close();
+			Fixtures.delete(dir);
+		}
+	}
+
+	private static void print(String name, long[] millis, long written) {
+		long[] sorted = millis.clone();
+		Arrays.sort(sorted);
+		long total = 0;
+		for(long m : millis) {
+			total += m;
+		}
+		System.out.println(name + ": ready in " + sorted[sorted.length / 2] + " ms median, "
+				+ total / millis.length + " ms mean, " + written / millis.length / 1024 + " KB written per page");
+	}
+}
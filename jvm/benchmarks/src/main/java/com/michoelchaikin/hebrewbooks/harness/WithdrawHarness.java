@@ -0,0 +1,88 @@
+package com.michoelchaikin.hebrewbooks.harness;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import com.michoelchaikin.hebrewbooks.PageCacheManager;
+import com.michoelchaikin.hebrewbooks.fixtures.FixtureBook;
+import com.michoelchaikin.hebrewbooks.fixtures.FixtureServer;
+import com.michoelchaikin.hebrewbooks.fixtures.Fixtures;
+import com.michoelchaikin.hebrewbooks.fixtures.SamplePdfs;
+
+/**
+ * A thread waiting for a page in getPage() being interrupted, as the reader turning away
+ * used to do.
+ *
+ * With pages served at about 1.5 s each, a thread asks for page 40 and is interrupted
+ * 200 ms later. Prints what getPage() returned and whether the interrupt flag was set
+ * again, then how long after the interrupt the page was ready from the download that
+ * was already running, without being asked for again. Run from jvm/ with
+ *
+ *   java -cp benchmarks/target/benchmarks.jar com.michoelchaikin.hebrewbooks.harness.WithdrawHarness [runs]
+ */
+public class WithdrawHarness {
+
+	private static final int PAGES = 100;
+	private static final int PAGE = 40;
+	private static final int WIDTH = 1200;
+	private static final int HEIGHT = 1700;
+	private static final long PAGE_MILLIS = 1500;
+	private static final long WAIT_MILLIS = 200;
+
+	public static void main(String[] args) throws Exception {
+		Fixtures.silenceLogs();
+		int runs = args.length > 0 ? Integer.parseInt(args[0]) : 5;
+		for(int run = 1; run <= runs; run++) {
+			run(run);
+		}
+	}
+
+	private static void run(int run) throws Exception {
+		File dir = Fixtures.newDirectory("withdraw");
+		FixtureServer server = new FixtureServer();
+		PageCacheManager manager = null;
+		try {
+			FixtureBook book = FixtureBook.open(dir, 1, PAGES, server);
+			book.servePages(WIDTH, HEIGHT);
+			manager = new PageCacheManager(book, 1);
+			manager.init();
+			manager.request(1).get(60, TimeUnit.SECONDS);
+			server.setBytesPerSecond(SamplePdfs.page(WIDTH, HEIGHT, 1).length * 1000L / PAGE_MILLIS);
+
+			final PageCacheManager pages = manager;
+			final AtomicReference<ByteBuffer> returned = new AtomicReference<ByteBuffer>();
+			final AtomicBoolean interrupted = new AtomicBoolean();
+			Thread waiter = new Thread() {
+				public void run() {
+					returned.set(pages.getPage(PAGE));
+					interrupted.set(isInterrupted());
+				}
+			};
+			waiter.start();
+			Thread.sleep(WAIT_MILLIS);
+
+			long start = System.nanoTime();
+			waiter.interrupt();
+			waiter.join();
+			long returnMillis = (System.nanoTime() - start) / 1000000;
+
+			long deadline = System.currentTimeMillis() + 60000;
+			while(manager.getPageIfReady(PAGE) == null && System.currentTimeMillis() < deadline) {
+				Thread.sleep(5);
+			}
+			long readyMillis = (System.nanoTime() - start) / 1000000;
+			boolean ready = manager.getPageIfReady(PAGE) != null;
+
+			System.out.println("Run " + run + ": getPage() returned " + (returned.get() == null ? "null" : "the page")
+					+ " after " + returnMillis + " ms with interrupt " + (interrupted.get() ? "set" : "cleared")
+					+ ", page " + (ready ? "ready " + readyMillis + " ms" : "still not ready") + " after the interrupt");
+		} finally {
+			if(manager != null) manager.shutdown();
+			server.close();
+			Fixtures.delete(dir);
+		}
+	}
+}
@@ -0,0 +1,92 @@
+package com.michoelchaikin.hebrewbooks.utils;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.itextpdf.text.pdf.PdfReader;
+import com.michoelchaikin.hebrewbooks.fixtures.Fixtures;
+import com.michoelchaikin.hebrewbooks.fixtures.SamplePdfs;
+
+/**
+ * Extracting the image of a page feed PDF: PDFUtils.extractImage() as the pipeline calls
+ * it, which copies the image out through the xref table, against parsing the page with
+ * iText, which is what it falls back to. Each call takes the next PDF of a small corpus of
+ * differently scanned pages, and -prof gc gives the allocation of each.
+ *
+ * Both delete the image written by the last call first, as extractImage() returns an
+ * existing image without extracting it again.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ExtractImageBenchmark {
+
+	// Width of the page scan, which is 1.4 times as high
+	@Param({ "800", "1600" })
+	public int width;
+
+	// PDFs in the corpus
+	private static final int CORPUS = 8;
+
+	private File mDir;
+	private File[] mPdfs = new File[CORPUS];
+	private File[] mImages = new File[CORPUS];
+	private int mNext;
+
+	@Setup
+	public void setUp() throws IOException {
+		Fixtures.silenceLogs();
+		mDir = Fixtures.newDirectory("extract");
+		for(int i = 0; i < CORPUS; i++) {
+			mPdfs[i] = new File(mDir, "hebrewbooks_org_1_" + (i + 1) + ".pdf");
+			mImages[i] = new File(mDir, "hebrewbooks_org_1_" + (i + 1) + ".png");
+			Fixtures.write(mPdfs[i], SamplePdfs.page(width, width * 14 / 10, i));
+		}
+	}
+
+	@TearDown
+	public void tearDown() {
+		Fixtures.delete(mDir);
+	}
+
+	@Benchmark
+	public File extractImage() {
+		int i = next();
+		mImages[i].delete();
+		return PDFUtils.extractImage(mPdfs[i], mDir);
+	}
+
+	@Benchmark
+	public boolean iText() throws IOException {
+		int i = next();
+		mImages[i].delete();
+		PdfReader reader = PDFUtils.open(mPdfs[i]);
+		try {
+			return PDFUtils.extractImage(reader, 1, mImages[i]);
+		} finally {
+			reader.close();
+		}
+	}
+
+	private int next() {
+		mNext = (mNext + 1) % CORPUS;
+		return mNext;
+	}
+}
@@ -0,0 +1,84 @@
+package com.michoelchaikin.hebrewbooks.utils;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.jsoup.Jsoup;
+import org.jsoup.nodes.Document;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.michoelchaikin.hebrewbooks.fixtures.Fixtures;
+import com.michoelchaikin.hebrewbooks.fixtures.SamplePages;
+
+/**
+ * Reading a book's metadata from its cached page, the way HebrewBook does: scanning it
+ * with HtmlMetadataExtractor, against reading it into a string and building a Jsoup DOM.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MetadataParseBenchmark {
+
+	private String[] mIds;
+	private File mDir;
+	private File mPage;
+
+	@Setup
+	public void setUp() throws IOException {
+		Fixtures.silenceLogs();
+		mIds = SamplePages.ids();
+		mDir = Fixtures.newDirectory("metadata");
+		mPage = new File(mDir, "1");
+		Fixtures.write(mPage, SamplePages.bookPage(1, 400).getBytes("UTF-8"));
+	}
+
+	@TearDown
+	public void tearDown() {
+		Fixtures.delete(mDir);
+	}
+
+	@Benchmark
+	public Map<String, String> scan() throws IOException {
+		HtmlMetadataExtractor extractor = new HtmlMetadataExtractor(mIds, "thumbs");
+		Reader reader = new BufferedReader(new InputStreamReader(new FileInputStream(mPage), "UTF-8"));
+		try {
+			extractor.extract(reader);
+		} finally {
+			reader.close();
+		}
+		Map<String, String> metadata = new HashMap<String, String>(extractor.getText());
+		metadata.put(SamplePages.THUMBNAIL, extractor.getImageSource());
+		return metadata;
+	}
+
+	@Benchmark
+	public Map<String, String> jsoup() throws IOException {
+		Document doc = Jsoup.parse(HebrewBooksUtils.readFileAsString(mPage));
+		Map<String, String> metadata = new HashMap<String, String>();
+		for(String id : mIds) {
+			metadata.put(id, doc.getElementById(id).text());
+		}
+		metadata.put(SamplePages.THUMBNAIL, doc.select("img[src^=thumbs]").first().attr("src"));
+		return metadata;
+	}
+}
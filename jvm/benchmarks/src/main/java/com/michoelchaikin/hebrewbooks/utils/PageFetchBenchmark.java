@@ -0,0 +1,129 @@
+package com.michoelchaikin.hebrewbooks.utils;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.net.URLConnection;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.michoelchaikin.hebrewbooks.fixtures.FixtureServer;
+import com.michoelchaikin.hebrewbooks.fixtures.Fixtures;
+import com.michoelchaikin.hebrewbooks.fixtures.SamplePdfs;
+
+/**
+ * Pages per second downloaded from a local server with latency added to every response,
+ * by four threads at once: through PageFetchClient, against opening a new URLConnection
+ * for each page and copying it with a fresh 5 KB buffer, as getFileFromCacheOrURL() did.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(4)
+public class PageFetchBenchmark {
+
+	private static final int PAGES = 50;
+
+	@State(Scope.Benchmark)
+	public static class Server {
+
+		// Milliseconds the server waits before each response
+		@Param({ "0", "20" })
+		public long latency;
+
+		FixtureServer mServer;
+		URL[] mUrls = new URL[PAGES];
+
+		@Setup
+		public void setUp() throws IOException {
+			Fixtures.silenceLogs();
+			mServer = new FixtureServer();
+			mServer.setLatency(latency);
+			byte[] pdf = SamplePdfs.page(1200, 1800, 1);
+			for(int page = 0; page < PAGES; page++) {
+				String path = "/pagefeed/hebrewbooks_org_1_" + page + ".pdf";
+				mServer.put(path, pdf);
+				mUrls[page] = mServer.url(path);
+			}
+		}
+
+		@TearDown
+		public void tearDown() {
+			mServer.close();
+		}
+	}
+
+	@State(Scope.Thread)
+	public static class Target {
+
+		File mDir;
+		File mFile;
+		int mNext;
+
+		@Setup
+		public void setUp() throws IOException {
+			mDir = Fixtures.newDirectory("fetch");
+			mFile = new File(mDir, "page.pdf");
+		}
+
+		@TearDown(Level.Invocation)
+		public void deletePage() {
+			mFile.delete();
+		}
+
+		@TearDown
+		public void tearDown() {
+			Fixtures.delete(mDir);
+		}
+
+		URL next(Server server) {
+			mNext = (mNext + 1) % PAGES;
+			return server.mUrls[mNext];
+		}
+	}
+
+	@Benchmark
+	public long client(Server server, Target target) throws IOException {
+		PageFetchClient.getInstance().download(target.next(server), target.mFile);
+		return target.mFile.length();
+	}
+
+	@Benchmark
+	public long urlConnection(Server server, Target target) throws IOException {
+		URLConnection ucon = target.next(server).openConnection();
+		ucon.setReadTimeout(5000);
+		ucon.setConnectTimeout(30000);
+
+		InputStream is = ucon.getInputStream();
+		BufferedInputStream inStream = new BufferedInputStream(is, 1024 * 5);
+		FileOutputStream outStream = new FileOutputStream(target.mFile);
+		byte[] buff = new byte[5 * 1024];
+		int len;
+		while((len = inStream.read(buff)) != -1) {
+			outStream.write(buff, 0, len);
+		}
+		outStream.flush();
+		outStream.close();
+		inStream.close();
+		return target.mFile.length();
+	}
+}
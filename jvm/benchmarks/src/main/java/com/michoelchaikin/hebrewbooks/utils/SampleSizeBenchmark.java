@@ -0,0 +1,53 @@
+package com.michoelchaikin.hebrewbooks.utils;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The sample size math decodeBitmap() does for every page, over a spread of scan and view
+ * sizes.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SampleSizeBenchmark {
+
+	private static final int SIZES = 1024;
+
+	private final int[] mWidths = new int[SIZES];
+	private final int[] mHeights = new int[SIZES];
+	private final int[] mViewWidths = new int[SIZES];
+	private final int[] mViewHeights = new int[SIZES];
+	private int mNext = 0;
+
+	@Setup
+	public void setUp() {
+		Random random = new Random(1);
+		for(int i = 0; i < SIZES; i++) {
+			mWidths[i] = 600 + random.nextInt(3000);
+			mHeights[i] = mWidths[i] * 14 / 10;
+			mViewWidths[i] = 320 + random.nextInt(1600);
+			mViewHeights[i] = 480 + random.nextInt(2000);
+		}
+	}
+
+	@Benchmark
+	public int calculateSampleSize() {
+		int i = mNext++ & (SIZES - 1);
+		return HebrewBooksUtils.calculateSampleSize(mWidths[i], mHeights[i], mViewHeights[i] * 2, mViewWidths[i] * 2);
+	}
+}
@@ -0,0 +1,104 @@
+package com.michoelchaikin.hebrewbooks;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.michoelchaikin.hebrewbooks.fixtures.FixtureBook;
+import com.michoelchaikin.hebrewbooks.fixtures.FixtureServer;
+import com.michoelchaikin.hebrewbooks.fixtures.Fixtures;
+
+public class BookDownloaderTest {
+
+	private static final int PAGES = 30;
+
+	private File mDir;
+	private FixtureServer mServer;
+	private FixtureBook mBook;
+	private PageCacheManager mManager;
+	private BookDownloader mDownloader;
+
+	@Before
+	public void setUp() throws IOException {
+		Fixtures.silenceLogs();
+		mDir = Fixtures.newDirectory("downloader");
+		mServer = new FixtureServer();
+		mBook = FixtureBook.open(mDir, 1, PAGES, mServer);
+		mBook.servePages(400, 600);
+	}
+
+	@After
+	public void tearDown() {
+		if(mDownloader != null) mDownloader.shutdown();
+		if(mManager != null) mManager.shutdown();
+		mServer.close();
+		Fixtures.delete(mDir);
+	}
+
+	@Test
+	public void downloadsEveryPage() throws Exception {
+		open();
+		mDownloader.start();
+		waitForState(BookDownloader.State.COMPLETE);
+		assertEquals(PAGES, mDownloader.getPagesDone());
+		assertTrue(mBook.isOffline());
+		for(int page = 1; page <= PAGES; page++) {
+			assertNotNull(mManager.getPageIfReady(page));
+		}
+	}
+
+	@Test
+	public void pauseHandsPagesBackToReader() throws Exception {
+		// All but the last two pages are ready, so once the downloader has those the
+		// scheduler finds nothing to do for the reader
+		for(int page = 1; page <= PAGES - 2; page++) {
+			assertNotNull(mBook.streamPage(page));
+		}
+		open();
+
+		// Slow enough that the downloader still has its pages when it is paused
+		mServer.setLatency(400);
+		mDownloader.start();
+		Thread.sleep(150);
+
+		PageHandle handle = mManager.request(PAGES - 1);
+		Thread.sleep(100);
+		mDownloader.pause();
+		assertEquals(BookDownloader.State.PAUSED, mDownloader.getState());
+		assertNotNull(handle.get(10, TimeUnit.SECONDS));
+	}
+
+	// What a book whose init() failed looks like to the downloader
+
+	@Test
+	public void refusesBookWithoutPages() throws Exception {
+		mBook = FixtureBook.open(mDir, 2, 0, mServer);
+		open();
+		mDownloader.start();
+		assertEquals(BookDownloader.State.IDLE, mDownloader.getState());
+		assertFalse(mBook.isOffline());
+	}
+
+	private void open() {
+		mManager = new PageCacheManager(mBook);
+		mManager.init();
+		mDownloader = new BookDownloader(mManager);
+	}
+
+	private void waitForState(BookDownloader.State state) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + 30000;
+		while(mDownloader.getState() != state && System.currentTimeMillis() < deadline) {
+			Thread.sleep(20);
+		}
+		assertEquals(state, mDownloader.getState());
+	}
+}
@@ -0,0 +1,97 @@
+package com.michoelchaikin.hebrewbooks;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.michoelchaikin.hebrewbooks.cache.DiskCache;
+import com.michoelchaikin.hebrewbooks.cache.MetadataStore;
+import com.michoelchaikin.hebrewbooks.fixtures.FixtureBook;
+import com.michoelchaikin.hebrewbooks.fixtures.Fixtures;
+import com.michoelchaikin.hebrewbooks.fixtures.SamplePages;
+import com.michoelchaikin.hebrewbooks.fixtures.SamplePdfs;
+
+public class HebrewBookTest {
+
+	private static final int PAGES = 12;
+
+	private File mDir;
+	private FixtureBook mBook;
+
+	@Before
+	public void setUp() throws IOException {
+		Fixtures.silenceLogs();
+		mDir = Fixtures.newDirectory("hebrewbook");
+		mBook = FixtureBook.open(mDir, 1, PAGES, null);
+	}
+
+	@After
+	public void tearDown() {
+		mBook.close();
+		Fixtures.delete(mDir);
+	}
+
+	@Test
+	public void importLeavesReaderFilesAlone() throws Exception {
+		// A page the reader is in the middle of
+		DiskCache cache = DiskCache.open(mDir);
+		byte[] pdf = SamplePdfs.page(400, 600, 3);
+		Fixtures.write(cache.file("hebrewbooks_org_1_3.pdf"), pdf);
+		cache.put("hebrewbooks_org_1_3.pdf");
+		Fixtures.write(cache.file("hebrewbooks_org_1_3.png"), new byte[] { 1, 2, 3 });
+
+		File book = new File(mDir, "book.pdf");
+		SamplePdfs.book(book, PAGES, 400, 600);
+		assertEquals(PAGES, mBook.importPdf(book, 3));
+
+		assertArrayEquals(pdf, Files.readAllBytes(cache.file("hebrewbooks_org_1_3.pdf").toPath()));
+		assertArrayEquals(new byte[] { 1, 2, 3 }, Files.readAllBytes(cache.file("hebrewbooks_org_1_3.png").toPath()));
+		for(File file : mDir.listFiles()) {
+			assertTrue("Left behind: " + file, ! file.getName().contains("-import-"));
+		}
+	}
+
+	// The first init() parses the book's cached page, and later ones use the saved record
+	// without it
+
+	@Test
+	public void initSavesMetadata() throws Exception {
+		int bookID = 2;
+		DiskCache cache = DiskCache.open(mDir);
+		Fixtures.write(cache.file(Integer.toString(bookID)), SamplePages.bookPage(bookID, 30).getBytes("UTF-8"));
+		cache.put(Integer.toString(bookID));
+
+		HebrewBook cold = newBook(bookID);
+		cold.init();
+		assertEquals("Sefer Bedikah 2", cold.getNameEnglish());
+		assertEquals("וילנא", cold.getPublicationPlaceHebrew());
+		assertEquals(30, cold.getNumPages());
+		assertNotNull(MetadataStore.open(mDir).get(bookID));
+		cold.close();
+
+		cache.remove(Integer.toString(bookID));
+		HebrewBook warm = newBook(bookID);
+		warm.init();
+		assertEquals(cold.getNameEnglish(), warm.getNameEnglish());
+		assertEquals(cold.getDescription(), warm.getDescription());
+		assertEquals(30, warm.getNumPages());
+		warm.close();
+	}
+
+	private HebrewBook newBook(int bookID) {
+		return new HebrewBook(new CacheDirProvider() {
+			public File getCacheDir() {
+				return mDir;
+			}
+		}, bookID);
+	}
+}
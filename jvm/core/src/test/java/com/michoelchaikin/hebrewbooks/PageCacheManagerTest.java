@@ -0,0 +1,206 @@
+package com.michoelchaikin.hebrewbooks;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.junit.Assume.assumeFalse;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.michoelchaikin.hebrewbooks.fixtures.FixtureBook;
+import com.michoelchaikin.hebrewbooks.fixtures.FixtureServer;
+import com.michoelchaikin.hebrewbooks.fixtures.Fixtures;
+import com.michoelchaikin.hebrewbooks.fixtures.SamplePdfs;
+
+public class PageCacheManagerTest {
+
+	private static final int PAGES = 40;
+
+	// Pages left off the server for concurrentRequestsAllFinish()
+	private static final int MISSING_EVERY = 9;
+	private static final int REQUESTS = 400;
+	private static final int WAITERS = 2;
+
+	private File mDir;
+	private FixtureServer mServer;
+	private FixtureBook mBook;
+	private PageCacheManager mManager;
+
+	@Before
+	public void setUp() throws IOException {
+		Fixtures.silenceLogs();
+		mDir = Fixtures.newDirectory("pagecache");
+		mServer = new FixtureServer();
+		mBook = FixtureBook.open(mDir, 1, PAGES, mServer);
+		mBook.servePages(400, 600);
+	}
+
+	@After
+	public void tearDown() {
+		if(mManager != null) mManager.shutdown();
+		mServer.close();
+		Fixtures.delete(mDir);
+	}
+
+	@Test
+	public void shutdownStopsThreads() throws Exception {
+		mManager = new PageCacheManager(mBook);
+		mManager.init();
+		assertNotNull(mManager.request(1).get(10, TimeUnit.SECONDS));
+
+		// Leave some pages in flight
+		mServer.setLatency(500);
+		mManager.request(20);
+		Thread.sleep(100);
+
+		mManager.shutdown();
+		long deadline = System.currentTimeMillis() + 5000;
+		while(! managerThreads().isEmpty() && System.currentTimeMillis() < deadline) {
+			Thread.sleep(20);
+		}
+		assertTrue("Still running: " + managerThreads(), managerThreads().isEmpty());
+
+		try {
+			mManager.request(2).get(1, TimeUnit.SECONDS);
+			fail("Requested a page after shutdown");
+		} catch (IOException e) {
+			// Expected
+		}
+	}
+
+	@Test
+	public void failedPageIsRetried() throws Exception {
+		mManager = new PageCacheManager(mBook, 1);
+		mManager.init();
+		byte[] pdf = SamplePdfs.page(400, 600, 7);
+		mServer.remove(mBook.getPagePath(7));
+
+		PageHandle failed = mManager.request(7);
+		try {
+			failed.get(10, TimeUnit.SECONDS);
+			fail("Page 7 is not on the server");
+		} catch (IOException e) {
+			// Expected
+		}
+
+		mServer.put(mBook.getPagePath(7), pdf);
+		PageHandle retried = mManager.request(7);
+		assertNotSame(failed, retried);
+		assertNotNull(retried.get(10, TimeUnit.SECONDS));
+	}
+
+	// A prefetched page waiting to be extracted is moved ahead of the other waiting pages
+	// once the reader asks for it
+
+	@Test
+	public void requestedPageIsExtractedNext() throws Exception {
+		mBook.setStreaming(false);
+		mBook.setRenderDelay(400);
+		mManager = new PageCacheManager(mBook);
+		mManager.init();
+		mManager.request(1);
+
+		// Let the prefetches download and line up behind the pages being extracted
+		long deadline = System.currentTimeMillis() + 5000;
+		while(! mBook.getRendered().contains(1) && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+		Thread.sleep(200);
+		List<Integer> waiting = mBook.getDownloaded();
+		List<Integer> started = mBook.getRendered();
+		waiting.removeAll(started);
+		assumeFalse("Every downloaded page is already being extracted", waiting.isEmpty());
+
+		int page = waiting.get(waiting.size() - 1);
+		assertNotNull(mManager.request(page).get(10, TimeUnit.SECONDS));
+		List<Integer> rendered = mBook.getRendered();
+		assertEquals("Extracted after the request: " + rendered, page, (int) rendered.get(started.size()));
+	}
+
+	// A reader jumping around the book, waited on from several threads at once, with some
+	// pages missing from the server and the book download claiming pages alongside. So
+	// prefetches are cancelled, pages fail and pages are taken by the downloader while they
+	// are being asked for. Every handle waited on has to finish, with the image if the page
+	// is on the server and an error if it isn't
+
+	@Test
+	public void concurrentRequestsAllFinish() throws Exception {
+		for(int page = MISSING_EVERY; page <= PAGES; page += MISSING_EVERY) {
+			mServer.remove(mBook.getPagePath(page));
+		}
+		mServer.setLatency(5);
+		mManager = new PageCacheManager(mBook);
+		mManager.init();
+		BookDownloader downloader = new BookDownloader(mManager);
+		downloader.start();
+
+		ExecutorService waiters = Executors.newFixedThreadPool(WAITERS * 4);
+		List<Future<Void>> results = new ArrayList<Future<Void>>();
+		Random random = new Random(1);
+		int page = 1;
+		try {
+			for(int i = 0; i < REQUESTS; i++) {
+				int jump = random.nextInt(10);
+				page = jump < 6 ? page + 1 : (jump < 8 ? page - 1 : 1 + random.nextInt(PAGES));
+				page = Math.max(1, Math.min(PAGES, page));
+
+				final int requested = page;
+				final PageHandle handle = mManager.request(page);
+				if(random.nextInt(4) == 0) {
+					// Turned the page again without waiting
+					mManager.withdraw(page, null);
+					continue;
+				}
+				for(int j = 0; j < WAITERS; j++) {
+					results.add(waiters.submit(new Callable<Void>() {
+						public Void call() throws Exception {
+							check(requested, handle);
+							return null;
+						}
+					}));
+				}
+				check(page, handle);
+			}
+			for(Future<Void> result : results) {
+				result.get();
+			}
+		} finally {
+			downloader.shutdown();
+			waiters.shutdownNow();
+		}
+	}
+
+	private static void check(int page, PageHandle handle) throws Exception {
+		try {
+			ByteBuffer image = handle.get(30, TimeUnit.SECONDS);
+			assertNotNull(image);
+			assertTrue("Page " + page + " is not on the server", page % MISSING_EVERY != 0);
+		} catch (IOException e) {
+			assertTrue("Page " + page + " failed: " + e.getMessage(), page % MISSING_EVERY == 0);
+		}
+	}
+
+	private static List<String> managerThreads() {
+		List<String> names = new ArrayList<String>();
+		for(Thread thread : Thread.getAllStackTraces().keySet()) {
+			if(thread.isAlive() && thread.getName().startsWith("PageCacheManager")) names.add(thread.getName());
+		}
+		return names;
+	}
+}
@@ -0,0 +1,67 @@
+package com.michoelchaikin.hebrewbooks;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+import org.junit.Test;
+
+public class PageStateTableTest {
+
+	private static final int PAGES = 2000;
+	private static final int WORKERS = 8;
+
+	@Test
+	public void transitionsOnlyFromExpectedStatus() {
+		PageStateTable table = new PageStateTable(PAGES + 1);
+		assertTrue(table.is(1, PageStatus.PENDING));
+		assertTrue(table.claim(1));
+		assertFalse(table.claim(1));
+		assertFalse(table.transition(1, PageStatus.PENDING, PageStatus.FAILED));
+		assertTrue(table.transition(1, PageStatus.DOWNLOADING, PageStatus.DOWNLOADED));
+		assertEquals(PageStatus.DOWNLOADED, table.get(1));
+	}
+
+	// Workers racing through the same pages claim each page exactly once between them
+
+	@Test
+	public void everyPageClaimedOnce() throws Exception {
+		final PageStateTable table = new PageStateTable(PAGES + 1);
+		final AtomicIntegerArray claims = new AtomicIntegerArray(PAGES + 1);
+		final CountDownLatch start = new CountDownLatch(1);
+
+		List<Thread> workers = new ArrayList<Thread>();
+		for(int i = 0; i < WORKERS; i++) {
+			final int offset = i * PAGES / WORKERS;
+			Thread worker = new Thread() {
+				public void run() {
+					try {
+						start.await();
+					} catch (InterruptedException e) {
+						return;
+					}
+					for(int j = 0; j < PAGES; j++) {
+						int page = 1 + (offset + j) % PAGES;
+						if(table.claim(page)) claims.incrementAndGet(page);
+					}
+				}
+			};
+			worker.start();
+			workers.add(worker);
+		}
+		start.countDown();
+		for(Thread worker : workers) {
+			worker.join();
+		}
+
+		for(int page = 1; page <= PAGES; page++) {
+			assertEquals("Claims of page " + page, 1, claims.get(page));
+			assertTrue(table.is(page, PageStatus.DOWNLOADING));
+		}
+	}
+}
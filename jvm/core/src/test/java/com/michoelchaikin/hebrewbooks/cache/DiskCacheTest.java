@@ -0,0 +1,137 @@
+package com.michoelchaikin.hebrewbooks.cache;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.michoelchaikin.hebrewbooks.fixtures.Fixtures;
+
+public class DiskCacheTest {
+
+	private static final int FILE_SIZE = 1000;
+
+	private File mDir;
+
+	@Before
+	public void setUp() throws IOException {
+		Fixtures.silenceLogs();
+		mDir = Fixtures.newDirectory("diskcache");
+	}
+
+	@After
+	public void tearDown() {
+		Fixtures.delete(mDir);
+	}
+
+	@Test
+	public void evictsLeastRecentlyUsed() throws Exception {
+		DiskCache cache = open("first");
+		put(cache, "a", "b", "c", "d");
+		cache.get("a");
+		cache.setMaxSize(3 * FILE_SIZE);
+		waitForSize(cache, 3 * FILE_SIZE);
+
+		assertNotNull(cache.get("a"));
+		assertNull(cache.get("b"));
+		assertNotNull(cache.get("c"));
+	}
+
+	@Test
+	public void pinnedFilesStayUntilReleased() throws Exception {
+		DiskCache cache = open("first");
+		put(cache, "a", "b", "c");
+		Object owner = new Object();
+		cache.setPinned(owner, Arrays.asList("a", "b"));
+		cache.setMaxSize(FILE_SIZE);
+		waitForSize(cache, 2 * FILE_SIZE);
+		assertNotNull(cache.get("a"));
+		assertNotNull(cache.get("b"));
+
+		cache.setPinned(owner, null);
+		cache.setMaxSize(FILE_SIZE);
+		waitForSize(cache, FILE_SIZE);
+	}
+
+	@Test
+	public void keptFilesStayAcrossRestarts() throws Exception {
+		DiskCache cache = open("first");
+		cache.setKept("a", true);
+		put(cache, "a", "b", "c");
+
+		// The next run of the app, with a smaller cache
+		DiskCache reopened = DiskCache.open(copy("first", "second"));
+		assertTrue(reopened.isKept("a"));
+		reopened.setMaxSize(FILE_SIZE);
+		waitForSize(reopened, FILE_SIZE);
+		assertNotNull(reopened.get("a"));
+
+		reopened.setKept("a", false);
+		reopened.setMaxSize(0);
+		waitForSize(reopened, 0);
+		assertFalse(DiskCache.open(copy("second", "third")).isKept("a"));
+	}
+
+	@Test
+	public void removesStaleScratchFiles() throws Exception {
+		File dir = new File(mDir, "first");
+		dir.mkdirs();
+		File stale = new File(dir, "page.pdf" + DiskCache.SCRATCH_SUFFIX);
+		File recent = new File(dir, "page-import-1.png" + DiskCache.SCRATCH_SUFFIX);
+		Fixtures.write(stale, new byte[FILE_SIZE]);
+		Fixtures.write(recent, new byte[FILE_SIZE]);
+		stale.setLastModified(System.currentTimeMillis() - 7L * 24 * 60 * 60 * 1000);
+
+		// Opening for the first time scans the directory, which leaves scratch files out
+		DiskCache cache = DiskCache.open(dir);
+		long deadline = System.currentTimeMillis() + 5000;
+		while(stale.exists() && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+		assertFalse(stale.exists());
+		assertTrue(recent.exists());
+		assertEquals(0, cache.getSize());
+	}
+
+	private DiskCache open(String dir) {
+		File cacheDir = new File(mDir, dir);
+		cacheDir.mkdirs();
+		return DiskCache.open(cacheDir);
+	}
+
+	// Copies a cache directory, as DiskCache keeps one instance per directory
+
+	private File copy(String from, String to) throws IOException {
+		File copy = new File(mDir, to);
+		copy.mkdirs();
+		for(File file : new File(mDir, from).listFiles()) {
+			Files.copy(file.toPath(), new File(copy, file.getName()).toPath());
+		}
+		return copy;
+	}
+
+	private static void put(DiskCache cache, String... names) throws IOException {
+		for(String name : names) {
+			Fixtures.write(cache.file(name), new byte[FILE_SIZE]);
+			cache.put(name);
+		}
+	}
+
+	private static void waitForSize(DiskCache cache, long size) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + 5000;
+		while(cache.getSize() != size && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+		assertEquals(size, cache.getSize());
+	}
+}
@@ -0,0 +1,186 @@
+package com.michoelchaikin.hebrewbooks.cache;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.michoelchaikin.hebrewbooks.fixtures.Fixtures;
+
+public class PagePackTest {
+
+	private static final String NAME = "hebrewbooks_org_1";
+
+	private File mDir;
+
+	@Before
+	public void setUp() throws IOException {
+		Fixtures.silenceLogs();
+		mDir = Fixtures.newDirectory("pagepack");
+	}
+
+	@After
+	public void tearDown() {
+		Fixtures.delete(mDir);
+	}
+
+	@Test
+	public void storesAndReopensPages() throws IOException {
+		PagePack pack = open("first");
+		put(pack, 1, 1000);
+		put(pack, 2, 3000);
+		put(pack, 1, 2000);
+		pack.remove(2);
+
+		PagePack reopened = reopen(pack, "second");
+		assertEquals(1, reopened.getPageCount());
+		assertFalse(reopened.contains(2));
+		assertImage(reopened, 1, 2000);
+		assertEquals(800, reopened.getWidth(1));
+		assertEquals(1200, reopened.getHeight(1));
+	}
+
+	@Test
+	public void appendsAfterTornRecord() throws IOException {
+		PagePack pack = open("first");
+		put(pack, 1, 1000);
+		put(pack, 2, 1500);
+		pack.close();
+
+		// A crash in the middle of writing page 2's record
+		File crashed = copy(pack, "crashed");
+		File index = new File(crashed, NAME + PagePack.INDEX_SUFFIX);
+		RandomAccessFile file = new RandomAccessFile(index, "rw");
+		try {
+			file.setLength(file.length() - 7);
+		} finally {
+			file.close();
+		}
+
+		PagePack recovered = PagePack.open(crashed, NAME);
+		assertTrue(recovered.contains(1));
+		assertFalse(recovered.contains(2));
+		put(recovered, 3, 2000);
+		put(recovered, 4, 2500);
+
+		PagePack reopened = reopen(recovered, "reopened");
+		assertEquals(3, reopened.getPageCount());
+		assertImage(reopened, 1, 1000);
+		assertFalse(reopened.contains(2));
+		assertImage(reopened, 3, 2000);
+		assertImage(reopened, 4, 2500);
+	}
+
+	@Test
+	public void readsPagesAcrossChunks() throws IOException {
+		// Bigger than a page gets, so some of them cross from one mapped chunk to the next
+		int size = 1536 * 1024;
+		PagePack pack = open("first");
+		for(int page = 1; page <= 6; page++) {
+			put(pack, page, size + page);
+			assertImage(pack, page, size + page);
+		}
+		for(int page = 1; page <= 6; page++) {
+			assertImage(pack, page, size + page);
+		}
+	}
+
+	@Test
+	public void compactsReplacedPages() throws IOException {
+		int size = 1024 * 1024;
+		PagePack pack = open("first");
+		for(int page = 1; page <= 3; page++) {
+			put(pack, page, size + page);
+		}
+		assertFalse(pack.compact());
+
+		ByteBuffer before = pack.get(2);
+		for(int page = 1; page <= 3; page++) {
+			put(pack, page, size + 100 + page);
+			put(pack, page, size + 200 + page);
+		}
+		pack.remove(3);
+		assertTrue(pack.getWastedBytes() > pack.getDataFile().length() / 2);
+
+		assertTrue(pack.compact());
+		assertEquals(0, pack.getWastedBytes());
+		assertEquals(2 * size + 201 + 202, pack.getDataFile().length());
+		assertImage(pack, 1, size + 201);
+		assertImage(pack, 2, size + 202);
+		assertFalse(pack.contains(3));
+		assertFalse(new File(pack.getDataFile().getPath() + ".tmp").exists());
+
+		// Handed out before, and still over the old file
+		byte[] bytes = new byte[before.remaining()];
+		before.get(bytes);
+		assertArrayEquals(image(2, size + 2), bytes);
+
+		// Appends carry on after the compacted pages
+		put(pack, 4, 5000);
+		PagePack reopened = reopen(pack, "second");
+		assertEquals(3, reopened.getPageCount());
+		assertImage(reopened, 1, size + 201);
+		assertImage(reopened, 2, size + 202);
+		assertImage(reopened, 4, 5000);
+	}
+
+	private PagePack open(String dir) {
+		File packDir = new File(mDir, dir);
+		packDir.mkdirs();
+		return PagePack.open(packDir, NAME);
+	}
+
+	// Opens a copy of a pack's files, as the next run of the app would see them
+
+	private PagePack reopen(PagePack pack, String dir) throws IOException {
+		pack.close();
+		return PagePack.open(copy(pack, dir), NAME);
+	}
+
+	private File copy(PagePack pack, String dir) throws IOException {
+		File copy = new File(mDir, dir);
+		copy.mkdirs();
+		Files.copy(pack.getDataFile().toPath(), new File(copy, pack.getDataFile().getName()).toPath());
+		Files.copy(pack.getIndexFile().toPath(), new File(copy, pack.getIndexFile().getName()).toPath());
+		return copy;
+	}
+
+	private void put(PagePack pack, int page, int size) throws IOException {
+		File image = new File(mDir, "page.png");
+		Fixtures.write(image, image(page, size));
+		pack.put(page, image, 800, 1200);
+		image.delete();
+	}
+
+	private static void assertImage(PagePack pack, int page, int size) {
+		ByteBuffer buffer = pack.get(page);
+		byte[] bytes = new byte[buffer.remaining()];
+		buffer.get(bytes);
+		assertArrayEquals(image(page, size), bytes);
+		assertEquals(PagePack.FORMAT_PNG, pack.getFormat(page));
+	}
+
+	// A PNG signature followed by bytes that depend on the page and size
+
+	private static byte[] image(int page, int size) {
+		byte[] bytes = new byte[size];
+		for(int i = 0; i < size; i++) {
+			bytes[i] = (byte) (page * 31 + size + i);
+		}
+		bytes[0] = (byte) 0x89;
+		bytes[1] = 'P';
+		bytes[2] = 'N';
+		bytes[3] = 'G';
+		return bytes;
+	}
+}
@@ -0,0 +1,129 @@
+package com.michoelchaikin.hebrewbooks.fixtures;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import com.michoelchaikin.hebrewbooks.CacheDirProvider;
+import com.michoelchaikin.hebrewbooks.HebrewBook;
+import com.michoelchaikin.hebrewbooks.cache.MetadataStore;
+
+/**
+ * A book whose pages come from a {@link FixtureServer} instead of hebrewbooks.org.
+ *
+ * Its metadata is put in the cache directory's metadata store before init(), so opening it
+ * never goes to the site. servePages() puts a page feed PDF on the server for every page.
+ * Streaming can be turned off and extraction slowed down, to hold pages in the extraction
+ * stage, and the pages downloaded and extracted are recorded in order.
+ */
+public class FixtureBook extends HebrewBook {
+
+	private final FixtureServer mServer;
+	private volatile boolean mStreaming = true;
+	private volatile long mRenderDelay = 0;
+	private final List<Integer> mDownloaded = Collections.synchronizedList(new ArrayList<Integer>());
+	private final List<Integer> mRendered = Collections.synchronizedList(new ArrayList<Integer>());
+
+	// Opens a book of numPages pages kept in cacheDir, and initializes it
+
+	public static FixtureBook open(final File cacheDir, int bookID, int numPages, FixtureServer server) throws IOException {
+		MetadataStore.open(cacheDir).put(bookID, SamplePages.metadata(bookID, numPages));
+		FixtureBook book = new FixtureBook(cacheDir, bookID, server);
+		book.init();
+		return book;
+	}
+
+	private FixtureBook(final File cacheDir, int bookID, FixtureServer server) {
+		super(new CacheDirProvider() {
+			public File getCacheDir() {
+				return cacheDir;
+			}
+		}, bookID);
+		mServer = server;
+	}
+
+	// Puts a page feed PDF of a width by height scan on the server for every page. The scans
+	// are made from a few seeds, so a long book is quick to set up
+
+	public void servePages(int width, int height) {
+		byte[][] pdfs = new byte[Math.min(getNumPages(), 8)][];
+		for(int i = 0; i < pdfs.length; i++) {
+			pdfs[i] = SamplePdfs.page(width, height, i);
+		}
+		for(int page = 1; page <= getNumPages(); page++) {
+			mServer.put(getPagePath(page), pdfs[page % pdfs.length]);
+		}
+	}
+
+	// With streaming off, every page goes through getPage() and renderPage()
+
+	public void setStreaming(boolean streaming) {
+		mStreaming = streaming;
+	}
+
+	// Time renderPage() takes on top of extracting the image
+
+	public void setRenderDelay(long millis) {
+		mRenderDelay = millis;
+	}
+
+	// Pages downloaded with getPage(), in the order they finished
+
+	public List<Integer> getDownloaded() {
+		synchronized(mDownloaded) {
+			return new ArrayList<Integer>(mDownloaded);
+		}
+	}
+
+	// Pages renderPage() was called for, in the order the calls started
+
+	public List<Integer> getRendered() {
+		synchronized(mRendered) {
+			return new ArrayList<Integer>(mRendered);
+		}
+	}
+
+	@Override
+	public ByteBuffer streamPage(int page) throws IOException {
+		return mStreaming ? super.streamPage(page) : null;
+	}
+
+	@Override
+	public File getPage(int page) throws IOException {
+		File pdf = super.getPage(page);
+		mDownloaded.add(page);
+		return pdf;
+	}
+
+	@Override
+	public ByteBuffer renderPage(int page, File pdf) throws Exception {
+		mRendered.add(page);
+		if(mRenderDelay > 0) Thread.sleep(mRenderDelay);
+		return super.renderPage(page, pdf);
+	}
+
+	public String getPagePath(int page) {
+		return "/pagefeed/hebrewbooks_org_" + getBookID() + "_" + page + ".pdf";
+	}
+
+	public String getBookPath() {
+		return "/download/hebrewbooks_org_" + getBookID() + ".pdf";
+	}
+
+	@Override
+	public URL getPageURL(int page) throws MalformedURLException {
+		if(mServer == null) throw new MalformedURLException("No server for book " + getBookID());
+		return mServer.url(getPagePath(page));
+	}
+
+	@Override
+	public URL getBookURL() throws MalformedURLException {
+		if(mServer == null) throw new MalformedURLException("No server for book " + getBookID());
+		return mServer.url(getBookPath());
+	}
+}
@@ -0,0 +1,334 @@
+package com.michoelchaikin.hebrewbooks.fixtures;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.net.InetAddress;
+import java.net.MalformedURLException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Stand-in for hebrewbooks.org on the loopback interface, serving fixed bodies by path,
+ * from memory or, for ones too large for the heap, from files.
+ *
+ * Speaks just enough HTTP/1.1 for HttpURLConnection: keep-alive connections, Content-Length
+ * and single byte ranges. Responses can be slowed down the way a real server is, with a
+ * delay before each one and a cap on bytes per second, and broken off partway through to
+ * test resuming. Counts requests and connections, so tests can check keep-alive.
+ */
+public class FixtureServer {
+
+	private static final int BUFFER_SIZE = 8 * 1024;
+
+	private final ServerSocket mSocket;
+	private final ExecutorService mExecutor = Executors.newCachedThreadPool(new ThreadFactory() {
+		private final AtomicInteger mCount = new AtomicInteger();
+		public Thread newThread(Runnable r) {
+			Thread thread = new Thread(r, "FixtureServer-" + mCount.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		}
+	});
+
+	private final Map<String, byte[]> mBodies = new ConcurrentHashMap<String, byte[]>();
+	private final Map<String, File> mFiles = new ConcurrentHashMap<String, File>();
+	private final List<Socket> mConnections = new ArrayList<Socket>();
+
+	// Bytes after which the next responses for a path are cut off, and how many more times
+	private final Map<String, int[]> mDrops = new HashMap<String, int[]>();
+
+	private volatile long mLatencyMillis = 0;
+	private volatile long mBytesPerSecond = 0;
+	private volatile boolean mRanges = true;
+
+	private final AtomicInteger mRequests = new AtomicInteger();
+	private final AtomicInteger mRangeRequests = new AtomicInteger();
+	private final AtomicInteger mConnectionCount = new AtomicInteger();
+
+	public FixtureServer() throws IOException {
+		mSocket = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+		mExecutor.execute(new Runnable() {
+			public void run() {
+				accept();
+			}
+		});
+	}
+
+	public URL url(String path) {
+		try {
+			return new URL("http", "127.0.0.1", mSocket.getLocalPort(), path);
+		} catch (MalformedURLException e) {
+			throw new IllegalArgumentException(path, e);
+		}
+	}
+
+	public void put(String path, byte[] body) {
+		mFiles.remove(path);
+		mBodies.put(path, body);
+	}
+
+	// Serves a file's contents, read as each response is sent
+
+	public void put(String path, File body) {
+		mBodies.remove(path);
+		mFiles.put(path, body);
+	}
+
+	public void remove(String path) {
+		mBodies.remove(path);
+		mFiles.remove(path);
+	}
+
+	// Waits this long before each response, like a round trip to the real server
+
+	public void setLatency(long millis) {
+		mLatencyMillis = millis;
+	}
+
+	// Caps each response at this many bytes a second, or 0 for no cap
+
+	public void setBytesPerSecond(long bytesPerSecond) {
+		mBytesPerSecond = bytesPerSecond;
+	}
+
+	// Whether Range requests are honoured, rather than answered with the whole body
+
+	public void setRangesSupported(boolean supported) {
+		mRanges = supported;
+	}
+
+	// Closes the connection after sending bytes of the body, for the next times responses
+	// for path
+
+	public synchronized void dropAfter(String path, int bytes, int times) {
+		mDrops.put(path, new int[] { bytes, times });
+	}
+
+	public int getRequestCount() {
+		return mRequests.get();
+	}
+
+	public int getRangeRequestCount() {
+		return mRangeRequests.get();
+	}
+
+	public int getConnectionCount() {
+		return mConnectionCount.get();
+	}
+
+	public void close() {
+		try {
+			mSocket.close();
+		} catch (IOException e) {
+			// Ignore
+		}
+		synchronized(mConnections) {
+			for(Socket socket : mConnections) {
+				try {
+					socket.close();
+				} catch (IOException e) {
+					// Ignore
+				}
+			}
+		}
+		mExecutor.shutdownNow();
+	}
+
+	private void accept() {
+		while(! mSocket.isClosed()) {
+			final Socket socket;
+			try {
+				socket = mSocket.accept();
+			} catch (IOException e) {
+				return;
+			}
+			mConnectionCount.incrementAndGet();
+			synchronized(mConnections) {
+				mConnections.add(socket);
+			}
+			try {
+				mExecutor.execute(new Runnable() {
+					public void run() {
+						serve(socket);
+					}
+				});
+			} catch (RejectedExecutionException e) {
+				// Accepted just as the server was closed
+				try {
+					socket.close();
+				} catch (IOException ignored) {
+					// Ignore
+				}
+				return;
+			}
+		}
+	}
+
+	private void serve(Socket socket) {
+		try {
+			socket.setTcpNoDelay(true);
+			InputStream in = new BufferedInputStream(socket.getInputStream());
+			OutputStream out = socket.getOutputStream();
+			while(true) {
+				String request = readLine(in);
+				if(request == null || request.length() == 0) break;
+				Map<String, String> headers = new HashMap<String, String>();
+				String line;
+				while((line = readLine(in)) != null && line.length() > 0) {
+					int colon = line.indexOf(':');
+					if(colon > 0) {
+						headers.put(line.substring(0, colon).trim().toLowerCase(Locale.US), line.substring(colon + 1).trim());
+					}
+				}
+				if(! respond(request, headers, out)) break;
+			}
+		} catch (IOException e) {
+			// Client went away
+		} finally {
+			try {
+				socket.close();
+			} catch (IOException e) {
+				// Ignore
+			}
+			synchronized(mConnections) {
+				mConnections.remove(socket);
+			}
+		}
+	}
+
+	// Returns whether the connection can be used for another request
+
+	private boolean respond(String request, Map<String, String> headers, OutputStream out) throws IOException {
+		mRequests.incrementAndGet();
+		String[] parts = request.split(" ");
+		String path = parts.length > 1 ? parts[1] : "/";
+		int query = path.indexOf('?');
+		if(query != -1) path = path.substring(0, query);
+
+		sleep(mLatencyMillis);
+
+		byte[] body = mBodies.get(path);
+		File file = body == null ? mFiles.get(path) : null;
+		if(body == null && file == null) {
+			byte[] message = ("Not found: " + path).getBytes("UTF-8");
+			writeHead(out, "404 Not Found", message.length, null);
+			out.write(message);
+			out.flush();
+			return true;
+		}
+
+		long length = body != null ? body.length : file.length();
+		long start = 0;
+		String status = "200 OK";
+		String contentRange = null;
+		String range = headers.get("range");
+		if(range != null && mRanges && range.startsWith("bytes=") && range.endsWith("-")) {
+			mRangeRequests.incrementAndGet();
+			start = Long.parseLong(range.substring(6, range.length() - 1));
+			if(start >= length) {
+				writeHead(out, "416 Range Not Satisfiable", 0, "bytes */" + length);
+				out.flush();
+				return true;
+			}
+			status = "206 Partial Content";
+			contentRange = "bytes " + start + "-" + (length - 1) + "/" + length;
+		}
+
+		int drop = takeDrop(path);
+		writeHead(out, status, length - start, contentRange);
+		RandomAccessFile source = null;
+		byte[] buffer = body;
+		if(file != null) {
+			source = new RandomAccessFile(file, "r");
+			source.seek(start);
+			buffer = new byte[BUFFER_SIZE];
+		}
+		try {
+			long began = System.nanoTime();
+			long sent = 0;
+			while(start + sent < length) {
+				int len = (int) Math.min(BUFFER_SIZE, length - start - sent);
+				int offset = (int) (start + sent);
+				if(source != null) {
+					source.readFully(buffer, 0, len);
+					offset = 0;
+				}
+				if(drop >= 0 && sent + len > drop) {
+					out.write(buffer, offset, (int) (drop - sent));
+					out.flush();
+					return false;
+				}
+				out.write(buffer, offset, len);
+				sent += len;
+				throttle(sent, began);
+			}
+		} finally {
+			if(source != null) source.close();
+		}
+		out.flush();
+		return true;
+	}
+
+	private synchronized int takeDrop(String path) {
+		int[] drop = mDrops.get(path);
+		if(drop == null) return -1;
+		if(--drop[1] <= 0) mDrops.remove(path);
+		return drop[0];
+	}
+
+	private void throttle(long sent, long began) {
+		long bytesPerSecond = mBytesPerSecond;
+		if(bytesPerSecond <= 0) return;
+		long due = began + sent * 1000000000L / bytesPerSecond;
+		long wait = due - System.nanoTime();
+		if(wait > 0) sleep(wait / 1000000);
+	}
+
+	private static void writeHead(OutputStream out, String status, long length, String contentRange) throws IOException {
+		StringBuilder head = new StringBuilder();
+		head.append("HTTP/1.1 ").append(status).append("\r\n");
+		head.append("Content-Length: ").append(length).append("\r\n");
+		head.append("Content-Type: application/octet-stream\r\n");
+		head.append("Accept-Ranges: bytes\r\n");
+		if(contentRange != null) head.append("Content-Range: ").append(contentRange).append("\r\n");
+		head.append("\r\n");
+		out.write(head.toString().getBytes("US-ASCII"));
+	}
+
+	private static String readLine(InputStream in) throws IOException {
+		ByteArrayOutputStream line = new ByteArrayOutputStream();
+		int b;
+		while((b = in.read()) != -1) {
+			if(b == '\n') break;
+			if(b != '\r') line.write(b);
+		}
+		if(b == -1 && line.size() == 0) return null;
+		return line.toString("US-ASCII");
+	}
+
+	private static void sleep(long millis) {
+		if(millis <= 0) return;
+		try {
+			Thread.sleep(millis);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+}
@@ -0,0 +1,54 @@
+package com.michoelchaikin.hebrewbooks.fixtures;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+
+import com.michoelchaikin.hebrewbooks.utils.Log;
+
+/**
+ * Small helpers shared by the tests, benchmarks and harnesses.
+ */
+public class Fixtures {
+
+	private Fixtures() {
+	}
+
+	// Drops the pipeline's log messages, which would otherwise swamp a benchmark's output
+
+	public static void silenceLogs() {
+		Log.setLogger(new Log.Logger() {
+			public void log(int priority, String tag, String message) {
+			}
+		});
+	}
+
+	// A new empty directory under the system's temporary directory
+
+	public static File newDirectory(String prefix) throws IOException {
+		return Files.createTempDirectory(prefix).toFile();
+	}
+
+	public static void write(File file, byte[] bytes) throws IOException {
+		OutputStream out = new FileOutputStream(file);
+		try {
+			out.write(bytes);
+		} finally {
+			out.close();
+		}
+	}
+
+	// Deletes a file, or a directory and everything in it
+
+	public static void delete(File file) {
+		File[] children = file.listFiles();
+		if(children != null) {
+			for(File child : children) {
+				delete(child);
+			}
+		}
+		file.delete();
+	}
+}
@@ -0,0 +1,116 @@
+package com.michoelchaikin.hebrewbooks.fixtures;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Builds book pages laid out like the ones on hebrewbooks.org: an ASP.NET form with a
+ * long view state, navigation chrome, the metadata labels and links, and the thumbnail.
+ */
+public class SamplePages {
+
+	// Key of the thumbnail's source in the metadata, as HebrewBook has it
+	public static final String THUMBNAIL = "thumbnail";
+
+	// Bytes of view state in a typical book page
+	public static final int VIEW_STATE_SIZE = 120 * 1024;
+
+	private SamplePages() {
+	}
+
+	// The fields HebrewBook reads, with the values the page below shows
+
+	public static Map<String, String> metadata(int bookID, int pages) {
+		Map<String, String> metadata = new LinkedHashMap<String, String>();
+		metadata.put("ctl00_cpMstr_lblHebSefername", "ספר בדיקה " + bookID);
+		metadata.put("ctl00_cpMstr_lblSefername", "Sefer Bedikah " + bookID);
+		metadata.put("ctl00_cpMstr_lblHebAuth", "מחבר בדיקה");
+		metadata.put("ctl00_cpMstr_lblAuth", "Test Author");
+		metadata.put("ctl00_cpMstr_lblHebPlace", "וילנא");
+		metadata.put("ctl00_cpMstr_lblPlace", "Vilna");
+		metadata.put("ctl00_cpMstr_lblHebDate", "תרנ\"ד");
+		metadata.put("ctl00_cpMstr_lblDate", "1894");
+		metadata.put("ctl00_cpMstr_hlOCLC", "12345678");
+		metadata.put("ctl00_cpMstr_hlULI", "000123456");
+		metadata.put("ctl00_cpMstr_lblSrc", "Test collection & friends");
+		metadata.put("ctl00_cpMstr_lblCat", "Halacha");
+		metadata.put("ctl00_cpMstr_lblDesc", "A book made up for tests, with <no> real content.");
+		metadata.put("ctl00_cpMstr_lblPages", Integer.toString(pages));
+		metadata.put(THUMBNAIL, "thumbs/" + bookID + ".jpg");
+		return metadata;
+	}
+
+	// Ids of the elements holding the fields, in the order they are on the page
+
+	public static String[] ids() {
+		Map<String, String> metadata = metadata(0, 0);
+		metadata.remove(THUMBNAIL);
+		return metadata.keySet().toArray(new String[metadata.size()]);
+	}
+
+	// The book's page, with a view state of viewStateSize bytes
+
+	public static String bookPage(int bookID, int pages, int viewStateSize) {
+		Map<String, String> metadata = metadata(bookID, pages);
+		StringBuilder html = new StringBuilder(viewStateSize + 16 * 1024);
+		html.append("<!DOCTYPE html PUBLIC \"-//W3C//DTD XHTML 1.0 Transitional//EN\">\r\n");
+		html.append("<html xmlns=\"http://www.w3.org/1999/xhtml\" >\r\n<head><title>\r\n\tHebrewBooks.org Sefer Detail\r\n</title>\r\n");
+		html.append("<meta http-equiv=\"Content-Type\" content=\"text/html; charset=utf-8\" />\r\n");
+		html.append("<link href=\"css/main.css\" rel=\"stylesheet\" type=\"text/css\" />\r\n");
+		html.append("<script type=\"text/javascript\">var a = '<span id=\"ctl00_fake\">';</script>\r\n</head>\r\n<body>\r\n");
+		html.append("<form name=\"aspnetForm\" method=\"post\" action=\"").append(bookID).append("\" id=\"aspnetForm\">\r\n");
+		html.append("<div>\r\n<input type=\"hidden\" name=\"__VIEWSTATE\" id=\"__VIEWSTATE\" value=\"");
+		Random random = new Random(bookID);
+		String base64 = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/";
+		for(int i = 0; i < viewStateSize; i++) {
+			html.append(base64.charAt(random.nextInt(base64.length())));
+		}
+		html.append("\" />\r\n</div>\r\n");
+
+		// Navigation chrome
+		html.append("<table class=\"nav\" cellpadding=\"0\" cellspacing=\"0\">\r\n");
+		for(int i = 0; i < 60; i++) {
+			html.append("<tr><td><a href=\"browse.aspx?cat=").append(i).append("\">Category ").append(i)
+					.append("</a></td><td><img src=\"images/arrow.gif\" alt=\"\" /></td></tr>\r\n");
+		}
+		html.append("</table>\r\n");
+
+		html.append("<div id=\"ctl00_cpMstr_pnlDetail\">\r\n<table class=\"detail\">\r\n");
+		html.append("<tr><td rowspan=\"8\"><img src=\"").append(metadata.get(THUMBNAIL)).append("\" alt=\"\" border=0></td></tr>\r\n");
+		for(Map.Entry<String, String> field : metadata.entrySet()) {
+			String id = field.getKey();
+			if(id.equals(THUMBNAIL)) continue;
+			String value = escape(field.getValue());
+			html.append("<tr><td class=\"label\">").append(id.substring(id.lastIndexOf('_') + 1)).append(":</td><td>");
+			if(id.contains("_hl")) {
+				html.append("<a id=\"").append(id).append("\" href=\"http://example.org/").append(value).append("\">")
+						.append(value).append("</a>");
+			} else if(id.endsWith("lblDesc")) {
+				// Nested markup and spacing, which text() flattens
+				html.append("<span id='").append(id).append("'>\r\n  <b>").append(value.substring(0, 6))
+						.append("</b>   <span>").append(value.substring(6)).append("</span>\r\n</span>");
+			} else {
+				html.append("<span id=\"").append(id).append("\">").append(value).append("</span>");
+			}
+			html.append("</td></tr>\r\n");
+		}
+		html.append("</table>\r\n</div>\r\n");
+
+		// More of the page after the fields, which the scan never gets to
+		for(int i = 0; i < 200; i++) {
+			html.append("<div class=\"related\"><a href=\"").append(bookID + i).append("\"><img src=\"images/book.gif\" /> Related book ")
+					.append(i).append("</a></div>\r\n");
+		}
+		html.append("</form>\r\n</body>\r\n</html>\r\n");
+		return html.toString();
+	}
+
+	public static String bookPage(int bookID, int pages) {
+		return bookPage(bookID, pages, VIEW_STATE_SIZE);
+	}
+
+	private static String escape(String text) {
+		return text.replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;").replace("\"", "&quot;");
+	}
+}
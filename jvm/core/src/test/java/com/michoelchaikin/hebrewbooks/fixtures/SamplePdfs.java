@@ -0,0 +1,200 @@
+package com.michoelchaikin.hebrewbooks.fixtures;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Random;
+
+import javax.imageio.ImageIO;
+
+import com.itextpdf.text.Document;
+import com.itextpdf.text.DocumentException;
+import com.itextpdf.text.Image;
+import com.itextpdf.text.Rectangle;
+import com.itextpdf.text.pdf.PdfWriter;
+
+/**
+ * Builds PDFs shaped like the ones hebrewbooks.org serves: a page feed PDF is one page
+ * holding a single scanned image, and a whole-book PDF is one such page per page.
+ *
+ * The scans are JPEGs of grey lines of "text" on a white page, so they compress about as
+ * well as real ones. Everything is generated from a seed, so the same call gives the same
+ * bytes.
+ */
+public class SamplePdfs {
+
+	private SamplePdfs() {
+	}
+
+	// A scanned page of the given size
+
+	public static byte[] scan(int width, int height, long seed) {
+		BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_BYTE_GRAY);
+		Graphics2D graphics = image.createGraphics();
+		graphics.setColor(Color.WHITE);
+		graphics.fillRect(0, 0, width, height);
+
+		Random random = new Random(seed);
+		int lineHeight = Math.max(4, height / 40);
+		for(int y = lineHeight; y < height - lineHeight; y += lineHeight * 3 / 2) {
+			int x = width / 12;
+			while(x < width - width / 12) {
+				int word = lineHeight + random.nextInt(lineHeight * 4);
+				graphics.setColor(new Color(random.nextInt(60), random.nextInt(60), random.nextInt(60)));
+				graphics.fillRect(x, y, Math.min(word, width - width / 12 - x), lineHeight * 2 / 3);
+				x += word + lineHeight / 2;
+			}
+		}
+		graphics.dispose();
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		try {
+			ImageIO.write(image, "jpg", out);
+		} catch (IOException e) {
+			throw new IllegalStateException(e);
+		}
+		return out.toByteArray();
+	}
+
+	// A page feed PDF holding image, a JPEG of width by height pixels
+
+	public static byte[] page(byte[] image, int width, int height) {
+		ByteArrayOutputStream out = new ByteArrayOutputStream(image.length + 2048);
+		write(out, new byte[][] { image }, width, height);
+		return out.toByteArray();
+	}
+
+	// A page feed PDF of a newly scanned page
+
+	public static byte[] page(int width, int height, long seed) {
+		return page(scan(width, height, seed), width, height);
+	}
+
+	// A whole-book PDF of pages scanned pages, written straight to a file as it can be large.
+	// The pages are scanned from a handful of seeds, so building a long book stays quick
+
+	public static void book(File file, int pages, int width, int height) throws IOException {
+		byte[][] scans = new byte[Math.min(pages, 8)][];
+		for(int i = 0; i < scans.length; i++) {
+			scans[i] = scan(width, height, i);
+		}
+		byte[][] images = new byte[pages][];
+		for(int i = 0; i < pages; i++) {
+			images[i] = scans[i % scans.length];
+		}
+
+		OutputStream out = new FileOutputStream(file);
+		try {
+			write(out, images, width, height);
+		} finally {
+			out.close();
+		}
+	}
+
+	// A PDF of pages scanned pages whose images are imageSize bytes each: a width by height
+	// scan, padded out with zeros after its end, which decoders ignore. It is written by
+	// hand, a page at a time, so a file larger than the heap can be made
+
+	public static void padded(File file, int pages, int width, int height, long imageSize) throws IOException {
+		byte[] scan = scan(width, height, 1);
+		if(imageSize < scan.length) throw new IllegalArgumentException("Image smaller than the scan");
+
+		CountingOutputStream out = new CountingOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+		try {
+			// Objects 1 and 2 are the catalog and page tree, then an image, content stream
+			// and page for every page
+			long[] offsets = new long[3 + 3 * pages];
+			out.ascii("%PDF-1.4\n");
+			for(int i = 0; i < pages; i++) {
+				int image = 3 + 3 * i;
+				offsets[image] = out.mCount;
+				out.ascii(image + " 0 obj\n<< /Type /XObject /Subtype /Image /Width " + width + " /Height " + height
+						+ " /ColorSpace /DeviceGray /BitsPerComponent 8 /Filter /DCTDecode /Length " + imageSize + " >>\nstream\n");
+				out.write(scan);
+				byte[] zeros = new byte[64 * 1024];
+				for(long left = imageSize - scan.length; left > 0; left -= zeros.length) {
+					out.write(zeros, 0, (int) Math.min(left, zeros.length));
+				}
+				out.ascii("\nendstream\nendobj\n");
+
+				String content = "q " + width + " 0 0 " + height + " 0 0 cm /Im0 Do Q";
+				offsets[image + 1] = out.mCount;
+				out.ascii((image + 1) + " 0 obj\n<< /Length " + content.length() + " >>\nstream\n" + content + "\nendstream\nendobj\n");
+
+				offsets[image + 2] = out.mCount;
+				out.ascii((image + 2) + " 0 obj\n<< /Type /Page /Parent 2 0 R /MediaBox [0 0 " + width + " " + height
+						+ "] /Resources << /XObject << /Im0 " + image + " 0 R >> >> /Contents " + (image + 1) + " 0 R >>\nendobj\n");
+			}
+
+			offsets[1] = out.mCount;
+			out.ascii("1 0 obj\n<< /Type /Catalog /Pages 2 0 R >>\nendobj\n");
+			offsets[2] = out.mCount;
+			StringBuilder kids = new StringBuilder();
+			for(int i = 0; i < pages; i++) {
+				kids.append(5 + 3 * i).append(" 0 R ");
+			}
+			out.ascii("2 0 obj\n<< /Type /Pages /Kids [" + kids + "] /Count " + pages + " >>\nendobj\n");
+
+			long xref = out.mCount;
+			out.ascii("xref\n0 " + offsets.length + "\n0000000000 65535 f \n");
+			for(int i = 1; i < offsets.length; i++) {
+				out.ascii(String.format("%010d 00000 n \n", offsets[i]));
+			}
+			out.ascii("trailer\n<< /Size " + offsets.length + " /Root 1 0 R >>\nstartxref\n" + xref + "\n%%EOF\n");
+		} finally {
+			out.close();
+		}
+	}
+
+	private static void write(OutputStream out, byte[][] images, int width, int height) {
+		Document document = new Document(new Rectangle(width, height), 0, 0, 0, 0);
+		try {
+			PdfWriter.getInstance(document, out);
+			document.open();
+			for(int i = 0; i < images.length; i++) {
+				if(i > 0) document.newPage();
+				Image image = Image.getInstance(images[i]);
+				image.setAbsolutePosition(0, 0);
+				image.scaleAbsolute(width, height);
+				document.add(image);
+			}
+			document.close();
+		} catch (DocumentException e) {
+			throw new IllegalStateException(e);
+		} catch (IOException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private static class CountingOutputStream extends FilterOutputStream {
+
+		long mCount;
+
+		CountingOutputStream(OutputStream out) {
+			super(out);
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			out.write(b);
+			mCount++;
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			out.write(b, off, len);
+			mCount += len;
+		}
+
+		void ascii(String text) throws IOException {
+			write(text.getBytes("US-ASCII"));
+		}
+	}
+}
@@ -0,0 +1,61 @@
+package com.michoelchaikin.hebrewbooks.utils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.Locale;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.michoelchaikin.hebrewbooks.fixtures.SamplePages;
+
+public class HtmlMetadataExtractorTest {
+
+	private Locale mLocale;
+
+	@Before
+	public void setUp() {
+		mLocale = Locale.getDefault();
+	}
+
+	@After
+	public void tearDown() {
+		Locale.setDefault(mLocale);
+	}
+
+	@Test
+	public void extractsBookPage() throws IOException {
+		HtmlMetadataExtractor extractor = new HtmlMetadataExtractor(SamplePages.ids(), "thumbs");
+
+		assertTrue(extractor.extract(new StringReader(SamplePages.bookPage(7, 42))));
+		assertEquals("thumbs/7.jpg", extractor.getImageSource());
+		Map<String, String> text = extractor.getText();
+		assertEquals("Sefer Bedikah 7", text.get("ctl00_cpMstr_lblSefername"));
+		assertEquals("Test collection & friends", text.get("ctl00_cpMstr_lblSrc"));
+		assertEquals("A book made up for tests, with <no> real content.", text.get("ctl00_cpMstr_lblDesc"));
+		assertEquals("42", text.get("ctl00_cpMstr_lblPages"));
+	}
+
+	@Test
+	public void extractsUppercaseMarkupInTurkishLocale() throws IOException {
+		// Lowercasing with the default locale would turn the I of IMG and ID into a dotless i
+		Locale.setDefault(new Locale("tr", "TR"));
+		String html = "<HTML><BODY>\r\n"
+				+ "<DIV ID=\"ctl00_cpMstr_pnlDetail\"><IMG SRC=\"images/logo.gif\"><IMG SRC='thumbs/7.jpg' BORDER=0>\r\n"
+				+ "<SPAN ID=\"ctl00_cpMstr_lblSefername\">Sefer <I>Bedikah</I><BR>7</SPAN>\r\n"
+				+ "<A Id=ctl00_cpMstr_hlOCLC HREF=\"http://example.org/12345678\">12345678</A>\r\n"
+				+ "</DIV></BODY></HTML>\r\n";
+		HtmlMetadataExtractor extractor = new HtmlMetadataExtractor(
+				new String[] { "ctl00_cpMstr_lblSefername", "ctl00_cpMstr_hlOCLC" }, "thumbs");
+
+		assertTrue(extractor.extract(new StringReader(html)));
+		assertEquals("thumbs/7.jpg", extractor.getImageSource());
+		assertEquals("Sefer Bedikah 7", extractor.getText().get("ctl00_cpMstr_lblSefername"));
+		assertEquals("12345678", extractor.getText().get("ctl00_cpMstr_hlOCLC"));
+	}
+}
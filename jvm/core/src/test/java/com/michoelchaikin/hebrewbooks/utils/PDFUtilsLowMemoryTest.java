@@ -0,0 +1,93 @@
+package com.michoelchaikin.hebrewbooks.utils;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.itextpdf.text.pdf.PdfReader;
+import com.michoelchaikin.hebrewbooks.fixtures.Fixtures;
+import com.michoelchaikin.hebrewbooks.fixtures.SamplePdfs;
+
+/**
+ * Extraction from PDFs larger than the heap. The core pom runs this class on its own in a
+ * JVM with a 32 MB heap, where reading the whole file into memory runs out of it.
+ */
+public class PDFUtilsLowMemoryTest {
+
+	private static final int WIDTH = 800;
+	private static final int HEIGHT = 1120;
+
+	private File mDir;
+
+	@Before
+	public void setUp() throws IOException {
+		Fixtures.silenceLogs();
+		mDir = Fixtures.newDirectory("lowmemory");
+	}
+
+	@After
+	public void tearDown() {
+		Fixtures.delete(mDir);
+	}
+
+	@Test
+	public void extractsPageLargerThanHeap() throws IOException {
+		long size = 2 * Runtime.getRuntime().maxMemory();
+		File pdf = new File(mDir, "hebrewbooks_org_1_1.pdf");
+		SamplePdfs.padded(pdf, 1, WIDTH, HEIGHT, size);
+
+		File image = PDFUtils.extractImage(pdf, mDir);
+		assertNotNull(image);
+		assertEquals(size, image.length());
+		byte[] scan = SamplePdfs.scan(WIDTH, HEIGHT, 1);
+		assertArrayEquals(scan, readStart(image, scan.length));
+	}
+
+	// Importing a whole book larger than the heap, a page at a time through iText
+
+	@Test
+	public void importsBookLargerThanHeap() throws IOException {
+		long imageSize = 1024 * 1024;
+		int pages = (int) (2 * Runtime.getRuntime().maxMemory() / imageSize);
+		File pdf = new File(mDir, "hebrewbooks_org_1.pdf");
+		SamplePdfs.padded(pdf, pages, WIDTH, HEIGHT, imageSize);
+
+		File image = new File(mDir, "page.png");
+		PdfReader reader = PDFUtils.open(pdf);
+		try {
+			for(int page = 1; page <= pages; page++) {
+				assertTrue("Page " + page, PDFUtils.extractImage(reader, page, image));
+				assertEquals(imageSize, image.length());
+				image.delete();
+			}
+		} finally {
+			reader.close();
+		}
+	}
+
+	private static byte[] readStart(File file, int length) throws IOException {
+		byte[] bytes = new byte[length];
+		InputStream in = new FileInputStream(file);
+		try {
+			int read = 0;
+			while(read < length) {
+				int len = in.read(bytes, read, length - read);
+				if(len == -1) break;
+				read += len;
+			}
+		} finally {
+			in.close();
+		}
+		return bytes;
+	}
+}
@@ -0,0 +1,102 @@
+package com.michoelchaikin.hebrewbooks.utils;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.itextpdf.text.Document;
+import com.itextpdf.text.Image;
+import com.itextpdf.text.Rectangle;
+import com.itextpdf.text.pdf.PdfReader;
+import com.itextpdf.text.pdf.PdfWriter;
+import com.michoelchaikin.hebrewbooks.fixtures.Fixtures;
+import com.michoelchaikin.hebrewbooks.fixtures.SamplePdfs;
+
+public class PDFUtilsTest {
+
+	private static final int WIDTH = 800;
+	private static final int HEIGHT = 1120;
+
+	private File mDir;
+	private File mPdf;
+	private File mImage;
+	private byte[] mScan;
+
+	@Before
+	public void setUp() throws IOException {
+		Fixtures.silenceLogs();
+		mDir = Fixtures.newDirectory("pdfutils");
+		mPdf = new File(mDir, "hebrewbooks_org_1_1.pdf");
+		mImage = new File(mDir, "hebrewbooks_org_1_1.png");
+		mScan = SamplePdfs.scan(WIDTH, HEIGHT, 1);
+	}
+
+	@After
+	public void tearDown() {
+		Fixtures.delete(mDir);
+	}
+
+	@Test
+	public void copiesImageOutOfPageFeedPdf() throws IOException {
+		Fixtures.write(mPdf, SamplePdfs.page(mScan, WIDTH, HEIGHT));
+		assertTrue(PdfImageLocator.extract(mPdf, mImage));
+		assertArrayEquals(mScan, Files.readAllBytes(mImage.toPath()));
+	}
+
+	// The copy matches what parsing the page with iText gives
+
+	@Test
+	public void matchesParsedImage() throws IOException {
+		Fixtures.write(mPdf, SamplePdfs.page(mScan, WIDTH, HEIGHT));
+		assertNotNull(PDFUtils.extractImage(mPdf, mDir));
+		byte[] copied = Files.readAllBytes(mImage.toPath());
+
+		mImage.delete();
+		PdfReader reader = PDFUtils.open(mPdf);
+		try {
+			assertTrue(PDFUtils.extractImage(reader, 1, mImage));
+		} finally {
+			reader.close();
+		}
+		assertArrayEquals(Files.readAllBytes(mImage.toPath()), copied);
+	}
+
+	// A PDF with a cross-reference stream is left to iText
+
+	@Test
+	public void fallsBackToParsing() throws Exception {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		Document document = new Document(new Rectangle(WIDTH, HEIGHT), 0, 0, 0, 0);
+		PdfWriter writer = PdfWriter.getInstance(document, out);
+		writer.setFullCompression();
+		document.open();
+		Image image = Image.getInstance(mScan);
+		image.setAbsolutePosition(0, 0);
+		document.add(image);
+		document.close();
+		Fixtures.write(mPdf, out.toByteArray());
+
+		assertFalse(PdfImageLocator.extract(mPdf, mImage));
+		mImage.delete();
+		assertNotNull(PDFUtils.extractImage(mPdf, mDir));
+		assertArrayEquals(mScan, Files.readAllBytes(mImage.toPath()));
+	}
+
+	@Test
+	public void failsOnPdfWithoutImage() throws IOException {
+		Fixtures.write(mPdf, "%PDF-1.4\nnot really a PDF\n".getBytes("US-ASCII"));
+		assertNull(PDFUtils.extractImage(mPdf, mDir));
+		assertFalse(mImage.exists());
+	}
+}
@@ -0,0 +1,89 @@
+package com.michoelchaikin.hebrewbooks.utils;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.michoelchaikin.hebrewbooks.fixtures.FixtureServer;
+import com.michoelchaikin.hebrewbooks.fixtures.Fixtures;
+import com.michoelchaikin.hebrewbooks.fixtures.SamplePdfs;
+
+public class PageFetchClientTest {
+
+	private static final String PATH = "/pagefeed/hebrewbooks_org_1_1.pdf";
+
+	// Bytes the server sends of each response it drops
+	private static final int DROP_AFTER = 20000;
+
+	private File mDir;
+	private File mFile;
+	private FixtureServer mServer;
+	private byte[] mPdf;
+
+	@Before
+	public void setUp() throws IOException {
+		Fixtures.silenceLogs();
+		mDir = Fixtures.newDirectory("fetch");
+		mFile = new File(mDir, "page.pdf");
+		mServer = new FixtureServer();
+		mPdf = SamplePdfs.page(1200, 1800, 1);
+		assertTrue(mPdf.length > 5 * DROP_AFTER);
+		mServer.put(PATH, mPdf);
+	}
+
+	@After
+	public void tearDown() {
+		mServer.close();
+		Fixtures.delete(mDir);
+	}
+
+	@Test
+	public void resumesDroppedDownload() throws IOException {
+		mServer.dropAfter(PATH, DROP_AFTER, 2);
+		PageFetchClient.getInstance().download(mServer.url(PATH), mFile);
+
+		assertArrayEquals(mPdf, Files.readAllBytes(mFile.toPath()));
+		assertEquals(2, mServer.getRangeRequestCount());
+		assertFalse(PageFetchClient.getPartFile(mFile).exists());
+	}
+
+	@Test
+	public void startsOverWhenRangesAreIgnored() throws IOException {
+		mServer.setRangesSupported(false);
+		mServer.dropAfter(PATH, DROP_AFTER, 1);
+		PageFetchClient.getInstance().download(mServer.url(PATH), mFile);
+
+		assertArrayEquals(mPdf, Files.readAllBytes(mFile.toPath()));
+	}
+
+	// A download that keeps breaking off fails without leaving a truncated file in place,
+	// and the next one carries on from what was received
+
+	@Test
+	public void keepsPartOfFailedDownload() throws IOException {
+		mServer.dropAfter(PATH, DROP_AFTER, 4);
+		try {
+			PageFetchClient.getInstance().download(mServer.url(PATH), mFile);
+			fail("Download succeeded through every drop");
+		} catch (IOException e) {
+			// Expected
+		}
+		assertFalse(mFile.exists());
+		File part = PageFetchClient.getPartFile(mFile);
+		assertEquals(4 * DROP_AFTER, part.length());
+
+		PageFetchClient.getInstance().download(mServer.url(PATH), mFile);
+		assertArrayEquals(mPdf, Files.readAllBytes(mFile.toPath()));
+		assertEquals(4, mServer.getRangeRequestCount());
+	}
+}
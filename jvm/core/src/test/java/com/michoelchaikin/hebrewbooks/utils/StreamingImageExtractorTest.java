@@ -0,0 +1,166 @@
+package com.michoelchaikin.hebrewbooks.utils;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.michoelchaikin.hebrewbooks.fixtures.Fixtures;
+import com.michoelchaikin.hebrewbooks.fixtures.SamplePdfs;
+
+public class StreamingImageExtractorTest {
+
+	private File mDir;
+	private File mImage;
+	private File mPdf;
+	private File mPart;
+
+	@Before
+	public void setUp() throws IOException {
+		Fixtures.silenceLogs();
+		mDir = Fixtures.newDirectory("extractor");
+		mImage = new File(mDir, "page.png");
+		mPdf = new File(mDir, "page.pdf");
+		mPart = PageFetchClient.getPartFile(mPdf);
+	}
+
+	@After
+	public void tearDown() {
+		Fixtures.delete(mDir);
+	}
+
+	@Test
+	public void extractsImageWithoutKeepingPdf() throws IOException {
+		byte[] scan = SamplePdfs.scan(1200, 1800, 1);
+		byte[] pdf = SamplePdfs.page(scan, 1200, 1800);
+		StreamingImageExtractor extractor = new StreamingImageExtractor(pdf.length, mPart);
+
+		assertTrue(extractor.extract(new ByteArrayInputStream(pdf), mImage));
+		assertArrayEquals(scan, Files.readAllBytes(mImage.toPath()));
+		assertFalse(mPart.exists());
+		assertFalse(extractor.isComplete());
+		assertEquals(scan.length, extractor.getBytesWritten());
+	}
+
+	@Test
+	public void keepsPdfWithoutImage() throws IOException {
+		byte[] pdf = pdf(4096);
+		StreamingImageExtractor extractor = new StreamingImageExtractor(pdf.length, mPart);
+
+		assertFalse(extractor.extract(new ByteArrayInputStream(pdf), mImage));
+		assertFalse(mPart.exists());
+		assertTrue(extractor.isComplete());
+		extractor.savePdf(mPdf);
+		assertArrayEquals(pdf, Files.readAllBytes(mPdf.toPath()));
+	}
+
+	@Test
+	public void movesLargePdfToPartFile() throws IOException {
+		byte[] pdf = pdf(1024 * 1024);
+		StreamingImageExtractor extractor = new StreamingImageExtractor(pdf.length, mPart);
+
+		assertFalse(extractor.extract(new ByteArrayInputStream(pdf), mImage));
+		assertTrue(mPart.exists());
+		assertTrue(extractor.isComplete());
+		extractor.savePdf(mPdf);
+		assertFalse(mPart.exists());
+		assertArrayEquals(pdf, Files.readAllBytes(mPdf.toPath()));
+	}
+
+	@Test
+	public void keepsStartOfPdfWhenImageBreaksOff() throws IOException {
+		byte[] scan = SamplePdfs.scan(1200, 1800, 2);
+		byte[] pdf = SamplePdfs.page(scan, 1200, 1800);
+		StreamingImageExtractor extractor = new StreamingImageExtractor(pdf.length, mPart);
+
+		try {
+			extractor.extract(new BreakingInputStream(pdf, pdf.length / 2), mImage);
+			fail("The transfer broke off");
+		} catch (IOException e) {
+			// Expected
+		}
+		assertFalse(extractor.isComplete());
+		assertFalse(mImage.exists());
+
+		// What was kept is where a resumed transfer can carry on from
+		extractor.savePdf(mPart);
+		byte[] kept = Files.readAllBytes(mPart.toPath());
+		assertTrue(kept.length > 0 && kept.length < pdf.length - scan.length);
+		assertArrayEquals(Arrays.copyOf(pdf, kept.length), kept);
+	}
+
+	// With no Content-Length, only reaching the end of the PDF shows it is all there
+
+	@Test
+	public void brokenOffPdfOfUnknownLengthIsNotComplete() throws IOException {
+		byte[] pdf = pdf(4096);
+		StreamingImageExtractor extractor = new StreamingImageExtractor(-1, mPart);
+
+		try {
+			extractor.extract(new BreakingInputStream(pdf, pdf.length / 2), mImage);
+			fail("The transfer broke off");
+		} catch (IOException e) {
+			// Expected
+		}
+		assertFalse(extractor.isComplete());
+		extractor.savePdf(mPart);
+		assertArrayEquals(Arrays.copyOf(pdf, pdf.length / 2), Files.readAllBytes(mPart.toPath()));
+
+		extractor = new StreamingImageExtractor(-1, mPart);
+		assertFalse(extractor.extract(new ByteArrayInputStream(pdf), mImage));
+		assertTrue(extractor.isComplete());
+	}
+
+	// Something shaped like a PDF, with a stream of streamLength bytes that is not an image
+
+	private static byte[] pdf(int streamLength) throws IOException {
+		byte[] stream = new byte[streamLength];
+		new Random(streamLength).nextBytes(stream);
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		out.write(("%PDF-1.4\n1 0 obj\n<< /Length " + streamLength + " /Filter /FlateDecode >>\nstream\n").getBytes("US-ASCII"));
+		out.write(stream);
+		out.write("\nendstream\nendobj\ntrailer\n<< /Size 2 >>\n%%EOF\n".getBytes("US-ASCII"));
+		return out.toByteArray();
+	}
+
+	// Gives the first count bytes of a PDF, then fails like a dropped connection
+
+	private static class BreakingInputStream extends InputStream {
+
+		private final ByteArrayInputStream mIn;
+		private int mRemaining;
+
+		BreakingInputStream(byte[] bytes, int count) {
+			mIn = new ByteArrayInputStream(bytes);
+			mRemaining = count;
+		}
+
+		@Override
+		public int read() throws IOException {
+			if(mRemaining-- <= 0) throw new IOException("Connection reset");
+			return mIn.read();
+		}
+
+		@Override
+		public int read(byte[] buffer, int offset, int count) throws IOException {
+			if(mRemaining <= 0) throw new IOException("Connection reset");
+			int len = mIn.read(buffer, offset, Math.min(count, mRemaining));
+			mRemaining -= len;
+			return len;
+		}
+	}
+}
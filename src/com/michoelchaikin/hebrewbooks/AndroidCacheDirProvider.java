@@ -0,0 +1,27 @@
+package com.michoelchaikin.hebrewbooks;
+
+import java.io.File;
+
+import android.content.Context;
+import android.os.Environment;
+
+/**
+ * The app's cache directory, on external storage when it is mounted.
+ */
+public class AndroidCacheDirProvider implements CacheDirProvider {
+
+	private final Context mContext;
+
+	public AndroidCacheDirProvider(Context context) {
+		mContext = context;
+	}
+
+	public File getCacheDir() {
+		String storageState = Environment.getExternalStorageState();
+		if (Environment.MEDIA_MOUNTED.equals(storageState)) {
+			return mContext.getExternalCacheDir();
+		} else {
+			return mContext.getCacheDir();
+		}
+	}
+}
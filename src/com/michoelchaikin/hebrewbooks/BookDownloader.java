@@ -0,0 +1,550 @@
+package com.michoelchaikin.hebrewbooks;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+import com.michoelchaikin.hebrewbooks.metrics.Tracer;
+import com.michoelchaikin.hebrewbooks.utils.BandwidthLimiter;
+import com.michoelchaikin.hebrewbooks.utils.Log;
+import com.michoelchaikin.hebrewbooks.utils.PageFetchClient;
+
+/**
+ * Downloads every page of a book, so it can be read offline.
+ *
+ * Pages go through the same states as the reader's pages in PageCacheManager, so each page
+ * is only fetched once, by one or the other, and a page the downloader finishes is ready
+ * for the reader straight away. A number of download threads take the pages in order and
+ * hand them to a number of extraction threads.
+ *
+ * The reader comes first. The downloader's threads run at low priority, hold back while
+ * the reader's own pages are loading, and are kept to one request per host fewer than
+ * the limit. Downloads share a bandwidth cap, except for the page the reader is on, if the
+ * downloader happens to have it.
+ *
+ * Progress is the pages in the book's pack, so it is kept however the process ends, and
+ * from the start the pack is kept out of the disk cache's eviction. The state file only
+ * records whether the download is running, paused or complete, and its settings. A
+ * download that was running when the book was closed carries on when it is opened again
+ * with resumeIfRunning(). Pausing stops transfers where they are, and they pick up from
+ * their ".part" files when the download is resumed.
+ */
+public class BookDownloader {
+
+	private static final String TAG = "BookDownloader";
+
+	public static final int DEFAULT_DOWNLOAD_THREADS = 2;
+	public static final int DEFAULT_EXTRACT_THREADS = 1;
+
+	private static final String DIRECTORY = "offline";
+	private static final String SUFFIX = ".state";
+
+	// Start of the state file, changed whenever its layout changes
+	private static final int MAGIC = 0x48424f44;
+	private static final int VERSION = 1;
+
+	// How long downloads hold back while the reader's pages are loading, and wait for pages
+	// the reader has before going round again
+	private static final long YIELD_MILLIS = 100;
+
+	public enum State {
+		// Never started
+		IDLE,
+		RUNNING,
+		// Paused, or stopped with pages that failed
+		PAUSED,
+		// Every page is in the book's pack
+		COMPLETE,
+	}
+
+	public interface Listener {
+		// Both are called on the downloader's threads
+		void onProgress(int pagesDone, int numPages);
+		void onStateChanged(State state);
+	}
+
+	private final PageCacheManager mCacheManager;
+	private final HebrewBook mBook;
+	private final File mStateFile;
+	private final BandwidthLimiter mLimiter = new BandwidthLimiter(0);
+	private volatile Listener mListener;
+
+	private State mState = State.IDLE;
+	private int mDownloadThreads = DEFAULT_DOWNLOAD_THREADS;
+	private int mExtractThreads = DEFAULT_EXTRACT_THREADS;
+	private int mFailedPages = 0;
+	private Run mRun = null;
+
+	public BookDownloader(PageCacheManager cacheManager) {
+		mCacheManager = cacheManager;
+		mBook = cacheManager.getBook();
+		mStateFile = new File(new File(mBook.getCacheDir(), DIRECTORY), mBook.getBookID() + SUFFIX);
+		load();
+	}
+
+	public void setListener(Listener listener) {
+		mListener = listener;
+	}
+
+	// Thread counts take effect the next time the download starts
+
+	public synchronized void setDownloadThreads(int threads) {
+		mDownloadThreads = Math.max(1, threads);
+		save();
+	}
+
+	public synchronized int getDownloadThreads() {
+		return mDownloadThreads;
+	}
+
+	public synchronized void setExtractThreads(int threads) {
+		mExtractThreads = Math.max(1, threads);
+		save();
+	}
+
+	public synchronized int getExtractThreads() {
+		return mExtractThreads;
+	}
+
+	// Bandwidth cap for all the downloads together, or 0 for none. Takes effect straight away
+
+	public synchronized void setMaxBytesPerSecond(long bytesPerSecond) {
+		mLimiter.setRate(Math.max(0, bytesPerSecond));
+		save();
+	}
+
+	public long getMaxBytesPerSecond() {
+		return mLimiter.getRate();
+	}
+
+	public synchronized State getState() {
+		return mState;
+	}
+
+	public int getPagesDone() {
+		return mCacheManager.countRendered();
+	}
+
+	// Pages that failed in the last run, which are tried again when it is resumed
+
+	public synchronized int getFailedPages() {
+		return mFailedPages;
+	}
+
+	// Starts downloading the pages not downloaded yet. Also resumes a paused download. A
+	// book with no pages, as one whose init() failed, is refused
+
+	public void start() {
+		if(mBook.getNumPages() < 1) {
+			Log.w(TAG, "Not downloading book " + mBook.getBookID() + ", it has no pages");
+			return;
+		}
+
+		synchronized(this) {
+			if(mRun != null) return;
+			Log.i(TAG, "Downloading book " + mBook.getBookID() + " with " + mDownloadThreads + " download and "
+					+ mExtractThreads + " extraction threads, " + mLimiter.getRate() + " bytes/s");
+			mBook.setOffline(true);
+			mRun = new Run(mDownloadThreads, mExtractThreads);
+			mState = State.RUNNING;
+			mFailedPages = 0;
+			save();
+			mRun.start();
+		}
+		notifyState(State.RUNNING);
+	}
+
+	// Carries on a download that was running when the book was last closed
+
+	public void resumeIfRunning() {
+		if(getState() == State.RUNNING) start();
+	}
+
+	public void pause() {
+		stop(State.PAUSED);
+	}
+
+	// Stops for now, as when the book is closed, leaving a running download to carry on the
+	// next time resumeIfRunning() is called
+
+	public void shutdown() {
+		stop(null);
+	}
+
+	private void stop(State state) {
+		Run run;
+		synchronized(this) {
+			run = mRun;
+			mRun = null;
+			if(state != null && mState == State.RUNNING) {
+				mState = state;
+				save();
+			}
+		}
+		if(run != null) run.stop();
+		if(state != null) notifyState(state);
+	}
+
+	// Called by a run that has gone through every page it could
+
+	private void finish(Run run, State state, int failedPages) {
+		synchronized(this) {
+			if(mRun != run) return;
+			mRun = null;
+			mState = state;
+			mFailedPages = failedPages;
+			save();
+		}
+		Log.i(TAG, "Book " + mBook.getBookID() + " " + state.name().toLowerCase(Locale.US) + ", " + failedPages + " pages failed");
+		notifyState(state);
+	}
+
+	private void notifyState(State state) {
+		Listener listener = mListener;
+		if(listener != null) listener.onStateChanged(state);
+	}
+
+	private void notifyProgress() {
+		Listener listener = mListener;
+		if(listener != null) listener.onProgress(mCacheManager.countRendered(), mBook.getNumPages());
+	}
+
+	private synchronized void load() {
+		if(! mStateFile.exists()) return;
+
+		try {
+			DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(mStateFile)));
+			try {
+				if(in.readInt() != MAGIC || in.readInt() != VERSION) {
+					Log.w(TAG, "Unknown state format for book " + mBook.getBookID());
+					return;
+				}
+
+				in.readLong();
+				State state = State.values()[in.readInt()];
+				int downloadThreads = in.readInt();
+				int extractThreads = in.readInt();
+				long bytesPerSecond = in.readLong();
+
+				mState = state;
+				mDownloadThreads = downloadThreads;
+				mExtractThreads = extractThreads;
+				mLimiter.setRate(bytesPerSecond);
+			} finally {
+				in.close();
+			}
+		} catch (IOException e) {
+			Log.e(TAG, "Could not read download state for book " + mBook.getBookID() + ": " + e.getMessage());
+		} catch (ArrayIndexOutOfBoundsException e) {
+			Log.e(TAG, "Bad download state for book " + mBook.getBookID());
+		}
+	}
+
+	// Saves the state and settings, replacing what was there. Called holding the lock
+
+	private void save() {
+		File dir = mStateFile.getParentFile();
+		if(! dir.isDirectory() && ! dir.mkdirs()) {
+			Log.e(TAG, "Could not create " + dir);
+			return;
+		}
+
+		File tmp = new File(mStateFile.getPath() + ".tmp");
+		try {
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+			try {
+				out.writeInt(MAGIC);
+				out.writeInt(VERSION);
+				out.writeLong(System.currentTimeMillis());
+				out.writeInt(mState.ordinal());
+				out.writeInt(mDownloadThreads);
+				out.writeInt(mExtractThreads);
+				out.writeLong(mLimiter.getRate());
+			} finally {
+				out.close();
+			}
+
+			if(! tmp.renameTo(mStateFile)) {
+				throw new IOException("Could not move " + tmp + " into place");
+			}
+		} catch (IOException e) {
+			Log.e(TAG, "Could not save download state for book " + mBook.getBookID() + ": " + e.getMessage());
+			tmp.delete();
+		}
+	}
+
+	// One run of the download, from start() until it has been through every page or is
+	// stopped. Goes through the book in passes, as pages the reader had during one pass
+	// may still need doing afterwards
+
+	private class Run implements Runnable {
+
+		private final int mDownloadThreadCount;
+		private final int mExtractSlotCount;
+		private final ExecutorService mDownloads;
+		private final ThreadPoolExecutor mExtracts;
+
+		// Bounds the pages waiting for extraction, as the render stage does in PageCacheManager
+		private final Semaphore mExtractSlots;
+
+		private final AtomicInteger mNext = new AtomicInteger();
+
+		// Pages that failed in this run, so they are not tried again until the next one
+		private final AtomicIntegerArray mFailed;
+		private final AtomicInteger mFailedCount = new AtomicInteger();
+
+		private volatile boolean mStopped = false;
+		private final Thread mThread;
+
+		Run(int downloadThreads, int extractThreads) {
+			mDownloadThreadCount = downloadThreads;
+			mExtractSlotCount = extractThreads * 2;
+			mDownloads = Executors.newFixedThreadPool(downloadThreads, new LowPriorityThreadFactory("download"));
+			mExtracts = new ThreadPoolExecutor(extractThreads, extractThreads, 0, TimeUnit.MILLISECONDS,
+					new LinkedBlockingQueue<Runnable>(), new LowPriorityThreadFactory("extract"));
+			mExtractSlots = new Semaphore(mExtractSlotCount);
+			mFailed = new AtomicIntegerArray(mBook.getNumPages() + 1);
+			mThread = new Thread(this, "BookDownloader");
+		}
+
+		void start() {
+			mThread.start();
+		}
+
+		// Stops the downloads where they are. Extractions already running are left to finish,
+		// as they are quick and have nothing to resume from. The pages given up on go back to
+		// the cache manager, which schedules them again if the reader wants them
+
+		void stop() {
+			mStopped = true;
+			mThread.interrupt();
+			mDownloads.shutdownNow();
+
+			List<Runnable> queued = new ArrayList<Runnable>();
+			mExtracts.getQueue().drainTo(queued);
+			mExtracts.shutdown();
+			for(Runnable task : queued) {
+				// Downloaded, so they are quick to pick up again from the file cache
+				mCacheManager.release(((ExtractTask) task).mPage);
+			}
+		}
+
+		public void run() {
+			long start = System.currentTimeMillis();
+			try {
+				while(true) {
+					mNext.set(1);
+					List<Future<?>> workers = new ArrayList<Future<?>>();
+					for(int i = 0; i < mDownloadThreadCount; i++) {
+						workers.add(mDownloads.submit(mDownloadWorker));
+					}
+					for(Future<?> worker : workers) {
+						worker.get();
+					}
+
+					// Wait for the extractions to finish
+					mExtractSlots.acquire(mExtractSlotCount);
+					mExtractSlots.release(mExtractSlotCount);
+					if(mStopped) return;
+
+					int remaining = countRemaining();
+					if(remaining == 0) {
+						Log.i(TAG, "Book " + mBook.getBookID() + " downloaded in " + (System.currentTimeMillis() - start) + " ms");
+						int failed = mFailedCount.get();
+						finish(this, failed == 0 ? State.COMPLETE : State.PAUSED, failed);
+						return;
+					}
+
+					Thread.sleep(YIELD_MILLIS);
+				}
+			} catch (InterruptedException e) {
+				// Stopped
+			} catch (ExecutionException e) {
+				Log.e(TAG, "Download worker failed: " + e.getCause());
+				finish(this, State.PAUSED, mFailedCount.get());
+			} catch (RejectedExecutionException e) {
+				// Stopped while starting a pass
+			} finally {
+				mDownloads.shutdown();
+				mExtracts.shutdown();
+			}
+		}
+
+		// Pages that are neither rendered nor failed in this run
+		private int countRemaining() {
+			int remaining = 0;
+			for(int page = 1; page <= mBook.getNumPages(); page++) {
+				if(mFailed.get(page) == 0 && ! mBook.isPageRendered(page)) remaining++;
+			}
+			return remaining;
+		}
+
+		private final Runnable mDownloadWorker = new Runnable() {
+			public void run() {
+				try {
+					int page;
+					while((page = nextPage()) != 0) {
+						download(page);
+					}
+				} catch (InterruptedException e) {
+					// Stopped
+				}
+			}
+		};
+
+		// Claims the next page of this pass, or returns 0 when there are none left
+
+		private int nextPage() throws InterruptedException {
+			while(! mStopped) {
+				while(mCacheManager.isLoading()) {
+					Thread.sleep(YIELD_MILLIS);
+				}
+
+				int page = mNext.getAndIncrement();
+				if(page > mBook.getNumPages()) return 0;
+				if(mFailed.get(page) == 0 && mCacheManager.claimForDownload(page)) return page;
+			}
+			return 0;
+		}
+
+		private void download(int page) throws InterruptedException {
+			long trace = Tracer.begin();
+			boolean queued = false;
+			try {
+				File pdf = mBook.getPage(page, new PageThrottle(page));
+				mCacheManager.setStatus(page, PageStatus.DOWNLOADED);
+
+				// The reader is waiting for it, so it doesn't queue behind the other pages
+				if(mCacheManager.isRequested(page)) {
+					extract(page, pdf);
+					return;
+				}
+
+				mExtractSlots.acquire();
+				try {
+					mExtracts.execute(new ExtractTask(page, pdf));
+					queued = true;
+				} catch (RejectedExecutionException e) {
+					mExtractSlots.release();
+					throw new InterruptedException();
+				}
+			} catch (InterruptedException e) {
+				if(! queued) mCacheManager.release(page);
+				throw e;
+			} catch (IOException e) {
+				if(mStopped || Thread.currentThread().isInterrupted()) {
+					// What was downloaded is kept for next time
+					mCacheManager.release(page);
+					throw new InterruptedException();
+				}
+				fail(page, e);
+			} finally {
+				Tracer.end("offline download", trace, page);
+			}
+		}
+
+		private void extract(int page, File pdf) {
+			long trace = Tracer.begin();
+			try {
+				mCacheManager.setStatus(page, PageStatus.RENDERING);
+				ByteBuffer image = mBook.renderPage(page, pdf);
+
+				// If something went wrong, take a second try
+				if(image == null) {
+					mBook.removePage(page);
+					pdf = mBook.getPage(page, new PageThrottle(page));
+					image = mBook.renderPage(page, pdf);
+				}
+
+				if(image != null) {
+					mCacheManager.complete(page, image);
+					notifyProgress();
+				} else {
+					fail(page, new IOException("Could not extract image from " + pdf.getName()));
+				}
+			} catch (Exception e) {
+				fail(page, e);
+			} finally {
+				Tracer.end("offline extract", trace, page);
+			}
+		}
+
+		private void fail(int page, Exception e) {
+			mCacheManager.fail(page, e);
+			if(mFailed.compareAndSet(page, 0, 1)) mFailedCount.incrementAndGet();
+		}
+
+		private class ExtractTask implements Runnable {
+
+			private final int mPage;
+			private final File mPdf;
+
+			ExtractTask(int page, File pdf) {
+				mPage = page;
+				mPdf = pdf;
+			}
+
+			public void run() {
+				try {
+					extract(mPage, mPdf);
+				} finally {
+					mExtractSlots.release();
+				}
+			}
+		}
+	}
+
+	// Keeps a page's download to the bandwidth cap, unless the reader is waiting for it
+
+	private class PageThrottle implements PageFetchClient.Throttle {
+
+		private final int mPage;
+
+		PageThrottle(int page) {
+			mPage = page;
+		}
+
+		public void onReceived(int bytes) throws InterruptedIOException {
+			if(mCacheManager.isRequested(mPage)) return;
+			mLimiter.acquire(bytes);
+		}
+	}
+
+	private static class LowPriorityThreadFactory implements ThreadFactory {
+
+		private final String mStage;
+		private final AtomicInteger mCount = new AtomicInteger();
+
+		LowPriorityThreadFactory(String stage) {
+			mStage = stage;
+		}
+
+		public Thread newThread(Runnable r) {
+			Thread thread = new Thread(r, "BookDownloader-" + mStage + "-" + mCount.incrementAndGet());
+			thread.setPriority(Thread.MIN_PRIORITY);
+			return thread;
+		}
+	}
+}
@@ -0,0 +1,14 @@
+package com.michoelchaikin.hebrewbooks;
+
+import java.io.File;
+
+/**
+ * Where a {@link HebrewBook} keeps its downloaded and rendered files.
+ *
+ * On a device this is the app's cache directory, see {@link AndroidCacheDirProvider}. Off
+ * the device any directory will do, such as one holding fixture files.
+ */
+public interface CacheDirProvider {
+
+	File getCacheDir();
+}
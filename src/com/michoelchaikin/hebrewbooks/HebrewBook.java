@@ -1,23 +1,60 @@
 package com.michoelchaikin.hebrewbooks;
 
+import java.io.BufferedReader;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.jsoup.Jsoup;
 import org.jsoup.nodes.Document;
 
-import android.content.Context;
-import android.os.Environment;
-import android.util.Log;
+import com.itextpdf.text.pdf.PdfReader;
 
+import com.michoelchaikin.hebrewbooks.cache.DiskCache;
+import com.michoelchaikin.hebrewbooks.cache.MetadataStore;
+import com.michoelchaikin.hebrewbooks.cache.PagePack;
+import com.michoelchaikin.hebrewbooks.metrics.PageMetrics;
+import com.michoelchaikin.hebrewbooks.metrics.Tracer;
 import com.michoelchaikin.hebrewbooks.utils.HebrewBooksUtils;
+import com.michoelchaikin.hebrewbooks.utils.HtmlMetadataExtractor;
+import com.michoelchaikin.hebrewbooks.utils.ImageHeader;
+import com.michoelchaikin.hebrewbooks.utils.Log;
 import com.michoelchaikin.hebrewbooks.utils.PDFUtils;
+import com.michoelchaikin.hebrewbooks.utils.PageFetchClient;
+import com.michoelchaikin.hebrewbooks.utils.StreamingImageExtractor;
 
 public class HebrewBook {
 
 	private static final String TAG = "HebrewBook";
+	
+	// Elements of the book's page holding its metadata
+	private static final String[] METADATA_IDS = {
+		"ctl00_cpMstr_lblHebSefername", "ctl00_cpMstr_lblSefername",
+		"ctl00_cpMstr_lblHebAuth", "ctl00_cpMstr_lblAuth",
+		"ctl00_cpMstr_lblHebPlace", "ctl00_cpMstr_lblPlace",
+		"ctl00_cpMstr_lblHebDate", "ctl00_cpMstr_lblDate",
+		"ctl00_cpMstr_hlOCLC", "ctl00_cpMstr_hlULI",
+		"ctl00_cpMstr_lblSrc", "ctl00_cpMstr_lblCat",
+		"ctl00_cpMstr_lblDesc", "ctl00_cpMstr_lblPages",
+	};
+	private static final String THUMBNAIL = "thumbnail";
 
 	private int bookID;
 	private int numPages;
@@ -36,92 +73,442 @@ public class HebrewBook {
 	private String description;
 	private String thumbnail;
 	
-	private Context context;
 	private File mCacheDir;
+	private DiskCache mCache;
+	private PagePack mPack;
+	private MetadataStore mMetadata;
+	private volatile boolean mStreamingExtraction = true;
+	private boolean mClosed = false;
 	
-	public HebrewBook(Context _context, int _bookID) {
+	public HebrewBook(CacheDirProvider cacheDirProvider, int _bookID) {
 		Log.i(TAG, "Creating new HebrewBook object. bookID = " + _bookID);
 		
-		this.context = _context;
 		this.bookID = _bookID;
-		
-		String storageState = Environment.getExternalStorageState();
-		if (Environment.MEDIA_MOUNTED.equals(storageState)) {
-			mCacheDir = context.getExternalCacheDir();
-		} else {
-			mCacheDir = context.getCacheDir();
-		}
+		mCacheDir = cacheDirProvider.getCacheDir();
 		
 		Log.i(TAG, "Cache Directory " + mCacheDir);
+		mCache = DiskCache.open(mCacheDir);
+		mPack = PagePack.open(mCacheDir, "hebrewbooks_org_" + bookID);
+		mMetadata = MetadataStore.open(mCacheDir);
 	}
 		
 	public void init() throws IOException {
 		Log.i(TAG, "Initializing HebrewBook..");
+		long start = System.currentTimeMillis();
+		
+		// Books opened before don't need their page parsed again
+		Map<String, String> metadata = mMetadata.get(bookID);
+		boolean warm = metadata != null;
+		if(! warm) {
+			metadata = parseMetadata();
+		}
+		
+		try {
+			setMetadata(metadata);
+		} catch (RuntimeException e) {
+			if(! warm) throw e;
+			// A bad record, parse the page after all
+			Log.w(TAG, "Bad saved metadata: " + e.toString());
+			mMetadata.remove(bookID);
+			metadata = parseMetadata();
+			setMetadata(metadata);
+			warm = false;
+		}
 		
+		if(! warm) {
+			mMetadata.put(bookID, metadata);
+		}
+		
+		// Reclaim the space of replaced and removed pages before more are added
+		try {
+			if(mPack.compact()) {
+				mCache.put(mPack.getDataFile().getName());
+				mCache.put(mPack.getIndexFile().getName());
+			}
+		} catch (IOException e) {
+			Log.w(TAG, "Could not compact the page pack: " + e.getMessage());
+		}
+		Log.i(TAG, (warm ? "Warm" : "Cold") + " init took " + (System.currentTimeMillis() - start) + " ms");
+	}
+	
+	// Reads the metadata fields from the book's page on the site
+	
+	private Map<String, String> parseMetadata() throws IOException {
 		URL url = new URL("http://www.hebrewbooks.org/" + bookID);
-		File file = HebrewBooksUtils.getFileFromCacheOrURL(mCacheDir, url);
+		if(mMetadata.isExpired(bookID)) {
+			// Fetch the page again, rather than parse the same old copy
+			mCache.remove(HebrewBooksUtils.getFileName(url));
+		}
+		File file = HebrewBooksUtils.getFileFromCacheOrURL(mCache, url);
+		
+		// Scan just as far as the fields, falling back to Jsoup if the layout has changed
+		long start = System.currentTimeMillis();
+		HtmlMetadataExtractor extractor = new HtmlMetadataExtractor(METADATA_IDS, "thumbs");
+		Reader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+		boolean extracted;
+		try {
+			extracted = extractor.extract(reader);
+		} finally {
+			reader.close();
+		}
+		if(extracted) {
+			Map<String, String> metadata = new HashMap<String, String>(extractor.getText());
+			metadata.put(THUMBNAIL, extractor.getImageSource());
+			Log.i(TAG, "Scanned metadata in " + (System.currentTimeMillis() - start) + " ms");
+			return metadata;
+		}
+		
+		Log.w(TAG, "Metadata not found by scanning, parsing the whole page");
 		String text = HebrewBooksUtils.readFileAsString(file);
 		
 		Document doc = Jsoup.parse(text);
-		nameHebrew = doc.getElementById("ctl00_cpMstr_lblHebSefername").text();
-		nameEnglish = doc.getElementById("ctl00_cpMstr_lblSefername").text();
-		authorHebrew = doc.getElementById("ctl00_cpMstr_lblHebAuth").text();
-		authorEnglish = doc.getElementById("ctl00_cpMstr_lblAuth").text();
-		publicationPlaceHebrew = doc.getElementById("ctl00_cpMstr_lblHebPlace").text();
-		publicationPlaceEnglish = doc.getElementById("ctl00_cpMstr_lblPlace").text();
-		publicationDateHebrew = doc.getElementById("ctl00_cpMstr_lblHebDate").text();
-		publicationDateEnglish = doc.getElementById("ctl00_cpMstr_lblDate").text();
-		oclcID = doc.getElementById("ctl00_cpMstr_hlOCLC").text();
-		uliEntry = doc.getElementById("ctl00_cpMstr_hlULI").text();
-		source = doc.getElementById("ctl00_cpMstr_lblSrc").text();
-		catalogInfo = doc.getElementById("ctl00_cpMstr_lblCat").text();
-		description = doc.getElementById("ctl00_cpMstr_lblDesc").text();
-		numPages = Integer.parseInt(doc.getElementById("ctl00_cpMstr_lblPages").text());
-		thumbnail = doc.select("img[src^=thumbs]").first().attr("src");
+		Map<String, String> metadata = new HashMap<String, String>();
+		for(String id : METADATA_IDS) {
+			metadata.put(id, doc.getElementById(id).text());
+		}
+		metadata.put(THUMBNAIL, doc.select("img[src^=thumbs]").first().attr("src"));
+		Log.i(TAG, "Parsed metadata in " + (System.currentTimeMillis() - start) + " ms");
+		return metadata;
+	}
+	
+	private void setMetadata(Map<String, String> metadata) {
+		nameHebrew = metadata.get("ctl00_cpMstr_lblHebSefername");
+		nameEnglish = metadata.get("ctl00_cpMstr_lblSefername");
+		authorHebrew = metadata.get("ctl00_cpMstr_lblHebAuth");
+		authorEnglish = metadata.get("ctl00_cpMstr_lblAuth");
+		publicationPlaceHebrew = metadata.get("ctl00_cpMstr_lblHebPlace");
+		publicationPlaceEnglish = metadata.get("ctl00_cpMstr_lblPlace");
+		publicationDateHebrew = metadata.get("ctl00_cpMstr_lblHebDate");
+		publicationDateEnglish = metadata.get("ctl00_cpMstr_lblDate");
+		oclcID = metadata.get("ctl00_cpMstr_hlOCLC");
+		uliEntry = metadata.get("ctl00_cpMstr_hlULI");
+		source = metadata.get("ctl00_cpMstr_lblSrc");
+		catalogInfo = metadata.get("ctl00_cpMstr_lblCat");
+		description = metadata.get("ctl00_cpMstr_lblDesc");
+		numPages = Integer.parseInt(metadata.get("ctl00_cpMstr_lblPages"));
+		thumbnail = metadata.get(THUMBNAIL);
 	}
 	
 	public File getPage(int page) throws IOException {
-		Log.i(TAG, "Retrieving page: " + page);
-
+		return getPage(page, null);
+	}
+	
+	// The same, downloading the page in the background with throttle if it is not null
+	
+	public File getPage(int page, PageFetchClient.Throttle throttle) throws IOException {
 		URL url = getPageURL(page);
-		File pdf = HebrewBooksUtils.getFileFromCacheOrURL(mCacheDir, url);
+		File pdf = HebrewBooksUtils.getFileFromCacheOrURL(mCache, url, throttle);
 		
 		return pdf;
 	}
 	
-	public File renderPage(File pdf) throws Exception {	
-		Log.i(TAG, "Rendering page: " + pdf.getAbsolutePath());
-
-		String filename = pdf.getName();
-		int lastColonPos = filename.lastIndexOf('.');
-		String filenameNoColon = new String(lastColonPos == -1
-									? filename
-									: filename.substring(0, lastColonPos));
-		File png = new File(mCacheDir, filenameNoColon + ".png");
+	// Downloads a page and extracts its image on the fly, without saving the PDF. Returns
+	// the image, or null if the page has to go through getPage() and renderPage() instead,
+	// in which case whatever was downloaded is left for getPage() to use. That includes a
+	// cancelled transfer, which ends with an InterruptedIOException
+	
+	public ByteBuffer streamPage(int page) throws IOException {
+		ByteBuffer image = getRenderedPage(page);
+		if(image != null) return image;
 		
-		if(! png.exists()) {
-			Log.i(TAG, "File does not exist, rendering");
-
-			png = PDFUtils.extractImage(pdf, mCacheDir);
-		} else {
-			Log.i(TAG, "Rendered file already exists");
+		String name = getPageName(page);
+		File png = mCache.get(name + ".png");
+		if(png != null) {
+			// Rendered before pages were packed
+			return storePage(page, png);
+		}
+		
+		File pdf = mCache.file(name + ".pdf");
+		if(! mStreamingExtraction || mCache.get(name + ".pdf") != null || PageFetchClient.getPartFile(pdf).exists()) {
+			return null;
+		}
+		
+		long start = System.nanoTime();
+		PageStreamHandler handler = new PageStreamHandler(mCache.file(name + ".png"), PageFetchClient.getPartFile(pdf));
+		IOException cancelled = null;
+		try {
+			PageFetchClient.getInstance().stream(getPageURL(page), handler);
+		} catch (IOException e) {
+			if(Thread.currentThread().isInterrupted()) {
+				cancelled = e;
+			} else {
+				Log.w(TAG, "Streaming page " + page + " failed: " + e.getMessage());
+			}
+		}
+		
+		StreamingImageExtractor extractor = handler.mExtractor;
+		if(handler.mExtracted) {
+			PageMetrics.record(PageMetrics.Stage.STREAM, start);
+			Tracer.end("stream", start, page);
+			Log.i(TAG, "Page " + page + " streamed in " + (System.nanoTime() - start) / 1000000
+					+ " ms, " + extractor.getBytesWritten() + " bytes written");
+			return storePage(page, handler.mOutput);
+		}
+		
+		if(extractor != null) {
+			// Save what we have, as the PDF if it is all there, or for the download to resume
+			if(extractor.isComplete()) {
+				extractor.savePdf(pdf);
+				mCache.put(name + ".pdf");
+			} else {
+				extractor.savePdf(PageFetchClient.getPartFile(pdf));
+			}
+		}
+		
+		if(cancelled != null) throw cancelled;
+		return null;
+	}
+	
+	// Extracts the image of a downloaded page PDF into the book's pack, returning the image,
+	// or null if it could not be extracted
+	
+	public ByteBuffer renderPage(int page, File pdf) throws Exception {	
+		ByteBuffer image = getRenderedPage(page);
+		if(image != null) {
+			return image;
+		}
+		
+		long start = System.currentTimeMillis();
+		File png = PDFUtils.extractImage(pdf, mCacheDir);
+		if(png == null) return null;
+		
+		Log.i(TAG, "Rendered in " + (System.currentTimeMillis() - start) + " ms, "
+				+ (pdf.length() + png.length()) + " bytes written");
+		return storePage(page, png);
+	}
+	
+	// Returns the rendered image of a page from the book's pack, or null if it is not there
+	
+	public ByteBuffer getRenderedPage(int page) {
+		return mPack.get(page);
+	}
+	
+	// Whether a page is in the book's pack, without mapping it
+	
+	public boolean isPageRendered(int page) {
+		return mPack.contains(page);
+	}
+	
+	// Pixel size of a rendered page's image, or 0 if it is not known
+	
+	public int getPageWidth(int page) {
+		return mPack.getWidth(page);
+	}
+	
+	public int getPageHeight(int page) {
+		return mPack.getHeight(page);
+	}
+	
+	// Removes the downloaded and rendered files of a page, so it will be fetched again
+	
+	public void removePage(int page) {
+		mCache.remove(getPageName(page) + ".pdf");
+		mCache.remove(getPageName(page) + ".png");
+		mPack.remove(page);
+	}
+	
+	// Moves a rendered page image into the pack. The PDF is no longer needed once the image
+	// is packed, so it goes as well
+	
+	private ByteBuffer storePage(int page, File png) throws IOException {
+		packImage(page, png);
+		mCache.remove(getPageName(page) + ".pdf");
+		return mPack.get(page);
+	}
+	
+	// Moves an image file into the pack as a page's image
+	
+	private void packImage(int page, File png) throws IOException {
+		try {
+			// Record the image size, so pages can be decoded without reading it first
+			int[] size = ImageHeader.readSize(png);
+			mPack.put(page, png, size != null ? size[0] : 0, size != null ? size[1] : 0);
+		} finally {
+			mCache.remove(png.getName());
+		}
+		
+		// Account for the pack's new size
+		mCache.put(mPack.getDataFile().getName());
+		mCache.put(mPack.getIndexFile().getName());
+	}
+	
+	// Downloads the whole book as a single PDF, with one request, and imports it with
+	// importPdf(). The PDF is removed once every page is in the pack. Until then it is kept,
+	// and a broken-off download picks up from its ".part" file, so trying again is cheap
+	
+	public int importPdf(URL url, int threads) throws IOException, InterruptedException {
+		String name = "hebrewbooks_org_" + bookID + ".pdf";
+		File pdf = mCache.get(name);
+		if(pdf == null) {
+			pdf = mCache.file(name);
+			long start = System.nanoTime();
+			PageFetchClient.getInstance().download(url, pdf);
+			Log.i(TAG, "Book PDF downloaded in " + (System.nanoTime() - start) / 1000000 + " ms, " + pdf.length() + " bytes");
+			mCache.put(name);
+		}
+		
+		int imported = importPdf(pdf, threads);
+		if(imported == numPages) {
+			mCache.remove(name);
+		}
+		return imported;
+	}
+	
+	// Extracts the page images of a whole-book PDF into the book's pack, on the given number
+	// of threads, and returns how many of the book's pages are in the pack afterwards. Pages
+	// already there are skipped.
+	// Each thread has a reader of its own, which only loads the page it is on, and takes the
+	// next page nobody has started. So memory stays at a page or so per thread however long
+	// the book is, and a slow page doesn't hold the others up
+	
+	public int importPdf(final File pdf, int threads) throws IOException, InterruptedException {
+		PdfReader reader = PDFUtils.open(pdf);
+		int pdfPages = reader.getNumberOfPages();
+		reader.close();
+		if(pdfPages != numPages) {
+			Log.w(TAG, pdf.getName() + " has " + pdfPages + " pages, expected " + numPages);
+		}
+		
+		final int pages = Math.min(pdfPages, numPages);
+		final AtomicInteger next = new AtomicInteger(1);
+		long start = System.nanoTime();
+		
+		ExecutorService executor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+			private final AtomicInteger mCount = new AtomicInteger();
+			public Thread newThread(Runnable r) {
+				return new Thread(r, "HebrewBook-import-" + mCount.incrementAndGet());
+			}
+		});
+		try {
+			List<Future<Void>> workers = new ArrayList<Future<Void>>();
+			for(int i = 0; i < threads; i++) {
+				workers.add(executor.submit(new Callable<Void>() {
+					public Void call() throws Exception {
+						importPages(pdf, next, pages);
+						return null;
+					}
+				}));
+			}
+			for(Future<Void> worker : workers) {
+				worker.get();
+			}
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if(cause instanceof IOException) throw (IOException) cause;
+			if(cause instanceof InterruptedException) throw (InterruptedException) cause;
+			throw new IOException(cause.toString(), cause);
+		} finally {
+			executor.shutdownNow();
 		}
 		
-		return png;
+		int imported = 0;
+		for(int page = 1; page <= numPages; page++) {
+			if(mPack.contains(page)) imported++;
+		}
+		Log.i(TAG, "Imported " + pdf.getName() + " in " + (System.nanoTime() - start) / 1000000 + " ms on "
+				+ threads + " threads, " + imported + " of " + numPages + " pages in the pack");
+		return imported;
+	}
+	
+	// One import thread: extracts pages, taking the next one from next, until there are none left
+	
+	private void importPages(File pdf, AtomicInteger next, int pages) throws IOException, InterruptedException {
+		PdfReader reader = PDFUtils.open(pdf);
+		try {
+			int page;
+			while((page = next.getAndIncrement()) <= pages) {
+				if(Thread.interrupted()) throw new InterruptedException();
+				if(mPack.contains(page)) continue;
+				
+				// The reader may be fetching the same page, so the image goes to a scratch file
+				// of its own rather than the page's, and the page's PDF is left alone
+				long start = System.nanoTime();
+				File png = File.createTempFile(getPageName(page) + "-import-", ".png" + DiskCache.SCRATCH_SUFFIX, mCacheDir);
+				// Just the name, as extractImage() takes a file that is already there for a second image
+				png.delete();
+				if(PDFUtils.extractImage(reader, page, png)) {
+					packImage(page, png);
+					PageMetrics.record(PageMetrics.Stage.EXTRACT, start);
+					Tracer.end("import page", start, page);
+				} else {
+					png.delete();
+					Log.w(TAG, "No image found on page " + page + " of " + pdf.getName());
+				}
+			}
+		} finally {
+			reader.close();
+		}
+	}
+	
+	// Keeps the files of the given pages, and the book's pack, from being evicted from the
+	// cache, replacing any pages pinned before. The pins are released by close()
+	
+	public synchronized void pinPages(int first, int last) {
+		if(mClosed) return;
+		List<String> names = new ArrayList<String>();
+		for(int page = Math.max(first, 1); page <= Math.min(last, numPages); page++) {
+			names.add(getPageName(page) + ".pdf");
+			names.add(getPageName(page) + ".png");
+		}
+		names.add(mPack.getDataFile().getName());
+		names.add(mPack.getIndexFile().getName());
+		mCache.setPinned(this, names);
+	}
+	
+	// Keeps the book's pack in the cache for good, across restarts, for a book downloaded to
+	// be read offline. Pinned pages only stay while the book is open
+	
+	public void setOffline(boolean offline) {
+		mCache.setKept(mPack.getDataFile().getName(), offline);
+		mCache.setKept(mPack.getIndexFile().getName(), offline);
+	}
+	
+	public boolean isOffline() {
+		return mCache.isKept(mPack.getDataFile().getName());
+	}
+	
+	// Done with the book: releases its pinned pages, so they can be evicted again, and the
+	// pack's files and mappings. The pack opens again if the book is used after all
+	
+	public synchronized void close() {
+		Log.i(TAG, "Closing book " + bookID);
+		mClosed = true;
+		mCache.setPinned(this, null);
+		mPack.close();
+	}
+	
+	// Whether pages are extracted while they download, see streamPage()
+	
+	public void setStreamingExtraction(boolean enabled) {
+		mStreamingExtraction = enabled;
 	}
 	
-	public File findRenderedFile(int page) {
-		return new File(mCacheDir, "hebrewbooks_org_" + bookID + "_" + page + ".png");
+	public boolean isStreamingExtraction() {
+		return mStreamingExtraction;
+	}
+	
+	private String getPageName(int page) {
+		return "hebrewbooks_org_" + bookID + "_" + page;
 	}
 
 	public URL getPageURL(int page) throws MalformedURLException {
-		return new URL("http://www.hebrewbooks.org/pagefeed/hebrewbooks_org_" + bookID + "_" + page + ".pdf#toolbar=1&navpanes=0&statusbar=0&view=FitH");
+		return new URL("http://www.hebrewbooks.org/pagefeed/" + getPageName(page) + ".pdf#toolbar=1&navpanes=0&statusbar=0&view=FitH");
+	}
+	
+	// The whole book as one PDF, see importPdf()
+	
+	public URL getBookURL() throws MalformedURLException {
+		return new URL("http://download.hebrewbooks.org/downloadhandler.ashx?req=" + bookID);
 	}
 	
 	public URL getBookThumbnail() throws MalformedURLException {
 		return new URL("http://www.hebrewbooks.org/" + thumbnail);
 	}
 
+	public File getCacheDir() {
+		return mCacheDir;
+	}
+
 	public int getBookID() {
 		return bookID;
 	}
@@ -181,4 +568,22 @@ public class HebrewBook {
 	public String getDescription() {
 		return description;
 	}
+	
+	private static class PageStreamHandler implements PageFetchClient.StreamHandler {
+		
+		private final File mOutput;
+		private final File mPartFile;
+		private StreamingImageExtractor mExtractor;
+		private boolean mExtracted = false;
+		
+		PageStreamHandler(File output, File partFile) {
+			mOutput = output;
+			mPartFile = partFile;
+		}
+		
+		public void onResponse(InputStream in, long contentLength) throws IOException {
+			mExtractor = new StreamingImageExtractor(contentLength, mPartFile);
+			mExtracted = mExtractor.extract(in, mOutput);
+		}
+	}
 }
@@ -1,50 +1,96 @@
 package com.michoelchaikin.hebrewbooks;
 
 import java.io.File;
-import java.util.ArrayList;
-import java.util.Collections;
-import java.util.List;
-import java.util.concurrent.BlockingDeque;
-import java.util.concurrent.LinkedBlockingDeque;
-import java.util.concurrent.locks.Condition;
-import java.util.concurrent.locks.ReentrantLock;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
-import android.util.Log;
+import com.michoelchaikin.hebrewbooks.metrics.PageMetrics;
+import com.michoelchaikin.hebrewbooks.metrics.Tracer;
+import com.michoelchaikin.hebrewbooks.utils.Log;
 
 enum PageStatus {
 	PENDING,
+	DOWNLOADING,
 	DOWNLOADED,
+	RENDERING,
 	RENDERED,
+	FAILED,
 }
 
 public class PageCacheManager {
 	
 	private static final String TAG = "PageCacheManager";
 	
-	private static final int DEFAULT_CACHE_SIZE_AHEAD = 5;
-	private static final int DEFAULT_CACHE_SIZE_BEHIND = 3;
+	// Downloads are network bound, so a few can be in flight at once. Extraction is CPU bound,
+	// so it gets one thread per core, plus a small queue of downloaded pages waiting for a thread
+	private static final int DOWNLOAD_THREADS = 3;
+	private static final int RENDER_THREADS = Runtime.getRuntime().availableProcessors();
+	private static final int RENDER_QUEUE_SIZE = RENDER_THREADS;
+	private static final long RENDER_SLOT_POLL_MS = 50;
+	
+	private static final int NO_REQUEST = -1;
 	
 	private final HebrewBook mBook;
-	private final List <PageStatus> mPagesStatus;
+	private final PageStateTable mPagesStatus;
+	private final PrefetchWindow mWindow = new PrefetchWindow();
 	private volatile Thread mCacheThread;
+	private volatile boolean mShutdown = false;
 	
-    private final BlockingDeque<Integer> mPageRequestsQueue = new LinkedBlockingDeque<Integer>();
+    // The page the reader last asked for, until the scheduler picks it up. A newer request
+    // replaces one still waiting, so repeated and superseded requests collapse into one
+    private final Object mRequestLock = new Object();
+    private int mPendingRequest;
+    
+    // The page the reader last asked for, kept after the scheduler has taken it
+    private volatile int mLastRequest = NO_REQUEST;
+    
+    // The two pipeline stages. The semaphores provide the backpressure: the scheduler blocks
+    // while all downloads are busy, and a prefetched page blocks while the extraction stage is
+    // full. The page the reader is waiting for is extracted ahead of prefetched pages
+    private final ExecutorService mDownloadExecutor = Executors.newFixedThreadPool(DOWNLOAD_THREADS, new StageThreadFactory("download"));
+    private final ThreadPoolExecutor mRenderExecutor = new ThreadPoolExecutor(RENDER_THREADS, RENDER_THREADS, 0, TimeUnit.MILLISECONDS,
+    		new PriorityBlockingQueue<Runnable>(), new StageThreadFactory("render"));
+    private final Semaphore mDownloadSlots = new Semaphore(DOWNLOAD_THREADS);
+    private final Semaphore mRenderSlots = new Semaphore(RENDER_THREADS + RENDER_QUEUE_SIZE);
+    private final AtomicLong mRenderSequence = new AtomicLong();
+    
+    // Downloads in flight by page, so prefetches can be cancelled for a page the reader wants
+    private final Map<Integer, DownloadTask> mDownloads = new HashMap<Integer, DownloadTask>();
+    
+    // Extractions waiting in the queue by page, so one the reader asks for can be moved up
+    private final Map<Integer, RenderTask> mRenders = new HashMap<Integer, RenderTask>();
 	
-    // For signaling that requested page is ready
-	private final ReentrantLock mLock = new ReentrantLock();
-	private final Condition mPageReadyCondition = mLock.newCondition();
+    // For signaling that a page is ready or has failed, created on demand
+	private final PageHandle[] mHandles;
 	
 	public PageCacheManager(HebrewBook book, int page) {
 		Log.i(TAG, "PageCacheManager created. BookID = " + book.getBookID());
 		
 		mBook = book;
-		mPageRequestsQueue.offerFirst(page);
+		mPendingRequest = page;
+		mPagesStatus = new PageStateTable(mBook.getNumPages() + 1);
+		mHandles = new PageHandle[mBook.getNumPages() + 1];
 		
-		List<PageStatus> list = new ArrayList<PageStatus>();
-		for(int i = 0; i < mBook.getNumPages() + 1; i++) {
-			list.add(PageStatus.PENDING);
+		// Pages rendered in an earlier session are ready straight away
+		int rendered = 0;
+		for(int p = 1; p <= mBook.getNumPages(); p++) {
+			if(mBook.isPageRendered(p)) {
+				mPagesStatus.set(p, PageStatus.RENDERED);
+				rendered++;
+			}
 		}
-		mPagesStatus = Collections.synchronizedList(list);
+		Log.i(TAG, rendered + " of " + mBook.getNumPages() + " pages already rendered");
 	}
 	
 	public PageCacheManager(HebrewBook book) {
@@ -57,75 +103,255 @@ public class PageCacheManager {
 		mCacheThread.start();
 	}
 	
-	public File getPage(int page) {
-		Log.i(TAG, "getPage(): waiting for page " +  page);
+	// Stops the scheduler and the threads of both stages, interrupting the downloads and
+	// extractions in flight. Their pages are picked up again when the book is next opened.
+	// Pages requested after this fail straight away
+	
+	public void shutdown() {
+		Log.i(TAG, "Shutting down");
+		mShutdown = true;
+		Thread thread = mCacheThread;
+		if(thread != null) thread.interrupt();
+		mDownloadExecutor.shutdownNow();
+		mRenderExecutor.shutdownNow();
+	}
+	
+	// Asks for a page to be rendered, returning a handle that completes when it is ready or fails.
+	// A page that failed before is retried.
+	
+	public PageHandle request(int page) {
+		Tracer.instant("request", page);
 		
-		try {
-			
-			if(page < 1 || page > mBook.getNumPages()) {
-				Log.e(TAG, "Requesting invalid page number");
-				return null;
-			}
-			
-			// Put the requested page in the queue to be rendered
-			mPageRequestsQueue.putFirst(page);
-			
-			// Make sure the background thread is running
-			if(! mCacheThread.isAlive()) {
-				mCacheThread = new Thread(doCaching, "PageCacheManager");
-				mCacheThread.start();
+		if(page < 1 || page > mBook.getNumPages()) {
+			Log.e(TAG, "Requesting invalid page number");
+			PageHandle handle = new PageHandle(page);
+			handle.fail(new IOException("Invalid page number " + page));
+			return handle;
+		}
+		
+		if(mShutdown) {
+			PageHandle handle = new PageHandle(page);
+			handle.fail(new IOException("Page cache is shut down"));
+			return handle;
+		}
+		
+		PageHandle handle;
+		synchronized(mHandles) {
+			handle = mHandles[page];
+			if(handle == null || handle.isFailed()) {
+				handle = new PageHandle(page);
+				mHandles[page] = handle;
 			}
-					
-			// Wait for file to be rendered
-			Log.i(TAG, "Waiting for page to be rendered");
-			mLock.lock();
-			try {
-				while(mPagesStatus.get(page) != PageStatus.RENDERED) {
-					mPageReadyCondition.await();
-				}
-			} finally {
-				mLock.unlock();
+			mPagesStatus.transition(page, PageStatus.FAILED, PageStatus.PENDING);
+		}
+		
+		// Rendered in an earlier session, so nothing finished the handle
+		if(mPagesStatus.is(page, PageStatus.RENDERED) && ! handle.isDone()) {
+			ByteBuffer image = mBook.getRenderedPage(page);
+			if(image != null) {
+				handle.complete(image);
+			} else {
+				mPagesStatus.transition(page, PageStatus.RENDERED, PageStatus.PENDING);
 			}
-			Log.i(TAG, "Recieved signal that page was rendered");
-				
-			// Find the file
-			File file = mBook.findRenderedFile(page);
-			return file;
-			
-		} catch (InterruptedException e1) {
+		}
+		
+		boolean hit = mPagesStatus.is(page, PageStatus.RENDERED);
+		mWindow.recordRequest(page, hit);
+		PageMetrics.count(hit ? PageMetrics.Counter.PAGE_HIT : PageMetrics.Counter.PAGE_MISS);
+		
+		// Make room for the page now, rather than once the prefetches in flight are done
+		preempt(page);
+		
+		// Hand the requested page to the scheduler
+		mLastRequest = page;
+		synchronized(mRequestLock) {
+			mPendingRequest = page;
+			mRequestLock.notifyAll();
+		}
+		
+		// Make sure the background thread is running
+		if(! mCacheThread.isAlive()) {
+			mCacheThread = new Thread(doCaching, "PageCacheManager");
+			mCacheThread.start();
+		}
+		
+		return handle;
+	}
+	
+	// Blocking version of request(). Returns null if the page could not be rendered, or if
+	// the thread is interrupted, in which case the page carries on as a prefetch
+	
+	public ByteBuffer getPage(int page) {
+		long trace = Tracer.begin();
+		try {
+			return request(page).get();
+		} catch (IOException e) {
+			Log.e(TAG, "getPage(): " + e.getMessage());
+			return null;
+		} catch (InterruptedException e) {
+			withdraw(page, null);
 			Thread.currentThread().interrupt();
-			throw new RuntimeException("Unexpected interruption");
+			return null;
+		} finally {
+			Tracer.end("wait", trace, page);
+		}
+	}
+	
+	// Withdraws interest in a page asked for with request(), and takes callback, if there is
+	// one, off its handle. Nothing is thrown away: a download of the page carries on, but as
+	// a prefetch, so it no longer goes ahead of other pages and can be cancelled for one
+	
+	public void withdraw(int page, PageHandle.Callback callback) {
+		if(page < 1 || page > mBook.getNumPages()) return;
+		Tracer.instant("withdraw", page);
+		
+		if(callback != null) {
+			PageHandle handle;
+			synchronized(mHandles) {
+				handle = mHandles[page];
+			}
+			if(handle != null) handle.removeCallback(callback);
 		}
 		
+		synchronized(mDownloads) {
+			DownloadTask task = mDownloads.get(page);
+			if(task != null) task.mVisible = false;
+		}
+	}
+	
+	// Returns the rendered image of a page if it is ready, without requesting it
+	
+	public ByteBuffer getPageIfReady(int page) {
+		if(page < 1 || page > mBook.getNumPages() || ! mPagesStatus.is(page, PageStatus.RENDERED)) {
+			return null;
+		}
+		return mBook.getRenderedPage(page);
 	}
 	
-	private int getNextPageToDownload(int lastRequest) {
+	// Hooks for BookDownloader, which takes pages through the same states as the scheduler
+	// so a page is only ever fetched by one of the two
+	
+	// Takes a page for downloading, retrying it if it failed before. Returns false if it is
+	// already rendered or someone else has it
+	
+	boolean claimForDownload(int page) {
+		mPagesStatus.transition(page, PageStatus.FAILED, PageStatus.PENDING);
+		return mPagesStatus.claim(page);
+	}
+	
+	void setStatus(int page, PageStatus status) {
+		mPagesStatus.set(page, status);
+	}
+	
+	// Hands back a page that was claimed for downloading and given up on, as when a prefetch
+	// is cancelled or the book download is paused. If it is in the window around the
+	// reader's page, the scheduler goes round again, so a reader who asked for it while it
+	// was claimed isn't left waiting
+	
+	void release(int page) {
+		mPagesStatus.set(page, PageStatus.PENDING);
+		int request = mLastRequest;
+		if(mShutdown || request == NO_REQUEST || (page != request && ! isInWindow(page, request))) return;
+		
+		synchronized(mRequestLock) {
+			if(mPendingRequest == NO_REQUEST) mPendingRequest = request;
+			mRequestLock.notifyAll();
+		}
+	}
+	
+	// Marks a page claimed with claimForDownload() as ready, and hands it to anyone waiting
+	
+	void complete(int page, ByteBuffer image) {
+		mPagesStatus.set(page, PageStatus.RENDERED);
+		handleFor(page).complete(image);
+	}
+	
+	void fail(int page, Exception e) {
+		pageFailed(page, e);
+	}
+	
+	// Whether page is the one the reader is on
+	
+	boolean isRequested(int page) {
+		return mLastRequest == page;
+	}
+	
+	// Whether the reader's own pages are being downloaded
+	
+	boolean isLoading() {
+		return mDownloadSlots.availablePermits() < DOWNLOAD_THREADS;
+	}
+	
+	int countRendered() {
+		int rendered = 0;
+		for(int page = 1; page <= mBook.getNumPages(); page++) {
+			if(mPagesStatus.is(page, PageStatus.RENDERED)) rendered++;
+		}
+		return rendered;
+	}
+	
+	private PageHandle handleFor(int page) {
+		synchronized(mHandles) {
+			if(mHandles[page] == null) {
+				mHandles[page] = new PageHandle(page);
+			}
+			return mHandles[page];
+		}
+	}
+	
+	// startTime is the System.nanoTime() the page was scheduled at
+	
+	private void pageRendered(int page, ByteBuffer image, long startTime) {
+		PageMetrics.record(PageMetrics.Stage.PAGE, startTime);
+		mWindow.recordPageTime((System.nanoTime() - startTime) / 1000000);
+		mPagesStatus.set(page, PageStatus.RENDERED);
+		handleFor(page).complete(image);
+	}
+	
+	// The handle is taken out and the status published in one step, under the lock request()
+	// holds, so a request either gets the handle that fails here or, once the page is FAILED,
+	// a new one for the retry. Never the old handle for a page it has set going again
+	
+	private void pageFailed(int page, Exception e) {
+		Log.e(TAG, "Page " + page + " failed: " + e.toString());
+		PageHandle handle;
+		synchronized(mHandles) {
+			handle = handleFor(page);
+			mHandles[page] = null;
+			mPagesStatus.set(page, PageStatus.FAILED);
+		}
+		handle.fail(e instanceof IOException
+				? (IOException) e
+				: new IOException(e.toString(), e));
+	}
+	
+	// Finds the next page that needs caching and claims it for downloading, or returns 0 if
+	// there is nothing to do. Package-private for the scheduling benchmark
+	
+	int getNextPageToDownload(int lastRequest) {
 	
 		// Is there a page we have requested but hasn't been done yet?
-		if((lastRequest > 0) && (mPagesStatus.get(lastRequest) == PageStatus.PENDING)) {
+		if((lastRequest > 0) && mPagesStatus.claim(lastRequest)) {
 			return lastRequest;
 		}
 		
-		// Check ahead if any pages need to be cached
+		// Check ahead, then behind, in the direction the user is reading
 		
-		int checkAhead = (lastRequest + 1 + DEFAULT_CACHE_SIZE_AHEAD) <= mBook.getNumPages()
-				? lastRequest + 1 + DEFAULT_CACHE_SIZE_AHEAD
-				: mBook.getNumPages();
-				
-		for(int i = lastRequest + 1; i < checkAhead; i++) {
-			if(mPagesStatus.get(i) == PageStatus.PENDING) {
-				return i;
+		int ahead = mWindow.getAhead();
+		int behind = mWindow.getBehind();
+		int step = mWindow.isReadingForwards() ? 1 : -1;
+		
+		for(int i = 1; i <= ahead; i++) {
+			int page = lastRequest + i * step;
+			if(page >= 1 && page <= mBook.getNumPages() && mPagesStatus.claim(page)) {
+				return page;
 			}
 		}
 		
-		// Check behind if any pages need to be cached
-		int checkBehind = (lastRequest - 1 - DEFAULT_CACHE_SIZE_BEHIND) > 0
-				? lastRequest - 1 - DEFAULT_CACHE_SIZE_BEHIND
-				: 1;
-
-		for(int i = lastRequest; i > checkBehind; i--) {
-			if(mPagesStatus.get(i) == PageStatus.PENDING) {
-				return i;
+		for(int i = 1; i <= behind; i++) {
+			int page = lastRequest - i * step;
+			if(page >= 1 && page <= mBook.getNumPages() && mPagesStatus.claim(page)) {
+				return page;
 			}
 		}
 		
@@ -133,6 +359,104 @@ public class PageCacheManager {
 		return 0;
 	}
 	
+	// Makes way for a page the reader is waiting for. Prefetches that are no longer in the
+	// window around it are cancelled, and so is the one farthest from it if the page still
+	// needs a download slot and none is free. A cancelled transfer keeps what it downloaded,
+	// and picks up from there when the page is scheduled again
+	
+	private void preempt(int page) {
+		boolean needsSlot = mPagesStatus.is(page, PageStatus.PENDING);
+		int freeSlots = mDownloadSlots.availablePermits();
+		DownloadTask farthest = null;
+		
+		synchronized(mDownloads) {
+			for(DownloadTask task : mDownloads.values()) {
+				if(task.mPage == page) {
+					task.mVisible = true;
+					continue;
+				}
+				task.mVisible = false;
+				
+				// Only the network part is worth cancelling
+				if(task.isCancelled() || ! mPagesStatus.is(task.mPage, PageStatus.DOWNLOADING)) continue;
+				
+				if(! isInWindow(task.mPage, page)) {
+					task.cancel();
+					freeSlots++;
+				} else if(farthest == null || Math.abs(task.mPage - page) > Math.abs(farthest.mPage - page)) {
+					farthest = task;
+				}
+			}
+		}
+		
+		if(needsSlot && freeSlots == 0 && farthest != null) {
+			farthest.cancel();
+		}
+		
+		promoteRender(page);
+	}
+	
+	// A task's place in the extraction queue is fixed once it is queued, so a prefetched page
+	// the reader asks for while it waits there is taken out and queued again as visible
+	
+	private void promoteRender(int page) {
+		RenderTask promoted;
+		synchronized(mRenders) {
+			RenderTask task = mRenders.get(page);
+			if(task == null || task.mVisible || ! mRenderExecutor.getQueue().remove(task)) return;
+			
+			promoted = task.promote();
+			mRenders.put(page, promoted);
+		}
+		mRenderExecutor.execute(promoted);
+	}
+	
+	private boolean isInWindow(int page, int request) {
+		int offset = mWindow.isReadingForwards() ? page - request : request - page;
+		return offset <= mWindow.getAhead() && offset >= -mWindow.getBehind();
+	}
+	
+	// Waits for the reader to ask for a page, and takes the request
+	
+	private int takeRequest() throws InterruptedException {
+		synchronized(mRequestLock) {
+			while(mPendingRequest == NO_REQUEST) {
+				mRequestLock.wait();
+			}
+			int page = mPendingRequest;
+			mPendingRequest = NO_REQUEST;
+			return page;
+		}
+	}
+	
+	private boolean hasRequest() {
+		synchronized(mRequestLock) {
+			return mPendingRequest != NO_REQUEST;
+		}
+	}
+	
+	private void startDownload(int page, boolean visible) {
+		DownloadTask task = new DownloadTask(page, visible);
+		synchronized(mDownloads) {
+			mDownloads.put(page, task);
+		}
+		mDownloadExecutor.execute(task);
+	}
+	
+	// Keeps the pages in the prefetch window from being evicted from the disk cache
+	
+	private void pinWindow(int lastRequest) {
+		int ahead = mWindow.getAhead();
+		int behind = mWindow.getBehind();
+		if(mWindow.isReadingForwards()) {
+			mBook.pinPages(lastRequest - behind, lastRequest + ahead);
+		} else {
+			mBook.pinPages(lastRequest - ahead, lastRequest + behind);
+		}
+	}
+	
+	// Scheduler: picks the pages to cache and hands them to the download stage
+	
 	private final Runnable doCaching = new Runnable() {
 
 		public void run() {
@@ -144,65 +468,227 @@ public class PageCacheManager {
 				while(true) {
 					
 					// Wait until we have a page requested
-					Log.i(TAG, "Waiting for page request");
-					int lastRequest = mPageRequestsQueue.takeFirst();
+					int lastRequest = takeRequest();
+					pinWindow(lastRequest);
 					
-					int page = getNextPageToDownload(lastRequest);
-					
-					while(page != 0) {
-						
-						// Download and render the file
+					while(true) {
 						
-						try {
-							File pdf = mBook.getPage(page);
-							mPagesStatus.set(page, PageStatus.DOWNLOADED);
-							File png = mBook.renderPage(pdf);
-							
-							// If something went wrong, take a second try
-							if(png == null || png.exists() != true) {
-								pdf.delete();
-								png.delete();
-								pdf = mBook.getPage(page);
-								png = mBook.renderPage(pdf);
-							}
-							mPagesStatus.set(page, PageStatus.RENDERED);
-						} catch (Exception e) {
-							// TODO: Better error handling
-							Log.e(TAG, "Error in PageCacheThread: " + e.toString());
-						}
+						// Wait for a free download slot
+						mDownloadSlots.acquire();
 						
-						Log.i(TAG, "Signalling that we have rendered a page");
-						try {
-							mLock.lock();
-							mPageReadyCondition.signalAll();
-						} finally {
-							mLock.unlock();
+						// If we have a new request while we were waiting, forget about the current one
+						if(hasRequest()) {
+							mDownloadSlots.release();
+							break;
 						}
 						
-						// If we have a new request, forget about the current one
-						if(mPageRequestsQueue.size() > 0) {
-							Log.i(TAG, "New page request on queue!");
-							page = 0;
-						} else {
-							page = getNextPageToDownload(lastRequest);
+						int page = getNextPageToDownload(lastRequest);
+						if(page == 0) {
+							mDownloadSlots.release();
+							break;
 						}
 						
+						Tracer.instant("schedule", page);
+						startDownload(page, page == lastRequest);
 					}
 	
 				}
 			} catch (InterruptedException iex) {
 				// Interruption will just end the Runnable
 			}
-			
-						
-			// TODO: investigate possible performance benefits of rendering in separate thread while downloading next page
-			// TODO: change code to use ExecutorService to manage threads
 		}
 		
 	};
 	
+	// Download stage: fetches the PDF, then waits for room in the extraction stage. Pages
+	// whose image can be extracted while downloading skip the extraction stage. A prefetch
+	// can be cancelled, which interrupts its thread so the transfer stops at the next read
+	
+	private class DownloadTask implements Runnable {
+		
+		private final int mPage;
+		private final long mStartTime = System.nanoTime();
+		
+		// Whether this is the page the reader last asked for, rather than a prefetch
+		volatile boolean mVisible;
+		
+		private boolean mCancelled = false;
+		private Thread mThread = null;
+		
+		DownloadTask(int page, boolean visible) {
+			mPage = page;
+			mVisible = visible;
+		}
+		
+		synchronized void cancel() {
+			Tracer.instant("cancel", mPage);
+			mCancelled = true;
+			if(mThread != null) mThread.interrupt();
+		}
+		
+		synchronized boolean isCancelled() {
+			return mCancelled;
+		}
+		
+		public void run() {
+			PageMetrics.record(PageMetrics.Stage.DOWNLOAD_QUEUE, mStartTime);
+			long trace = Tracer.begin();
+			synchronized(this) {
+				mThread = Thread.currentThread();
+				if(mCancelled) mThread.interrupt();
+			}
+			
+			try {
+				ByteBuffer image = mBook.streamPage(mPage);
+				if(image != null) {
+					pageRendered(mPage, image, mStartTime);
+					return;
+				}
+				
+				File pdf = mBook.getPage(mPage);
+				mPagesStatus.set(mPage, PageStatus.DOWNLOADED);
+				long downloaded = System.nanoTime();
+				
+				// The page the reader is waiting for doesn't wait for room behind prefetches,
+				// including a prefetch the reader asks for while it waits
+				boolean holdsSlot = false;
+				while(! mVisible && ! holdsSlot) {
+					holdsSlot = mRenderSlots.tryAcquire(RENDER_SLOT_POLL_MS, TimeUnit.MILLISECONDS);
+				}
+				boolean visible = mVisible;
+				RenderTask render = new RenderTask(mPage, pdf, visible, holdsSlot, mStartTime, downloaded);
+				synchronized(mRenders) {
+					mRenders.put(mPage, render);
+				}
+				mRenderExecutor.execute(render);
+				
+				// Asked for while this was waiting for room, after preempt() looked for it
+				if(! visible && isRequested(mPage)) promoteRender(mPage);
+			} catch (InterruptedException e) {
+				// Cancelled or shutting down, leave the page for another time
+				release(mPage);
+				Thread.currentThread().interrupt();
+			} catch (Exception e) {
+				if(isCancelled()) {
+					release(mPage);
+				} else {
+					pageFailed(mPage, e);
+				}
+			} finally {
+				synchronized(this) {
+					mThread = null;
+					// Don't let a cancellation carry over to the next task on this thread
+					if(mCancelled) Thread.interrupted();
+				}
+				synchronized(mDownloads) {
+					if(mDownloads.get(mPage) == this) mDownloads.remove(mPage);
+				}
+				mDownloadSlots.release();
+				Tracer.end("download", trace, mPage);
+			}
+		}
+	}
+	
+	// Extraction stage: pulls the image out of the downloaded PDF. Pages the reader is
+	// waiting for go first, then prefetched pages in the order they were downloaded
+	
+	private class RenderTask implements Runnable, Comparable<RenderTask> {
+		
+		private final int mPage;
+		private final File mPdf;
+		private final boolean mVisible;
+		private final boolean mHoldsSlot;
+		private final long mStartTime;
+		private final long mDownloadedTime;
+		private final long mSequence = mRenderSequence.incrementAndGet();
+		
+		RenderTask(int page, File pdf, boolean visible, boolean holdsSlot, long startTime, long downloadedTime) {
+			mPage = page;
+			mPdf = pdf;
+			mVisible = visible;
+			mHoldsSlot = holdsSlot;
+			mStartTime = startTime;
+			mDownloadedTime = downloadedTime;
+		}
+		
+		// The same extraction as a visible page, still holding this one's slot
+		
+		RenderTask promote() {
+			return new RenderTask(mPage, mPdf, true, mHoldsSlot, mStartTime, mDownloadedTime);
+		}
+		
+		public void run() {
+			PageMetrics.record(PageMetrics.Stage.EXTRACT_QUEUE, mDownloadedTime);
+			synchronized(mRenders) {
+				if(mRenders.get(mPage) == this) mRenders.remove(mPage);
+			}
+			long trace = Tracer.begin();
+			try {
+				mPagesStatus.set(mPage, PageStatus.RENDERING);
+				File pdf = mPdf;
+				ByteBuffer image = mBook.renderPage(mPage, pdf);
+				
+				// If something went wrong, take a second try
+				if(image == null) {
+					mBook.removePage(mPage);
+					pdf = mBook.getPage(mPage);
+					image = mBook.renderPage(mPage, pdf);
+				}
+				
+				if(image != null) {
+					pageRendered(mPage, image, mStartTime);
+				} else {
+					pageFailed(mPage, new IOException("Could not extract image from " + pdf.getName()));
+				}
+			} catch (Exception e) {
+				pageFailed(mPage, e);
+			} finally {
+				// Pages first queued as visible didn't take a slot
+				if(mHoldsSlot) mRenderSlots.release();
+				Tracer.end("extract", trace, mPage);
+			}
+		}
+		
+		public int compareTo(RenderTask other) {
+			if(mVisible != other.mVisible) {
+				return mVisible ? -1 : 1;
+			}
+			return mSequence < other.mSequence ? -1 : (mSequence == other.mSequence ? 0 : 1);
+		}
+	}
+	
+	private static class StageThreadFactory implements ThreadFactory {
+		
+		private final String mStage;
+		private final AtomicInteger mCount = new AtomicInteger();
+		
+		StageThreadFactory(String stage) {
+			mStage = stage;
+		}
+		
+		public Thread newThread(Runnable r) {
+			return new Thread(r, "PageCacheManager-" + mStage + "-" + mCount.incrementAndGet());
+		}
+	}
+	
 	public HebrewBook getBook() {
 		return mBook;
 	}
 	
+	// Current prefetch window, in pages ahead of and behind the reader in their reading direction
+	
+	public int getPrefetchAhead() {
+		return mWindow.getAhead();
+	}
+	
+	public int getPrefetchBehind() {
+		return mWindow.getBehind();
+	}
+	
+	// Fraction of page requests that found the page already rendered
+	
+	public double getHitRate() {
+		return mWindow.getHitRate();
+	}
+	
 }
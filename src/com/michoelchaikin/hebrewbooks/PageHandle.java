@@ -0,0 +1,126 @@
+package com.michoelchaikin.hebrewbooks;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Completion handle for a single page of a {@link PageCacheManager}.
+ *
+ * A page finishes either with its rendered image or with the error that stopped it. Only
+ * threads waiting on this page are woken when it finishes.
+ */
+public class PageHandle {
+
+	public interface Callback {
+		// Called on the thread that finished the page, or straight away if it was already finished
+		void onPageReady(int page, ByteBuffer image);
+		void onPageFailed(int page, IOException error);
+	}
+
+	private final int mPage;
+	private boolean mDone = false;
+	private ByteBuffer mImage = null;
+	private IOException mError = null;
+	private final List<Callback> mCallbacks = new ArrayList<Callback>();
+
+	PageHandle(int page) {
+		mPage = page;
+	}
+
+	public int getPage() {
+		return mPage;
+	}
+
+	public synchronized boolean isDone() {
+		return mDone;
+	}
+
+	public synchronized boolean isFailed() {
+		return mDone && mError != null;
+	}
+
+	// Waits for the page with no time limit
+
+	public ByteBuffer get() throws IOException, InterruptedException {
+		synchronized(this) {
+			while(! mDone) {
+				wait();
+			}
+			return result();
+		}
+	}
+
+	// Waits for the page, giving up with a TimeoutException once the timeout has passed
+
+	public ByteBuffer get(long timeout, TimeUnit unit) throws IOException, InterruptedException, TimeoutException {
+		long remaining = unit.toNanos(timeout);
+		long deadline = System.nanoTime() + remaining;
+		synchronized(this) {
+			while(! mDone) {
+				if(remaining <= 0) {
+					throw new TimeoutException("Timed out waiting for page " + mPage);
+				}
+				TimeUnit.NANOSECONDS.timedWait(this, remaining);
+				remaining = deadline - System.nanoTime();
+			}
+			return result();
+		}
+	}
+
+	public void addCallback(Callback callback) {
+		synchronized(this) {
+			if(! mDone) {
+				mCallbacks.add(callback);
+				return;
+			}
+		}
+		dispatch(callback);
+	}
+
+	public synchronized void removeCallback(Callback callback) {
+		mCallbacks.remove(callback);
+	}
+
+	void complete(ByteBuffer image) {
+		finish(image, null);
+	}
+
+	void fail(IOException error) {
+		finish(null, error);
+	}
+
+	private void finish(ByteBuffer image, IOException error) {
+		List<Callback> callbacks;
+		synchronized(this) {
+			if(mDone) return;
+			mDone = true;
+			mImage = image;
+			mError = error;
+			callbacks = new ArrayList<Callback>(mCallbacks);
+			mCallbacks.clear();
+			notifyAll();
+		}
+		for(Callback callback : callbacks) {
+			dispatch(callback);
+		}
+	}
+
+	private void dispatch(Callback callback) {
+		if(mError != null) {
+			callback.onPageFailed(mPage, mError);
+		} else {
+			callback.onPageReady(mPage, mImage);
+		}
+	}
+
+	private ByteBuffer result() throws IOException {
+		if(mError != null) {
+			throw new IOException("Page " + mPage + " failed: " + mError.getMessage(), mError);
+		}
+		return mImage;
+	}
+}
@@ -0,0 +1,47 @@
+package com.michoelchaikin.hebrewbooks;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * Status of every page of a book, one int per page, updated with compare-and-set.
+ *
+ * Reads and transitions never take a lock, and claim() guarantees that two workers
+ * can not pick up the same page.
+ */
+class PageStateTable {
+
+	private static final PageStatus[] STATES = PageStatus.values();
+
+	private final AtomicIntegerArray mStates;
+
+	// All pages start as PENDING
+	PageStateTable(int size) {
+		mStates = new AtomicIntegerArray(size);
+	}
+
+	int size() {
+		return mStates.length();
+	}
+
+	PageStatus get(int page) {
+		return STATES[mStates.get(page)];
+	}
+
+	boolean is(int page, PageStatus status) {
+		return mStates.get(page) == status.ordinal();
+	}
+
+	void set(int page, PageStatus status) {
+		mStates.set(page, status.ordinal());
+	}
+
+	// Moves the page to a new status, but only if it is still in the expected one
+	boolean transition(int page, PageStatus from, PageStatus to) {
+		return mStates.compareAndSet(page, from.ordinal(), to.ordinal());
+	}
+
+	// Takes a pending page for downloading. Only one caller can succeed for each page
+	boolean claim(int page) {
+		return transition(page, PageStatus.PENDING, PageStatus.DOWNLOADING);
+	}
+}
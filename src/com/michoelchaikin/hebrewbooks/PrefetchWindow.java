@@ -0,0 +1,113 @@
+package com.michoelchaikin.hebrewbooks;
+
+/**
+ * Decides how many pages to cache ahead of and behind the reader.
+ *
+ * Tracks the reading direction, the time between page turns and the time it takes to
+ * download and render a page. The ahead window is sized so that the pages read while one
+ * page is being prepared are already cached, and the behind window follows how often the
+ * reader turns back. "Ahead" is always in the reading direction.
+ */
+class PrefetchWindow {
+
+	static final int DEFAULT_AHEAD = 5;
+	static final int DEFAULT_BEHIND = 3;
+
+	private static final int MIN_AHEAD = 2;
+	private static final int MAX_AHEAD = 30;
+	private static final int MIN_BEHIND = 1;
+	private static final int MAX_BEHIND = 10;
+
+	// Weight of a new sample in the moving averages
+	private static final double SMOOTHING = 0.3;
+
+	// Moving more than this many pages is a jump to another place, not a page turn
+	private static final int MAX_TURN = 2;
+
+	// Longer pauses than this don't change the window any more, so they are counted as this
+	private static final long MAX_TURN_INTERVAL = 60 * 1000;
+
+	private int mLastPage = 0;
+	private long mLastTurnTime = 0;
+
+	// Moving averages, 0 until first measured
+	private double mTurnInterval = 0;
+	private double mPageTime = 0;
+
+	// +1 when always reading forwards, -1 when always reading backwards
+	private double mDirection = 1;
+
+	private int mAhead = DEFAULT_AHEAD;
+	private int mBehind = DEFAULT_BEHIND;
+
+	private long mHits = 0;
+	private long mMisses = 0;
+
+	// Called for every page the reader asks for. ready is whether it was already cached
+
+	synchronized void recordRequest(int page, boolean ready) {
+		long now = System.currentTimeMillis();
+
+		if(ready) {
+			mHits++;
+		} else {
+			mMisses++;
+		}
+
+		int delta = page - mLastPage;
+		if(mLastPage != 0 && delta != 0 && Math.abs(delta) <= MAX_TURN) {
+			long interval = Math.min(now - mLastTurnTime, MAX_TURN_INTERVAL);
+			mTurnInterval = average(mTurnInterval, interval);
+			mDirection += SMOOTHING * (Math.signum(delta) - mDirection);
+			resize();
+		}
+
+		mLastPage = page;
+		mLastTurnTime = now;
+	}
+
+	// Called with the time it took to download and render a page
+
+	synchronized void recordPageTime(long millis) {
+		mPageTime = average(mPageTime, millis);
+		resize();
+	}
+
+	synchronized int getAhead() {
+		return mAhead;
+	}
+
+	synchronized int getBehind() {
+		return mBehind;
+	}
+
+	synchronized boolean isReadingForwards() {
+		return mDirection >= 0;
+	}
+
+	// Fraction of requests that found the page already cached
+
+	synchronized double getHitRate() {
+		long total = mHits + mMisses;
+		return total == 0 ? 0 : (double) mHits / total;
+	}
+
+	private void resize() {
+		if(mTurnInterval <= 0 || mPageTime <= 0) return;
+
+		// Pages the reader gets through while one page is being prepared, plus the next page
+		int ahead = (int) Math.ceil(mPageTime / mTurnInterval) + 1;
+		mAhead = Math.max(MIN_AHEAD, Math.min(MAX_AHEAD, ahead));
+
+		// Chance that the next turn goes back a page
+		double backwards = (1 - Math.abs(mDirection)) / 2;
+		int behind = (int) Math.ceil(mAhead * backwards);
+		mBehind = Math.max(MIN_BEHIND, Math.min(MAX_BEHIND, behind));
+	}
+
+	private static double average(double current, double sample) {
+		return current == 0
+				? sample
+				: current + SMOOTHING * (sample - current);
+	}
+}
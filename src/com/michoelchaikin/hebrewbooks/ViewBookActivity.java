@@ -1,5 +1,6 @@
 package com.michoelchaikin.hebrewbooks;
 
+import java.io.File;
 import java.io.IOException;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
@@ -10,6 +11,7 @@ import android.app.Dialog;
 import android.content.Context;
 import android.content.DialogInterface;
 import android.content.Intent;
+import android.content.pm.ApplicationInfo;
 import android.net.ConnectivityManager;
 import android.net.NetworkInfo;
 import android.net.Uri;
@@ -18,6 +20,7 @@ import android.os.Bundle;
 import android.text.InputType;
 import android.util.Log;
 import android.view.Menu;
+import android.view.MenuItem;
 import android.view.View;
 import android.view.WindowManager;
 import android.widget.Button;
@@ -25,6 +28,8 @@ import android.widget.EditText;
 import android.widget.TextView;
 import android.widget.Toast;
 
+import com.michoelchaikin.hebrewbooks.metrics.PageMetrics;
+import com.michoelchaikin.hebrewbooks.metrics.Tracer;
 import com.michoelchaikin.hebrewbooks.ui.PageView;
 import com.michoelchaikin.hebrewbooks.utils.HebrewBooksUtils;
 
@@ -33,9 +38,12 @@ public class ViewBookActivity extends Activity {
 
 	private static final String TAG = "ViewBookActivity";
 	private static final int TEST_BOOK_ID = 15860;
+	private static final String METRICS_FILE = "page-metrics.txt";
+	private static final String TRACE_FILE = "page-trace.json";
 
 	private HebrewBook mBook = null;
 	private volatile PageCacheManager mCacheManager = null;
+	private BookDownloader mDownloader = null;
 
 	private int mCurrentPage = 0;
 	private Button mButPrev;
@@ -46,6 +54,11 @@ public class ViewBookActivity extends Activity {
 	@Override
 	protected void onCreate(Bundle savedInstanceState) {
 		super.onCreate(savedInstanceState);
+		
+		// Debug builds keep a timeline of page loads, written out with the metrics
+		if((getApplicationInfo().flags & ApplicationInfo.FLAG_DEBUGGABLE) != 0 && ! Tracer.isEnabled()) {
+			Tracer.start();
+		}
 
 		// Make sure we have Internet connection
 
@@ -149,7 +162,7 @@ public class ViewBookActivity extends Activity {
 		if(page == 0) page = 1;
 
 		mCurrentPage = page;
-		mBook = new HebrewBook(this, bookID);
+		mBook = new HebrewBook(new AndroidCacheDirProvider(this), bookID);
 		return true;
 	}
 
@@ -173,6 +186,7 @@ public class ViewBookActivity extends Activity {
 			if(result != true) {
 				Toast.makeText(ViewBookActivity.this, "Error reading book information. Please ensure book is valid and Internet connection available", Toast.LENGTH_LONG).show();
 				finish();
+				return;
 			}
 
 			setTitle(mBook.getNameHebrew() + " (" + mBook.getAuthorHebrew() + ")");
@@ -180,6 +194,10 @@ public class ViewBookActivity extends Activity {
 			mCacheManager = new PageCacheManager(mBook);
 			mCacheManager.init();
 
+			mDownloader = new BookDownloader(mCacheManager);
+			mDownloader.setListener(mDownloadListener);
+			mDownloader.resumeIfRunning();
+
 			loadPage(mCurrentPage);
 		}
 	}
@@ -236,6 +254,39 @@ public class ViewBookActivity extends Activity {
 	}
 
 
+	// Debug builds leave the page timings, and the trace if there is one, in the app's files
+	// directory, where they can be pulled with adb. Not the cache directory, which DiskCache
+	// owns and cleans up
+	
+	@Override
+	protected void onPause() {
+		super.onPause();
+		if((getApplicationInfo().flags & ApplicationInfo.FLAG_DEBUGGABLE) == 0) return;
+		
+		File external = getExternalFilesDir(null);
+		final File dir = external != null ? external : getFilesDir();
+		new Thread(new Runnable() {
+			public void run() {
+				try {
+					PageMetrics.dump(new File(dir, METRICS_FILE));
+					Tracer.writeJson(new File(dir, TRACE_FILE));
+				} catch (IOException e) {
+					Log.w(TAG, "Could not write page metrics: " + e.getMessage());
+				}
+			}
+		}, "PageMetricsDump").start();
+	}
+
+	// The download carries on when the book is opened again
+	
+	@Override
+	protected void onDestroy() {
+		super.onDestroy();
+		if(mDownloader != null) mDownloader.shutdown();
+		if(mCacheManager != null) mCacheManager.shutdown();
+		if(mBook != null) mBook.close();
+	}
+
 	@Override
 	public boolean onCreateOptionsMenu(Menu menu) {
 		// Inflate the menu; this adds items to the action bar if it is present.
@@ -243,4 +294,70 @@ public class ViewBookActivity extends Activity {
 		return true;
 	}
 
+	@Override
+	public boolean onPrepareOptionsMenu(Menu menu) {
+		MenuItem download = menu.findItem(R.id.action_download);
+		if(mDownloader == null) {
+			download.setEnabled(false);
+		} else {
+			download.setEnabled(true);
+			switch(mDownloader.getState()) {
+			case RUNNING:
+				download.setTitle(getString(R.string.action_pause_download,
+						mDownloader.getPagesDone(), mBook.getNumPages()));
+				break;
+			case PAUSED:
+				download.setTitle(R.string.action_resume_download);
+				break;
+			case COMPLETE:
+				download.setTitle(R.string.action_downloaded);
+				download.setEnabled(false);
+				break;
+			default:
+				download.setTitle(R.string.action_download);
+				break;
+			}
+		}
+		return super.onPrepareOptionsMenu(menu);
+	}
+
+	@Override
+	public boolean onOptionsItemSelected(MenuItem item) {
+		if(item.getItemId() == R.id.action_download && mDownloader != null) {
+			if(mDownloader.getState() == BookDownloader.State.RUNNING) {
+				mDownloader.pause();
+			} else {
+				mDownloader.start();
+			}
+			return true;
+		}
+		return super.onOptionsItemSelected(item);
+	}
+
+	private final BookDownloader.Listener mDownloadListener = new BookDownloader.Listener() {
+
+		public void onProgress(int pagesDone, int numPages) {
+		}
+
+		public void onStateChanged(final BookDownloader.State state) {
+			runOnUiThread(new Runnable() {
+				public void run() {
+					int message;
+					switch(state) {
+					case RUNNING:
+						message = R.string.download_started;
+						break;
+					case COMPLETE:
+						message = R.string.download_complete;
+						break;
+					default:
+						message = mDownloader.getFailedPages() > 0 ? R.string.download_failed : R.string.download_paused;
+						break;
+					}
+					Toast.makeText(getApplicationContext(), getString(message), Toast.LENGTH_SHORT).show();
+				}
+			});
+		}
+	};
+
 }
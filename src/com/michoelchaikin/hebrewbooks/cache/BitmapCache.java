@@ -0,0 +1,175 @@
+package com.michoelchaikin.hebrewbooks.cache;
+
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Set;
+
+import android.app.ActivityManager;
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.support.v4.util.LruCache;
+import android.util.DisplayMetrics;
+
+import com.michoelchaikin.hebrewbooks.utils.HebrewBooksUtils;
+
+/**
+ * In-memory cache of decoded page bitmaps, shared by all page views.
+ *
+ * Bitmaps are keyed by book, page and sample size, and the cache is bounded by the bytes
+ * they use, a third of the app's heap, which leaves room for the current page and its
+ * neighbours. The size of each page image is remembered as well, so a lookup can work out
+ * the sample size without touching the disk.
+ *
+ * Bitmaps that are neither cached nor shown in a view go to a {@link BitmapPool} to be
+ * decoded into again. Views must acquire() the bitmap they show and release() it when
+ * they replace it. A bitmap is acquired before it is handed to the UI thread, as it can
+ * drop out of the cache, and be decoded into again, before the UI thread gets to it.
+ */
+public class BitmapCache {
+
+	// Share of the memory class given to the cache
+	private static final int HEAP_FRACTION = 3;
+
+	// The pool of unused bitmaps holds this many screen-sized page bitmaps: a page turn frees
+	// about one and pre-decoding the next page takes one. It never gets more than this share
+	// of the memory class
+	private static final int POOL_PAGES = 3;
+	private static final int POOL_MAX_HEAP_FRACTION = 4;
+
+	// Pages are decoded at twice the view's width and height, in RGB_565
+	private static final int PAGE_SCALE = 2;
+	private static final int PAGE_BYTES_PER_PIXEL = 2;
+
+	// Number of pages whose image sizes are remembered
+	private static final int MAX_DIMENSIONS = 1000;
+
+	private static BitmapCache sInstance;
+
+	private final LruCache<String, Bitmap> mBitmaps;
+	private final LruCache<String, int[]> mDimensions = new LruCache<String, int[]>(MAX_DIMENSIONS);
+	private final BitmapPool mPool;
+	
+	// Compared by identity, as two different bitmaps can be equal
+	private final Set<Bitmap> mCached = Collections.newSetFromMap(new IdentityHashMap<Bitmap, Boolean>());
+	private final Set<Bitmap> mInUse = Collections.newSetFromMap(new IdentityHashMap<Bitmap, Boolean>());
+
+	public static synchronized BitmapCache getInstance(Context context) {
+		if(sInstance == null) {
+			ActivityManager am = (ActivityManager) context.getSystemService(Context.ACTIVITY_SERVICE);
+			int heapBytes = am.getMemoryClass() * 1024 * 1024;
+			DisplayMetrics display = context.getResources().getDisplayMetrics();
+			long pageBytes = (long) display.widthPixels * PAGE_SCALE * display.heightPixels * PAGE_SCALE * PAGE_BYTES_PER_PIXEL;
+			int poolBytes = (int) Math.min(pageBytes * POOL_PAGES, heapBytes / POOL_MAX_HEAP_FRACTION);
+			sInstance = new BitmapCache(heapBytes / HEAP_FRACTION, new BitmapPool(poolBytes));
+		}
+		return sInstance;
+	}
+
+	BitmapCache(int maxBytes, BitmapPool pool) {
+		mPool = pool;
+		mBitmaps = new LruCache<String, Bitmap>(maxBytes) {
+			@Override
+			protected int sizeOf(String key, Bitmap bitmap) {
+				return BitmapPool.byteCount(bitmap);
+			}
+			
+			@Override
+			protected void entryRemoved(boolean evicted, String key, Bitmap oldValue, Bitmap newValue) {
+				if(oldValue != newValue) {
+					uncache(oldValue);
+				}
+			}
+		};
+	}
+	
+	public BitmapPool getPool() {
+		return mPool;
+	}
+
+	// Returns the page decoded for the required size, or null if it is not in memory
+
+	public Bitmap get(int bookID, int page, int reqHeight, int reqWidth) {
+		int[] dimensions = mDimensions.get(pageKey(bookID, page));
+		if(dimensions == null) {
+			// Never decoded, count it as a miss
+			return mBitmaps.get(bitmapKey(bookID, page, 0));
+		}
+
+		int sampleSize = HebrewBooksUtils.calculateSampleSize(dimensions[0], dimensions[1], reqHeight, reqWidth);
+		Bitmap bitmap = mBitmaps.get(bitmapKey(bookID, page, sampleSize));
+		if(bitmap != null && bitmap.isRecycled()) {
+			mBitmaps.remove(bitmapKey(bookID, page, sampleSize));
+			return null;
+		}
+		return bitmap;
+	}
+
+	// Returns the page decoded for the required size, acquired so it stays out of the pool
+	// until it is released, or null if it is not in memory. Taken under the lock that
+	// eviction pools bitmaps under, so it can't be pooled between the lookup and acquiring
+
+	public synchronized Bitmap acquire(int bookID, int page, int reqHeight, int reqWidth) {
+		Bitmap bitmap = get(bookID, page, reqHeight, reqWidth);
+		if(bitmap != null) mInUse.add(bitmap);
+		return bitmap;
+	}
+
+	// Adds a decoded page. width and height are the size of the full page image. A bitmap
+	// that is going to be shown is acquired before it is added, as adding it can evict it
+	// straight away if it is bigger than the cache
+
+	public void put(int bookID, int page, int width, int height, int sampleSize, Bitmap bitmap) {
+		if(bitmap == null) return;
+		mDimensions.put(pageKey(bookID, page), new int[] { width, height });
+		synchronized(this) {
+			mCached.add(bitmap);
+		}
+		mBitmaps.put(bitmapKey(bookID, page, sampleSize), bitmap);
+	}
+	
+	// Marks a bitmap as shown, so it is not pooled when it drops out of the cache
+	
+	public synchronized void acquire(Bitmap bitmap) {
+		if(bitmap != null) mInUse.add(bitmap);
+	}
+	
+	// Marks a bitmap as no longer shown, pooling it if it is not cached either
+	
+	public synchronized void release(Bitmap bitmap) {
+		if(bitmap == null || ! mInUse.remove(bitmap)) return;
+		if(! mCached.contains(bitmap)) {
+			mPool.put(bitmap);
+		}
+	}
+	
+	private synchronized void uncache(Bitmap bitmap) {
+		mCached.remove(bitmap);
+		if(! mInUse.contains(bitmap)) {
+			mPool.put(bitmap);
+		}
+	}
+
+	public int hitCount() {
+		return mBitmaps.hitCount();
+	}
+
+	public int missCount() {
+		return mBitmaps.missCount();
+	}
+
+	public int size() {
+		return mBitmaps.size();
+	}
+
+	public int maxSize() {
+		return mBitmaps.maxSize();
+	}
+
+	private static String pageKey(int bookID, int page) {
+		return bookID + "_" + page;
+	}
+
+	private static String bitmapKey(int bookID, int page, int sampleSize) {
+		return bookID + "_" + page + "@" + sampleSize;
+	}
+}
@@ -0,0 +1,194 @@
+package com.michoelchaikin.hebrewbooks.cache;
+
+import java.lang.reflect.Method;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.TreeMap;
+
+import android.graphics.Bitmap;
+import android.os.Build;
+
+/**
+ * Pool of page bitmaps that are no longer used, for BitmapFactory to decode into through
+ * inBitmap instead of allocating a new bitmap for every page.
+ *
+ * Bitmaps are grouped into size classes by their byte count. From KitKat a bitmap can be
+ * reused for any image that fits in it; before that (from Honeycomb) it has to be exactly
+ * the same size, and the decode must not be sampled.
+ */
+public class BitmapPool {
+
+	// Bitmap sizes are rounded up to a multiple of this
+	private static final int SIZE_CLASS = 64 * 1024;
+
+	// Don't use a bitmap more than this much bigger than needed
+	private static final float MAX_WASTE = 1.5f;
+
+	private static final int KITKAT = 19;
+
+	// Bitmap.getAllocationByteCount(), which is not in the SDK we build against, or null
+	// before KitKat
+	private static final Method sGetAllocationByteCount = findGetAllocationByteCount();
+
+	// Size class to bitmaps of that class, most recently added last
+	private final TreeMap<Integer, LinkedList<Bitmap>> mBitmaps = new TreeMap<Integer, LinkedList<Bitmap>>();
+	private final int mMaxSize;
+	private int mSize = 0;
+
+	private int mHitCount = 0;
+	private int mMissCount = 0;
+	private int mPutCount = 0;
+	private int mEvictionCount = 0;
+
+	public BitmapPool(int maxSize) {
+		mMaxSize = maxSize;
+	}
+
+	// Whether this device can decode into a pooled bitmap at all
+
+	public static boolean isSupported() {
+		return Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB;
+	}
+
+	// Returns a bitmap that an image of the given decoded size can be decoded into, or null
+
+	public synchronized Bitmap get(int width, int height, int sampleSize, Bitmap.Config config) {
+		if(! isSupported() || (Build.VERSION.SDK_INT < KITKAT && sampleSize > 1)) {
+			mMissCount++;
+			return null;
+		}
+
+		int needed = width * height * bytesPerPixel(config);
+		Map.Entry<Integer, LinkedList<Bitmap>> entry = mBitmaps.ceilingEntry(sizeClass(needed));
+		while(entry != null && entry.getKey() <= needed * MAX_WASTE) {
+			LinkedList<Bitmap> bitmaps = entry.getValue();
+			for(int i = bitmaps.size() - 1; i >= 0; i--) {
+				Bitmap bitmap = bitmaps.get(i);
+				if(canReuse(bitmap, width, height, config)) {
+					bitmaps.remove(i);
+					if(bitmaps.isEmpty()) mBitmaps.remove(entry.getKey());
+					mSize -= byteCount(bitmap);
+					mHitCount++;
+					return bitmap;
+				}
+			}
+			entry = mBitmaps.higherEntry(entry.getKey());
+		}
+
+		mMissCount++;
+		return null;
+	}
+
+	// Gives a bitmap that is no longer shown or cached back to the pool
+
+	public synchronized void put(Bitmap bitmap) {
+		if(bitmap == null || bitmap.isRecycled() || ! bitmap.isMutable() || ! isSupported()) return;
+
+		int size = byteCount(bitmap);
+		if(size > mMaxSize) return;
+
+		int sizeClass = sizeClass(size);
+		LinkedList<Bitmap> bitmaps = mBitmaps.get(sizeClass);
+		if(bitmaps == null) {
+			bitmaps = new LinkedList<Bitmap>();
+			mBitmaps.put(sizeClass, bitmaps);
+		}
+		bitmaps.addLast(bitmap);
+		mSize += size;
+		mPutCount++;
+
+		trimToSize();
+	}
+
+	public synchronized void clear() {
+		mBitmaps.clear();
+		mSize = 0;
+	}
+
+	public synchronized int getSize() {
+		return mSize;
+	}
+
+	public int getMaxSize() {
+		return mMaxSize;
+	}
+
+	// Decodes that reused a pooled bitmap
+
+	public synchronized int getHitCount() {
+		return mHitCount;
+	}
+
+	// Decodes that had to allocate a new bitmap
+
+	public synchronized int getMissCount() {
+		return mMissCount;
+	}
+
+	public synchronized int getPutCount() {
+		return mPutCount;
+	}
+
+	public synchronized int getEvictionCount() {
+		return mEvictionCount;
+	}
+
+	// Drops the oldest bitmaps of the largest size classes first
+
+	private void trimToSize() {
+		while(mSize > mMaxSize && ! mBitmaps.isEmpty()) {
+			Map.Entry<Integer, LinkedList<Bitmap>> entry = mBitmaps.lastEntry();
+			Bitmap bitmap = entry.getValue().removeFirst();
+			if(entry.getValue().isEmpty()) mBitmaps.remove(entry.getKey());
+			mSize -= byteCount(bitmap);
+			mEvictionCount++;
+		}
+	}
+
+	private static boolean canReuse(Bitmap bitmap, int width, int height, Bitmap.Config config) {
+		if(bitmap.isRecycled() || bitmap.getConfig() != config) return false;
+		if(Build.VERSION.SDK_INT >= KITKAT) {
+			return byteCount(bitmap) >= width * height * bytesPerPixel(config);
+		}
+		return bitmap.getWidth() == width && bitmap.getHeight() == height;
+	}
+
+	private static int sizeClass(int bytes) {
+		return (bytes + SIZE_CLASS - 1) / SIZE_CLASS * SIZE_CLASS;
+	}
+
+	// Bytes the bitmap takes up. From KitKat a bitmap that was decoded into can be smaller
+	// than its memory, and it is the memory that counts, both for the pool's size and for
+	// what can be decoded into it
+
+	static int byteCount(Bitmap bitmap) {
+		if(sGetAllocationByteCount != null) {
+			try {
+				return (Integer) sGetAllocationByteCount.invoke(bitmap);
+			} catch (Exception e) {
+				// Fall back to the pixels in use
+			}
+		}
+		return bitmap.getRowBytes() * bitmap.getHeight();
+	}
+
+	private static Method findGetAllocationByteCount() {
+		if(Build.VERSION.SDK_INT < KITKAT) return null;
+		try {
+			return Bitmap.class.getMethod("getAllocationByteCount");
+		} catch (NoSuchMethodException e) {
+			return null;
+		}
+	}
+
+	private static int bytesPerPixel(Bitmap.Config config) {
+		switch(config) {
+		case ARGB_8888:
+			return 4;
+		case ALPHA_8:
+			return 1;
+		default:
+			return 2;
+		}
+	}
+}
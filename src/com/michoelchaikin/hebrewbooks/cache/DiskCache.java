@@ -0,0 +1,344 @@
+package com.michoelchaikin.hebrewbooks.cache;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import com.michoelchaikin.hebrewbooks.utils.Log;
+
+/**
+ * Size-bounded cache of files in a directory, evicting the least recently used files.
+ *
+ * Every write, read and delete is appended to a journal file, which is replayed when the
+ * cache is opened, so the directory only has to be scanned the very first time. Eviction
+ * runs on a background thread. Files can be pinned so they are never evicted, which is
+ * used to keep the pages around the reader. Pins last while their owner holds them, but
+ * files can also be kept, which is recorded in the journal and lasts until they are let go.
+ *
+ * Files still being written, as downloads are until they complete, are named with
+ * SCRATCH_SUFFIX and aren't part of the cache. Ones left behind for too long are deleted
+ * when the cache is opened.
+ */
+public class DiskCache {
+
+	private static final String TAG = "DiskCache";
+
+	public static final long DEFAULT_MAX_SIZE = 250L * 1024 * 1024;
+
+	public static final String SCRATCH_SUFFIX = ".part";
+
+	// Long enough for a paused book download to resume its pages where it left off
+	private static final long SCRATCH_MAX_AGE = 3L * 24 * 60 * 60 * 1000;
+
+	private static final String JOURNAL = "cache.journal";
+	private static final String JOURNAL_TMP = "cache.journal.tmp";
+	private static final String WRITE = "W";
+	private static final String READ = "R";
+	private static final String DELETE = "D";
+	private static final String KEEP = "K";
+	private static final String UNKEEP = "U";
+
+	// Rewrite the journal once it has this many more lines than there are entries
+	private static final int JOURNAL_SLACK = 2000;
+
+	private static final Map<File, DiskCache> sCaches = new HashMap<File, DiskCache>();
+
+	private static final ExecutorService sEvictor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+		public Thread newThread(Runnable r) {
+			Thread thread = new Thread(r, "DiskCache-evict");
+			thread.setDaemon(true);
+			return thread;
+		}
+	});
+
+	private final File mDir;
+
+	// File name to size in bytes, least recently used first
+	private final LinkedHashMap<String, Long> mEntries = new LinkedHashMap<String, Long>(0, 0.75f, true);
+	private final Map<Object, Set<String>> mPinned = new HashMap<Object, Set<String>>();
+	private final Set<String> mKept = new HashSet<String>();
+	private long mSize = 0;
+	private long mMaxSize = DEFAULT_MAX_SIZE;
+
+	private Writer mJournal;
+	private int mJournalLines = 0;
+	private boolean mEvictionScheduled = false;
+
+	// Returns the cache for a directory, opening it the first time
+
+	public static DiskCache open(File dir) {
+		synchronized(sCaches) {
+			DiskCache cache = sCaches.get(dir);
+			if(cache == null) {
+				cache = new DiskCache(dir);
+				sCaches.put(dir, cache);
+			}
+			return cache;
+		}
+	}
+
+	private DiskCache(File dir) {
+		mDir = dir;
+
+		File journal = new File(mDir, JOURNAL);
+		try {
+			if(journal.exists()) {
+				readJournal(journal);
+			} else {
+				Log.i(TAG, "No journal in " + mDir + ", scanning directory");
+				scanDirectory();
+				rewriteJournal();
+			}
+			mJournal = new BufferedWriter(new FileWriter(journal, true));
+		} catch (IOException e) {
+			// Carry on without a journal, it will be rebuilt next time
+			Log.e(TAG, "Could not open cache journal: " + e.toString());
+			journal.delete();
+		}
+
+		Log.i(TAG, "Opened cache " + mDir + " with " + mEntries.size() + " files, " + mSize + " bytes");
+		scheduleEviction();
+		sEvictor.execute(new Runnable() {
+			public void run() {
+				removeStaleScratch();
+			}
+		});
+	}
+
+	public File getDirectory() {
+		return mDir;
+	}
+
+	public synchronized long getSize() {
+		return mSize;
+	}
+
+	public synchronized long getMaxSize() {
+		return mMaxSize;
+	}
+
+	public synchronized void setMaxSize(long maxSize) {
+		mMaxSize = maxSize;
+		scheduleEviction();
+	}
+
+	// Returns the cached file and marks it as recently used, or null if it is not cached
+
+	public synchronized File get(String name) {
+		if(! mEntries.containsKey(name)) return null;
+
+		File file = new File(mDir, name);
+		if(! file.exists()) {
+			// Removed behind our back, probably by the system clearing the cache
+			remove(name);
+			return null;
+		}
+
+		mEntries.get(name);
+		journal(READ, name);
+		return file;
+	}
+
+	// Where a new file should be written before calling put()
+
+	public File file(String name) {
+		return new File(mDir, name);
+	}
+
+	// Records a file that has been written to the cache directory
+
+	public synchronized void put(String name) {
+		long size = new File(mDir, name).length();
+		Long old = mEntries.put(name, size);
+		mSize += size - (old == null ? 0 : old);
+		journal(WRITE, name + " " + size);
+		scheduleEviction();
+	}
+
+	public synchronized void remove(String name) {
+		Long old = mEntries.remove(name);
+		if(old != null) {
+			mSize -= old;
+			journal(DELETE, name);
+		}
+		new File(mDir, name).delete();
+	}
+
+	// Replaces the set of files pinned by an owner. Pinned files are never evicted
+
+	public synchronized void setPinned(Object owner, Collection<String> names) {
+		if(names == null || names.isEmpty()) {
+			mPinned.remove(owner);
+		} else {
+			mPinned.put(owner, new HashSet<String>(names));
+		}
+	}
+
+	// Keeps a file from being evicted, or lets it go again, across restarts. The file need
+	// not be in the cache yet
+
+	public synchronized void setKept(String name, boolean kept) {
+		if(kept ? mKept.add(name) : mKept.remove(name)) {
+			journal(kept ? KEEP : UNKEEP, name);
+		}
+		if(! kept) scheduleEviction();
+	}
+
+	public synchronized boolean isKept(String name) {
+		return mKept.contains(name);
+	}
+
+	private boolean isPinned(String name) {
+		if(mKept.contains(name)) return true;
+		for(Set<String> names : mPinned.values()) {
+			if(names.contains(name)) return true;
+		}
+		return false;
+	}
+
+	private void scheduleEviction() {
+		if(mEvictionScheduled || mSize <= mMaxSize) return;
+		mEvictionScheduled = true;
+		sEvictor.execute(new Runnable() {
+			public void run() {
+				trimToSize();
+			}
+		});
+	}
+
+	private synchronized void trimToSize() {
+		mEvictionScheduled = false;
+
+		Iterator<Map.Entry<String, Long>> it = mEntries.entrySet().iterator();
+		while(mSize > mMaxSize && it.hasNext()) {
+			Map.Entry<String, Long> entry = it.next();
+			String name = entry.getKey();
+			if(isPinned(name)) continue;
+
+			Log.i(TAG, "Evicting " + name);
+			it.remove();
+			mSize -= entry.getValue();
+			journal(DELETE, name);
+			new File(mDir, name).delete();
+		}
+	}
+
+	// Deletes scratch files nothing has written to for SCRATCH_MAX_AGE
+
+	private void removeStaleScratch() {
+		File[] files = mDir.listFiles();
+		if(files == null) return;
+		long cutoff = System.currentTimeMillis() - SCRATCH_MAX_AGE;
+		for(File file : files) {
+			if(file.getName().endsWith(SCRATCH_SUFFIX) && file.lastModified() < cutoff) {
+				Log.i(TAG, "Removing stale " + file.getName());
+				file.delete();
+			}
+		}
+	}
+
+	// Journal
+
+	private void readJournal(File journal) throws IOException {
+		BufferedReader reader = new BufferedReader(new FileReader(journal));
+		try {
+			String line;
+			while((line = reader.readLine()) != null) {
+				mJournalLines++;
+				String[] parts = line.split(" ");
+				if(parts.length < 2) continue;
+
+				String name = parts[1];
+				if(WRITE.equals(parts[0]) && parts.length == 3) {
+					long size = Long.parseLong(parts[2]);
+					Long old = mEntries.put(name, size);
+					mSize += size - (old == null ? 0 : old);
+				} else if(READ.equals(parts[0])) {
+					mEntries.get(name);
+				} else if(DELETE.equals(parts[0])) {
+					Long old = mEntries.remove(name);
+					if(old != null) mSize -= old;
+				} else if(KEEP.equals(parts[0])) {
+					mKept.add(name);
+				} else if(UNKEEP.equals(parts[0])) {
+					mKept.remove(name);
+				}
+			}
+		} catch (NumberFormatException e) {
+			// A torn line at the end of the journal, keep what we have so far
+			Log.w(TAG, "Corrupt cache journal line: " + e.getMessage());
+		} finally {
+			reader.close();
+		}
+	}
+
+	private void scanDirectory() {
+		File[] files = mDir.listFiles();
+		if(files == null) return;
+		for(File file : files) {
+			String name = file.getName();
+			if(! file.isFile() || name.startsWith(JOURNAL) || name.endsWith(SCRATCH_SUFFIX)) continue;
+			mEntries.put(name, file.length());
+			mSize += file.length();
+		}
+	}
+
+	// Writes out just the current entries, in least recently used order
+
+	private void rewriteJournal() throws IOException {
+		if(mJournal != null) {
+			mJournal.close();
+			mJournal = null;
+		}
+
+		File tmp = new File(mDir, JOURNAL_TMP);
+		Writer writer = new BufferedWriter(new FileWriter(tmp));
+		try {
+			for(Map.Entry<String, Long> entry : mEntries.entrySet()) {
+				writer.write(WRITE + " " + entry.getKey() + " " + entry.getValue() + "\n");
+			}
+			for(String name : mKept) {
+				writer.write(KEEP + " " + name + "\n");
+			}
+		} finally {
+			writer.close();
+		}
+		if(! tmp.renameTo(new File(mDir, JOURNAL))) {
+			throw new IOException("Could not replace cache journal");
+		}
+		mJournalLines = mEntries.size() + mKept.size();
+	}
+
+	private void journal(String op, String args) {
+		if(mJournal == null) return;
+		try {
+			mJournal.write(op + " " + args + "\n");
+			mJournal.flush();
+			mJournalLines++;
+
+			if(mJournalLines > mEntries.size() + mKept.size() + JOURNAL_SLACK) {
+				rewriteJournal();
+				mJournal = new BufferedWriter(new FileWriter(new File(mDir, JOURNAL), true));
+			}
+		} catch (IOException e) {
+			// Stop journalling and let the next start rebuild it from the directory
+			Log.e(TAG, "Could not write cache journal: " + e.toString());
+			mJournal = null;
+			new File(mDir, JOURNAL).delete();
+		}
+	}
+}
@@ -0,0 +1,167 @@
+package com.michoelchaikin.hebrewbooks.cache;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+import com.michoelchaikin.hebrewbooks.utils.Log;
+
+/**
+ * Small store of parsed book metadata, so a book opened before doesn't have its HTML page
+ * fetched and parsed again.
+ *
+ * Each book's metadata is a map of field names to values, kept in a file of its own with
+ * the time it was saved. Records older than the time to live are treated as missing, so
+ * the metadata is refreshed now and then.
+ */
+public class MetadataStore {
+
+	private static final String TAG = "MetadataStore";
+
+	public static final long DEFAULT_TTL = 7L * 24 * 60 * 60 * 1000;
+
+	private static final String DIRECTORY = "metadata";
+	private static final String SUFFIX = ".meta";
+
+	// Start of each record file, changed whenever its layout changes
+	private static final int MAGIC = 0x48424d44;
+	private static final int VERSION = 1;
+
+	private static final Map<File, MetadataStore> sStores = new HashMap<File, MetadataStore>();
+
+	private final File mDir;
+	private volatile long mTtl = DEFAULT_TTL;
+
+	// Returns the store kept under a cache directory, opening it the first time
+
+	public static MetadataStore open(File cacheDir) {
+		synchronized(sStores) {
+			MetadataStore store = sStores.get(cacheDir);
+			if(store == null) {
+				store = new MetadataStore(new File(cacheDir, DIRECTORY));
+				sStores.put(cacheDir, store);
+			}
+			return store;
+		}
+	}
+
+	private MetadataStore(File dir) {
+		mDir = dir;
+	}
+
+	public void setTtl(long millis) {
+		mTtl = millis;
+	}
+
+	public long getTtl() {
+		return mTtl;
+	}
+
+	// Returns the metadata saved for a book, or null if there is none or it has expired
+
+	public synchronized Map<String, String> get(int bookID) {
+		File file = fileFor(bookID);
+		if(! file.exists()) return null;
+
+		try {
+			DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+			try {
+				if(in.readInt() != MAGIC || in.readInt() != VERSION) {
+					Log.w(TAG, "Unknown record format for book " + bookID);
+					return null;
+				}
+
+				long savedAt = in.readLong();
+				if(isExpired(savedAt)) {
+					Log.i(TAG, "Metadata for book " + bookID + " has expired");
+					return null;
+				}
+
+				int count = in.readInt();
+				Map<String, String> metadata = new HashMap<String, String>(count * 2);
+				for(int i = 0; i < count; i++) {
+					String key = in.readUTF();
+					metadata.put(key, in.readUTF());
+				}
+				return metadata;
+			} finally {
+				in.close();
+			}
+		} catch (IOException e) {
+			Log.e(TAG, "Could not read metadata for book " + bookID + ": " + e.getMessage());
+			return null;
+		}
+	}
+
+	// Whether the book has a record that has expired, as opposed to none at all
+
+	public synchronized boolean isExpired(int bookID) {
+		File file = fileFor(bookID);
+		if(! file.exists()) return false;
+
+		try {
+			DataInputStream in = new DataInputStream(new FileInputStream(file));
+			try {
+				return in.readInt() == MAGIC && in.readInt() == VERSION && isExpired(in.readLong());
+			} finally {
+				in.close();
+			}
+		} catch (IOException e) {
+			return false;
+		}
+	}
+
+	// Saves the metadata of a book, replacing what was there
+
+	public synchronized void put(int bookID, Map<String, String> metadata) {
+		if(! mDir.isDirectory() && ! mDir.mkdirs()) {
+			Log.e(TAG, "Could not create " + mDir);
+			return;
+		}
+
+		File file = fileFor(bookID);
+		File tmp = new File(file.getPath() + ".tmp");
+		try {
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+			try {
+				out.writeInt(MAGIC);
+				out.writeInt(VERSION);
+				out.writeLong(System.currentTimeMillis());
+				out.writeInt(metadata.size());
+				for(Map.Entry<String, String> entry : metadata.entrySet()) {
+					out.writeUTF(entry.getKey());
+					out.writeUTF(entry.getValue() != null ? entry.getValue() : "");
+				}
+			} finally {
+				out.close();
+			}
+
+			if(! tmp.renameTo(file)) {
+				throw new IOException("Could not move " + tmp + " into place");
+			}
+		} catch (IOException e) {
+			Log.e(TAG, "Could not save metadata for book " + bookID + ": " + e.getMessage());
+			tmp.delete();
+		}
+	}
+
+	public synchronized void remove(int bookID) {
+		fileFor(bookID).delete();
+	}
+
+	private boolean isExpired(long savedAt) {
+		long age = System.currentTimeMillis() - savedAt;
+		return age < 0 || age > mTtl;
+	}
+
+	private File fileFor(int bookID) {
+		return new File(mDir, bookID + SUFFIX);
+	}
+}
@@ -0,0 +1,495 @@
+package com.michoelchaikin.hebrewbooks.cache;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import com.michoelchaikin.hebrewbooks.utils.Log;
+
+/**
+ * All the rendered page images of one book, in a single file instead of a file per page.
+ *
+ * Images are appended to a data file, and for each one a record of its page, offset,
+ * length, pixel size and format is appended to an index file. The index is read into
+ * arrays when the pack is opened, and doubles as the book's manifest: it says which pages
+ * are already rendered, and how big their images are without decoding them. A page that
+ * is replaced or removed leaves its old bytes in the data file until compact() rewrites
+ * it. Reads go through memory mappings of fixed-size chunks of the data file, so a page
+ * is found without touching the file system and handed out as a buffer over a mapping.
+ *
+ * Only the index record makes a page visible, and it is written after the data, so a pack
+ * cut short by a crash only loses the pages being written.
+ */
+public class PagePack {
+
+	private static final String TAG = "PagePack";
+
+	public static final String DATA_SUFFIX = ".pack";
+	public static final String INDEX_SUFFIX = ".idx";
+
+	public static final int FORMAT_UNKNOWN = 0;
+	public static final int FORMAT_JPEG = 1;
+	public static final int FORMAT_PNG = 2;
+
+	// Start of the index file, changed whenever its layout changes
+	private static final int INDEX_MAGIC = 0x4842504b;
+	private static final int INDEX_VERSION = 2;
+
+	// Page, offset, length, width, height and format
+	private static final int RECORD_SIZE = 4 + 8 + 4 + 4 + 4 + 1;
+
+	private static final int BUFFER_SIZE = 16 * 1024;
+
+	// Size of the pieces the data file is mapped in. A chunk is mapped once the file has
+	// grown past its end, and kept
+	private static final int CHUNK_SIZE = 4 * 1024 * 1024;
+
+	// compact() leaves a pack alone until this much of it is replaced or removed pages
+	private static final long COMPACT_MIN_WASTE = CHUNK_SIZE;
+
+	private static final String TEMP_SUFFIX = ".tmp";
+
+	private static final Map<File, PagePack> sPacks = new HashMap<File, PagePack>();
+
+	private final File mDataFile;
+	private final File mIndexFile;
+
+	// By page, offset -1 for pages not in the pack
+	private long[] mOffsets = new long[0];
+	private int[] mLengths = new int[0];
+	private int[] mWidths = new int[0];
+	private int[] mHeights = new int[0];
+	private byte[] mFormats = new byte[0];
+	private int mPageCount = 0;
+
+	// Bytes of the data file, and how many of them belong to pages in the index
+	private long mDataLength = 0;
+	private long mLiveBytes = 0;
+
+	// Length of the index up to the end of its last whole record. Anything after that is a
+	// record torn by a crash, which is cut off before more are appended
+	private long mIndexLength = 0;
+
+	private RandomAccessFile mData;
+	private DataOutputStream mIndex;
+	private MappedByteBuffer[] mChunks = new MappedByteBuffer[0];
+
+	// Returns the pack with the given name in a directory, opening it the first time
+
+	public static PagePack open(File dir, String name) {
+		File dataFile = new File(dir, name + DATA_SUFFIX);
+		synchronized(sPacks) {
+			PagePack pack = sPacks.get(dataFile);
+			if(pack == null) {
+				pack = new PagePack(dataFile, new File(dir, name + INDEX_SUFFIX));
+				sPacks.put(dataFile, pack);
+			} else {
+				pack.checkFiles();
+			}
+			return pack;
+		}
+	}
+
+	// Package-private for the pack benchmark, which opens packs cold rather than through
+	// open(), which keeps one per file
+
+	PagePack(File dataFile, File indexFile) {
+		mDataFile = dataFile;
+		mIndexFile = indexFile;
+		if(mIndexFile.exists() && mDataFile.exists()) {
+			try {
+				readIndex();
+			} catch (IOException e) {
+				Log.e(TAG, "Could not read index " + mIndexFile + ": " + e.getMessage());
+				clearIndex();
+			}
+		}
+		Log.i(TAG, "Opened " + mDataFile + " with " + mPageCount + " pages");
+	}
+
+	public File getDataFile() {
+		return mDataFile;
+	}
+
+	public File getIndexFile() {
+		return mIndexFile;
+	}
+
+	public synchronized boolean contains(int page) {
+		return page >= 0 && page < mOffsets.length && mOffsets[page] >= 0;
+	}
+
+	public synchronized int getPageCount() {
+		return mPageCount;
+	}
+
+	// Size of a page's image in bytes, or 0 if it is not in the pack
+
+	public synchronized int getLength(int page) {
+		return contains(page) ? mLengths[page] : 0;
+	}
+
+	// Pixel size of a page's image, or 0 if it is not in the pack or was not known
+
+	public synchronized int getWidth(int page) {
+		return contains(page) ? mWidths[page] : 0;
+	}
+
+	public synchronized int getHeight(int page) {
+		return contains(page) ? mHeights[page] : 0;
+	}
+
+	// One of the FORMAT_ constants
+
+	public synchronized int getFormat(int page) {
+		return contains(page) ? mFormats[page] : FORMAT_UNKNOWN;
+	}
+
+	// Returns the image of a page as a read-only buffer over the mapped pack, or null if the
+	// page is not in the pack
+
+	public synchronized ByteBuffer get(int page) {
+		if(! contains(page)) return null;
+
+		long offset = mOffsets[page];
+		int length = mLengths[page];
+		if(offset + length > mDataLength) {
+			mDataLength = mDataFile.length();
+			if(offset + length > mDataLength) return null;
+		}
+
+		try {
+			int chunk = (int) (offset / CHUNK_SIZE);
+			long chunkStart = (long) chunk * CHUNK_SIZE;
+			if(offset + length > chunkStart + CHUNK_SIZE || chunkStart + CHUNK_SIZE > mDataLength) {
+				// Crosses into the next chunk, or is in the one still being appended to
+				return map(offset, length).asReadOnlyBuffer();
+			}
+
+			if(chunk >= mChunks.length) {
+				mChunks = Arrays.copyOf(mChunks, Math.max(chunk + 1, mChunks.length * 2));
+			}
+			if(mChunks[chunk] == null) {
+				mChunks[chunk] = map(chunkStart, CHUNK_SIZE);
+			}
+			ByteBuffer image = mChunks[chunk].duplicate();
+			image.position((int) (offset - chunkStart));
+			image.limit((int) (offset - chunkStart) + length);
+			return image.slice().asReadOnlyBuffer();
+		} catch (IOException e) {
+			Log.e(TAG, "Could not map " + mDataFile + ": " + e.getMessage());
+			return null;
+		}
+	}
+
+	// Appends the image in a file as a page, replacing any image the page already had.
+	// width and height are its size in pixels, or 0 if not known
+
+	public synchronized void put(int page, File image, int width, int height) throws IOException {
+		openForAppend();
+
+		long offset = mData.length();
+		int length = (int) image.length();
+		byte[] buffer = new byte[BUFFER_SIZE];
+		int format = FORMAT_UNKNOWN;
+		InputStream in = new FileInputStream(image);
+		try {
+			mData.seek(offset);
+			int len;
+			boolean first = true;
+			while((len = in.read(buffer)) != -1) {
+				if(first) {
+					format = sniffFormat(buffer, len);
+					first = false;
+				}
+				mData.write(buffer, 0, len);
+			}
+		} finally {
+			in.close();
+		}
+
+		writeRecord(page, offset, length, width, height, format);
+		setEntry(page, offset, length, width, height, format);
+		mDataLength = offset + length;
+	}
+
+	// Drops a page from the pack. Its bytes stay in the data file
+
+	public synchronized void remove(int page) {
+		if(! contains(page)) return;
+		try {
+			openForAppend();
+			writeRecord(page, -1, 0, 0, 0, FORMAT_UNKNOWN);
+		} catch (IOException e) {
+			Log.e(TAG, "Could not remove page " + page + " from " + mDataFile + ": " + e.getMessage());
+		}
+		setEntry(page, -1, 0, 0, 0, FORMAT_UNKNOWN);
+	}
+
+	// Bytes of the data file taken by pages that were replaced or removed
+
+	public synchronized long getWastedBytes() {
+		return mDataLength - mLiveBytes;
+	}
+
+	// Rewrites the pack with just the pages in its index, once replaced and removed pages
+	// take up more than half of the data file. Returns whether it did. Buffers handed out
+	// before keep the old file mapped, so they stay valid
+	//
+	// The new files are written alongside, and the old index is deleted before they are
+	// renamed into place, so a crash part way leaves an empty pack and never an index that
+	// points into the wrong data
+
+	public synchronized boolean compact() throws IOException {
+		mDataLength = mDataFile.length();
+		long wasted = getWastedBytes();
+		if(wasted < COMPACT_MIN_WASTE || wasted * 2 < mDataLength) return false;
+
+		long start = System.currentTimeMillis();
+		long oldLength = mDataLength;
+		File dataTemp = new File(mDataFile.getPath() + TEMP_SUFFIX);
+		File indexTemp = new File(mIndexFile.getPath() + TEMP_SUFFIX);
+		long[] offsets = new long[mOffsets.length];
+		Arrays.fill(offsets, -1);
+
+		boolean interrupted = Thread.interrupted();
+		FileChannel in = new FileInputStream(mDataFile).getChannel();
+		FileOutputStream dataOut = new FileOutputStream(dataTemp);
+		DataOutputStream indexOut = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(indexTemp), BUFFER_SIZE));
+		boolean written = false;
+		try {
+			FileChannel out = dataOut.getChannel();
+			indexOut.writeInt(INDEX_MAGIC);
+			indexOut.writeInt(INDEX_VERSION);
+			long position = 0;
+			for(int page = 0; page < mOffsets.length; page++) {
+				if(mOffsets[page] < 0) continue;
+				long copied = 0;
+				while(copied < mLengths[page]) {
+					long count = in.transferTo(mOffsets[page] + copied, mLengths[page] - copied, out);
+					if(count <= 0) throw new IOException("Page " + page + " is past the end of " + mDataFile);
+					copied += count;
+				}
+				offsets[page] = position;
+				indexOut.writeInt(page);
+				indexOut.writeLong(position);
+				indexOut.writeInt(mLengths[page]);
+				indexOut.writeInt(mWidths[page]);
+				indexOut.writeInt(mHeights[page]);
+				indexOut.writeByte(mFormats[page]);
+				position += mLengths[page];
+			}
+			written = true;
+		} finally {
+			in.close();
+			indexOut.close();
+			dataOut.close();
+			if(! written) {
+				dataTemp.delete();
+				indexTemp.delete();
+			}
+			if(interrupted) Thread.currentThread().interrupt();
+		}
+
+		close();
+		if(! mIndexFile.delete() || ! dataTemp.renameTo(mDataFile) || ! indexTemp.renameTo(mIndexFile)) {
+			dataTemp.delete();
+			indexTemp.delete();
+			mDataFile.delete();
+			clearIndex();
+			throw new IOException("Could not replace " + mDataFile + " with its compacted copy");
+		}
+
+		mOffsets = offsets;
+		mDataLength = mLiveBytes;
+		mIndexLength = 8 + (long) mPageCount * RECORD_SIZE;
+		Log.i(TAG, "Compacted " + mDataFile + " from " + oldLength + " to " + mDataLength + " bytes in "
+				+ (System.currentTimeMillis() - start) + " ms");
+		return true;
+	}
+
+	public synchronized void close() {
+		try {
+			if(mIndex != null) mIndex.close();
+			if(mData != null) mData.close();
+		} catch (IOException e) {
+			Log.w(TAG, "Error closing " + mDataFile + ": " + e.getMessage());
+		}
+		mIndex = null;
+		mData = null;
+		mChunks = new MappedByteBuffer[0];
+	}
+
+	// Starts again if the files were deleted since the pack was opened, for example by
+	// the disk cache evicting them
+
+	private synchronized void checkFiles() {
+		if(mPageCount > 0 && ! (mDataFile.exists() && mIndexFile.exists())) {
+			Log.i(TAG, mDataFile + " was deleted, starting an empty pack");
+			close();
+			clearIndex();
+		}
+	}
+
+	private void openForAppend() throws IOException {
+		if(mData == null) {
+			mData = new RandomAccessFile(mDataFile, "rw");
+		}
+		if(mIndex == null) {
+			long length = mIndexFile.length();
+			if(length < mIndexLength) {
+				// Deleted or cut short behind our back, so what we read from it is gone
+				Log.w(TAG, mIndexFile + " is shorter than when it was read, starting an empty pack");
+				clearIndex();
+			}
+			if(length > mIndexLength) {
+				Log.w(TAG, "Cutting " + (length - mIndexLength) + " bytes of a torn record off " + mIndexFile);
+				RandomAccessFile index = new RandomAccessFile(mIndexFile, "rw");
+				try {
+					index.setLength(mIndexLength);
+				} finally {
+					index.close();
+				}
+			}
+
+			mIndex = new DataOutputStream(new FileOutputStream(mIndexFile, true));
+			if(mIndexLength == 0) {
+				mIndex.writeInt(INDEX_MAGIC);
+				mIndex.writeInt(INDEX_VERSION);
+				mIndex.flush();
+				mIndexLength = 8;
+			}
+		}
+	}
+
+	private void writeRecord(int page, long offset, int length, int width, int height, int format) throws IOException {
+		// Written in one go, so a crash can't leave half a record followed by a whole one
+		byte[] record = new byte[RECORD_SIZE];
+		ByteBuffer.wrap(record).putInt(page).putLong(offset).putInt(length)
+				.putInt(width).putInt(height).put((byte) format);
+		try {
+			mIndex.write(record);
+			mIndex.flush();
+		} catch (IOException e) {
+			// Part of the record may have been written, so have it cut off before the next one
+			closeIndex();
+			throw e;
+		}
+		mIndexLength += RECORD_SIZE;
+	}
+
+	private void closeIndex() {
+		try {
+			mIndex.close();
+		} catch (IOException e) {
+			Log.w(TAG, "Error closing " + mIndexFile + ": " + e.getMessage());
+		}
+		mIndex = null;
+	}
+
+	private static int sniffFormat(byte[] bytes, int len) {
+		if(len >= 2 && (bytes[0] & 0xff) == 0xff && (bytes[1] & 0xff) == 0xd8) return FORMAT_JPEG;
+		if(len >= 4 && (bytes[0] & 0xff) == 0x89 && bytes[1] == 'P' && bytes[2] == 'N' && bytes[3] == 'G') return FORMAT_PNG;
+		return FORMAT_UNKNOWN;
+	}
+
+	// Maps length bytes of the data file from offset. File channels fail with
+	// ClosedByInterruptException on a thread that has been interrupted, as a cancelled
+	// download's has, so the interrupt is held off until the mapping is done
+
+	private MappedByteBuffer map(long offset, int length) throws IOException {
+		boolean interrupted = Thread.interrupted();
+		RandomAccessFile file = new RandomAccessFile(mDataFile, "r");
+		try {
+			// The mapping stays valid after the file is closed
+			return file.getChannel().map(FileChannel.MapMode.READ_ONLY, offset, length);
+		} finally {
+			file.close();
+			if(interrupted) Thread.currentThread().interrupt();
+		}
+	}
+
+	private void readIndex() throws IOException {
+		long dataLength = mDataFile.length();
+		mDataLength = dataLength;
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(mIndexFile), BUFFER_SIZE));
+		try {
+			if(in.readInt() != INDEX_MAGIC || in.readInt() != INDEX_VERSION) {
+				// Written by another version, start again
+				Log.w(TAG, "Unknown index format in " + mIndexFile + ", discarding pack");
+				in.close();
+				mIndexFile.delete();
+				mDataFile.delete();
+				return;
+			}
+			mIndexLength = 8;
+			while(true) {
+				int page = in.readInt();
+				long offset = in.readLong();
+				int length = in.readInt();
+				int width = in.readInt();
+				int height = in.readInt();
+				int format = in.readByte();
+				mIndexLength += RECORD_SIZE;
+				if(page < 0 || offset + length > dataLength) {
+					Log.w(TAG, "Bad record in " + mIndexFile + " for page " + page);
+					continue;
+				}
+				setEntry(page, offset, length, width, height, format);
+			}
+		} catch (EOFException e) {
+			// End of the index, or a record cut short by a crash, which openForAppend() cuts off
+		} finally {
+			in.close();
+		}
+	}
+
+	private void clearIndex() {
+		mOffsets = new long[0];
+		mLengths = new int[0];
+		mWidths = new int[0];
+		mHeights = new int[0];
+		mFormats = new byte[0];
+		mPageCount = 0;
+		mIndexLength = 0;
+		mDataLength = 0;
+		mLiveBytes = 0;
+	}
+
+	private void setEntry(int page, long offset, int length, int width, int height, int format) {
+		if(page >= mOffsets.length) {
+			int size = Math.max(page + 1, mOffsets.length * 2);
+			int oldSize = mOffsets.length;
+			mOffsets = Arrays.copyOf(mOffsets, size);
+			mLengths = Arrays.copyOf(mLengths, size);
+			mWidths = Arrays.copyOf(mWidths, size);
+			mHeights = Arrays.copyOf(mHeights, size);
+			mFormats = Arrays.copyOf(mFormats, size);
+			Arrays.fill(mOffsets, oldSize, size, -1);
+		}
+
+		if(mOffsets[page] < 0 && offset >= 0) mPageCount++;
+		if(mOffsets[page] >= 0 && offset < 0) mPageCount--;
+		if(mOffsets[page] >= 0) mLiveBytes -= mLengths[page];
+		if(offset >= 0) mLiveBytes += length;
+		mOffsets[page] = offset;
+		mLengths[page] = length;
+		mWidths[page] = width;
+		mHeights[page] = height;
+		mFormats[page] = (byte) format;
+	}
+}
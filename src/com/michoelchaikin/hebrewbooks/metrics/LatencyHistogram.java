@@ -0,0 +1,109 @@
+package com.michoelchaikin.hebrewbooks.metrics;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counts latencies into fixed buckets, so percentiles can be read without keeping every
+ * sample.
+ *
+ * Values are in microseconds. Below 16 each value has its own bucket, and above that each
+ * power of two is split into 8 buckets, so a percentile is never more than 12.5% above
+ * the true value. Recording is a few atomic increments and never allocates, so it is safe
+ * to call from any thread on every page.
+ */
+public class LatencyHistogram {
+
+	private static final int SUB_BUCKET_BITS = 3;
+	private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+	private static final int LINEAR_BUCKETS = SUB_BUCKETS * 2;
+	private static final int LINEAR_BITS = SUB_BUCKET_BITS + 1;
+	private static final int BUCKETS = LINEAR_BUCKETS + (63 - LINEAR_BITS) * SUB_BUCKETS;
+
+	private final AtomicLongArray mBuckets = new AtomicLongArray(BUCKETS);
+	private final AtomicLong mCount = new AtomicLong();
+	private final AtomicLong mTotal = new AtomicLong();
+	private final AtomicLong mMax = new AtomicLong();
+
+	public void record(long micros) {
+		if(micros < 0) micros = 0;
+		mBuckets.incrementAndGet(bucketFor(micros));
+		mCount.incrementAndGet();
+		mTotal.addAndGet(micros);
+
+		long max = mMax.get();
+		while(micros > max && ! mMax.compareAndSet(max, micros)) {
+			max = mMax.get();
+		}
+	}
+
+	// Records the time since startNanos, a System.nanoTime() reading
+
+	public void recordSince(long startNanos) {
+		record(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - startNanos));
+	}
+
+	public long getCount() {
+		return mCount.get();
+	}
+
+	public long getMax() {
+		return mMax.get();
+	}
+
+	public long getMean() {
+		long count = mCount.get();
+		return count == 0 ? 0 : mTotal.get() / count;
+	}
+
+	// Value that percentile percent of the recorded values are at or below, or 0 if nothing
+	// has been recorded. Reported as the top of its bucket, but never above the maximum
+
+	public long getPercentile(double percentile) {
+		long[] counts = new long[BUCKETS];
+		long total = 0;
+		for(int i = 0; i < BUCKETS; i++) {
+			counts[i] = mBuckets.get(i);
+			total += counts[i];
+		}
+		if(total == 0) return 0;
+
+		long rank = Math.max(1, (long) Math.ceil(percentile / 100 * total));
+		long seen = 0;
+		for(int i = 0; i < BUCKETS; i++) {
+			seen += counts[i];
+			if(seen >= rank) {
+				return Math.min(highestInBucket(i), mMax.get());
+			}
+		}
+		return mMax.get();
+	}
+
+	public void reset() {
+		for(int i = 0; i < BUCKETS; i++) {
+			mBuckets.set(i, 0);
+		}
+		mCount.set(0);
+		mTotal.set(0);
+		mMax.set(0);
+	}
+
+	private static int bucketFor(long value) {
+		if(value < LINEAR_BUCKETS) return (int) value;
+		int exponent = 63 - Long.numberOfLeadingZeros(value);
+		int sub = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+		return LINEAR_BUCKETS + (exponent - LINEAR_BITS) * SUB_BUCKETS + sub;
+	}
+
+	private static long lowestInBucket(int bucket) {
+		if(bucket < LINEAR_BUCKETS) return bucket;
+		int exponent = (bucket - LINEAR_BUCKETS) / SUB_BUCKETS + LINEAR_BITS;
+		int sub = (bucket - LINEAR_BUCKETS) % SUB_BUCKETS;
+		return (long) (SUB_BUCKETS + sub) << (exponent - SUB_BUCKET_BITS);
+	}
+
+	private static long highestInBucket(int bucket) {
+		return bucket + 1 < BUCKETS ? lowestInBucket(bucket + 1) - 1 : Long.MAX_VALUE;
+	}
+}
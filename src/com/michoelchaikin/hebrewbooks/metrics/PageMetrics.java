@@ -0,0 +1,149 @@
+package com.michoelchaikin.hebrewbooks.metrics;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Latency histograms for each stage a page goes through, from being scheduled to being on
+ * screen, and counters for the caches and the network.
+ *
+ * Stages time themselves with a System.nanoTime() reading taken when they start:
+ *
+ *   long start = System.nanoTime();
+ *   ...
+ *   PageMetrics.record(PageMetrics.Stage.EXTRACT, start);
+ *
+ * Everything is kept since the process started, or since reset(). report() formats it all
+ * as text, and dump() writes that to a file.
+ */
+public final class PageMetrics {
+
+	public enum Stage {
+		// Scheduled for download, until a download thread picks the page up
+		DOWNLOAD_QUEUE,
+		// Fetching a page PDF that was not in the file cache
+		DOWNLOAD,
+		// Fetching a page and extracting its image as it arrives
+		STREAM,
+		// Downloaded, until an extraction thread picks the page up
+		EXTRACT_QUEUE,
+		// Extracting the image from a downloaded PDF
+		EXTRACT,
+		// Scheduled, until the page image is ready
+		PAGE,
+		// The page view waiting for the page image, from asking for it
+		WAIT,
+		// Decoding the page image into a bitmap
+		DECODE,
+		// Decoding a tile of a zoomed-in page
+		TILE,
+		// Setting the bitmap on the page view
+		DISPLAY,
+		// The reader turning to a page, until it is on screen
+		FIRST_PIXEL,
+		// The same, for jumps to a page outside the prefetch window
+		FAR_JUMP,
+	}
+
+	public enum Counter {
+		// Page PDFs and book pages found in, or missing from, the file cache
+		FILE_CACHE_HIT,
+		FILE_CACHE_MISS,
+		// Pages asked for that were already rendered, or not
+		PAGE_HIT,
+		PAGE_MISS,
+		// Pages shown that were already decoded in memory, or not
+		BITMAP_HIT,
+		BITMAP_MISS,
+		// Response bytes received, including anything read only to be discarded
+		BYTES_DOWNLOADED,
+	}
+
+	private static final LatencyHistogram[] sHistograms = new LatencyHistogram[Stage.values().length];
+	private static final AtomicLongArray sCounters = new AtomicLongArray(Counter.values().length);
+
+	static {
+		for(int i = 0; i < sHistograms.length; i++) {
+			sHistograms[i] = new LatencyHistogram();
+		}
+	}
+
+	private PageMetrics() {
+	}
+
+	// Records the time since startNanos, a System.nanoTime() reading, against a stage
+
+	public static void record(Stage stage, long startNanos) {
+		sHistograms[stage.ordinal()].recordSince(startNanos);
+	}
+
+	public static void count(Counter counter) {
+		sCounters.incrementAndGet(counter.ordinal());
+	}
+
+	public static void add(Counter counter, long amount) {
+		sCounters.addAndGet(counter.ordinal(), amount);
+	}
+
+	public static LatencyHistogram getHistogram(Stage stage) {
+		return sHistograms[stage.ordinal()];
+	}
+
+	public static long getCount(Counter counter) {
+		return sCounters.get(counter.ordinal());
+	}
+
+	public static void reset() {
+		for(LatencyHistogram histogram : sHistograms) {
+			histogram.reset();
+		}
+		for(int i = 0; i < sCounters.length(); i++) {
+			sCounters.set(i, 0);
+		}
+	}
+
+	// All the histograms and counters as text, times in milliseconds
+
+	public static String report() {
+		StringBuilder sb = new StringBuilder();
+		sb.append(String.format(Locale.US, "%-14s %8s %9s %9s %9s %9s %9s%n",
+				"stage", "count", "mean", "p50", "p95", "p99", "max"));
+		for(Stage stage : Stage.values()) {
+			LatencyHistogram histogram = getHistogram(stage);
+			sb.append(String.format(Locale.US, "%-14s %8d %9.1f %9.1f %9.1f %9.1f %9.1f%n",
+					stage.name().toLowerCase(Locale.US),
+					histogram.getCount(),
+					millis(histogram.getMean()),
+					millis(histogram.getPercentile(50)),
+					millis(histogram.getPercentile(95)),
+					millis(histogram.getPercentile(99)),
+					millis(histogram.getMax())));
+		}
+		sb.append(String.format(Locale.US, "%n"));
+		for(Counter counter : Counter.values()) {
+			sb.append(String.format(Locale.US, "%-17s %d%n",
+					counter.name().toLowerCase(Locale.US), getCount(counter)));
+		}
+		return sb.toString();
+	}
+
+	// Writes report() to a file, replacing what was there
+
+	public static void dump(File file) throws IOException {
+		Writer out = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+		try {
+			out.write(report());
+		} finally {
+			out.close();
+		}
+	}
+
+	private static double millis(long micros) {
+		return micros / 1000.0;
+	}
+}
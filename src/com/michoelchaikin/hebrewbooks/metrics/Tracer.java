@@ -0,0 +1,216 @@
+package com.michoelchaikin.hebrewbooks.metrics;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Records what each thread is doing, as a timeline of spans that can be loaded into
+ * chrome://tracing or Perfetto.
+ *
+ * A span is timed like this, and recorded as a single complete event when it ends, so a
+ * span is either fully in the buffer or not at all:
+ *
+ *   long start = Tracer.begin();
+ *   ...
+ *   Tracer.end("decode", start, page);
+ *
+ * Events go into a fixed ring buffer, so the newest events overwrite the oldest and
+ * recording never allocates. Names should be constants, so no strings are built either.
+ * Until start() is called there is no buffer, and begin() and end() do nothing but read
+ * one field.
+ */
+public final class Tracer {
+
+	public static final int DEFAULT_CAPACITY = 16 * 1024;
+
+	// Argument of events that don't have one
+	public static final int NO_ARG = Integer.MIN_VALUE;
+
+	private static volatile Buffer sBuffer = null;
+
+	private Tracer() {
+	}
+
+	// Starts recording into a new buffer of at least capacity events
+
+	public static synchronized void start(int capacity) {
+		sBuffer = new Buffer(capacity);
+	}
+
+	public static void start() {
+		start(DEFAULT_CAPACITY);
+	}
+
+	// Stops recording and drops the buffer
+
+	public static synchronized void stop() {
+		sBuffer = null;
+	}
+
+	public static boolean isEnabled() {
+		return sBuffer != null;
+	}
+
+	// Start time of a span, or 0 if tracing is off
+
+	public static long begin() {
+		return sBuffer != null ? System.nanoTime() : 0;
+	}
+
+	public static void end(String name, long start) {
+		end(name, start, NO_ARG);
+	}
+
+	// Records a span from start, a begin() result, until now. arg is shown with it, such as
+	// the page number
+
+	public static void end(String name, long start, int arg) {
+		Buffer buffer = sBuffer;
+		if(buffer == null || start == 0) return;
+		buffer.add(name, start, System.nanoTime() - start, arg);
+	}
+
+	// Records a point in time, such as a page being asked for
+
+	public static void instant(String name, int arg) {
+		Buffer buffer = sBuffer;
+		if(buffer == null) return;
+		buffer.add(name, System.nanoTime(), -1, arg);
+	}
+
+	// Writes the buffered events as Chrome trace-event JSON. Does nothing if tracing is off
+
+	public static void writeJson(File file) throws IOException {
+		Buffer buffer = sBuffer;
+		if(buffer == null) return;
+
+		Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), "UTF-8"));
+		try {
+			buffer.writeJson(out);
+		} finally {
+			out.close();
+		}
+	}
+
+	private static class Buffer {
+
+		private final int mMask;
+		private final long mOrigin = System.nanoTime();
+		private final AtomicLong mNext = new AtomicLong();
+
+		// One slot per event. A slot's stamp is set last, to the event's sequence number
+		// plus one, so a reader can tell a slot that is being written from a finished one
+		private final String[] mNames;
+		private final long[] mStarts;
+		private final long[] mDurations;
+		private final long[] mThreads;
+		private final int[] mArgs;
+		private final AtomicLongArray mStamps;
+
+		// Names of the threads that have recorded events. The thread local saves looking
+		// each thread up in the map, which would box its id
+		private final Map<Long, String> mThreadNames = new ConcurrentHashMap<Long, String>();
+		private final ThreadLocal<Boolean> mNamed = new ThreadLocal<Boolean>();
+
+		Buffer(int capacity) {
+			int size = Integer.highestOneBit(Math.max(capacity, 2) - 1) << 1;
+			mMask = size - 1;
+			mNames = new String[size];
+			mStarts = new long[size];
+			mDurations = new long[size];
+			mThreads = new long[size];
+			mArgs = new int[size];
+			mStamps = new AtomicLongArray(size);
+		}
+
+		void add(String name, long start, long duration, int arg) {
+			Thread thread = Thread.currentThread();
+			long threadID = thread.getId();
+			if(mNamed.get() == null) {
+				mThreadNames.put(threadID, thread.getName());
+				mNamed.set(Boolean.TRUE);
+			}
+
+			long sequence = mNext.getAndIncrement();
+			int slot = (int) sequence & mMask;
+			mStamps.set(slot, 0);
+			mNames[slot] = name;
+			mStarts[slot] = start;
+			mDurations[slot] = duration;
+			mThreads[slot] = threadID;
+			mArgs[slot] = arg;
+			mStamps.set(slot, sequence + 1);
+		}
+
+		void writeJson(Writer out) throws IOException {
+			out.write("{\"displayTimeUnit\":\"ms\",\"traceEvents\":[");
+			boolean first = true;
+
+			for(Map.Entry<Long, String> thread : mThreadNames.entrySet()) {
+				if(! first) out.write(",");
+				first = false;
+				out.write("\n{\"name\":\"thread_name\",\"ph\":\"M\",\"pid\":1,\"tid\":" + thread.getKey()
+						+ ",\"args\":{\"name\":" + quote(thread.getValue()) + "}}");
+			}
+
+			long end = mNext.get();
+			for(long sequence = Math.max(0, end - mMask - 1); sequence < end; sequence++) {
+				int slot = (int) sequence & mMask;
+				if(mStamps.get(slot) != sequence + 1) continue;
+				String name = mNames[slot];
+				long start = mStarts[slot];
+				long duration = mDurations[slot];
+				long threadID = mThreads[slot];
+				int arg = mArgs[slot];
+				// Overwritten while it was being read
+				if(mStamps.get(slot) != sequence + 1) continue;
+
+				if(! first) out.write(",");
+				first = false;
+				StringBuilder event = new StringBuilder();
+				event.append("\n{\"name\":").append(quote(name))
+					.append(",\"pid\":1,\"tid\":").append(threadID)
+					.append(",\"ts\":").append(micros(start - mOrigin));
+				if(duration >= 0) {
+					event.append(",\"ph\":\"X\",\"dur\":").append(micros(duration));
+				} else {
+					event.append(",\"ph\":\"i\",\"s\":\"t\"");
+				}
+				if(arg != NO_ARG) {
+					event.append(",\"args\":{\"arg\":").append(arg).append('}');
+				}
+				event.append('}');
+				out.write(event.toString());
+			}
+			out.write("\n]}\n");
+		}
+
+		private static String micros(long nanos) {
+			return String.format(Locale.US, "%.3f", nanos / 1000.0);
+		}
+
+		private static String quote(String value) {
+			StringBuilder sb = new StringBuilder("\"");
+			for(int i = 0; i < value.length(); i++) {
+				char c = value.charAt(i);
+				if(c == '"' || c == '\\') {
+					sb.append('\\').append(c);
+				} else if(c < 0x20) {
+					sb.append(String.format(Locale.US, "\\u%04x", (int) c));
+				} else {
+					sb.append(c);
+				}
+			}
+			return sb.append('"').toString();
+		}
+	}
+}
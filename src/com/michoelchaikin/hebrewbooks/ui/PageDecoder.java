@@ -0,0 +1,141 @@
+package com.michoelchaikin.hebrewbooks.ui;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.Handler;
+import android.os.Looper;
+
+import com.michoelchaikin.hebrewbooks.cache.BitmapCache;
+import com.michoelchaikin.hebrewbooks.metrics.PageMetrics;
+import com.michoelchaikin.hebrewbooks.metrics.Tracer;
+import com.michoelchaikin.hebrewbooks.utils.BitmapUtils;
+import com.michoelchaikin.hebrewbooks.utils.HebrewBooksUtils;
+
+/**
+ * Decodes page images on a background thread and hands the bitmaps to the UI thread.
+ *
+ * There is a single decode thread, so only one page is being decoded at a time. Pages
+ * the user is waiting for are decoded before pre-decodes of neighbouring pages, and the
+ * latest of them first.
+ */
+class PageDecoder {
+
+	private static final String TAG = "PageDecoder";
+
+	interface Callback {
+		// Called on the UI thread. bitmap is null if the page could not be decoded. It is
+		// acquired from the bitmap cache for the callback, which must show or release it
+		void onPageDecoded(int page, Bitmap bitmap);
+	}
+
+	private static final ThreadPoolExecutor sExecutor = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS,
+			new PriorityBlockingQueue<Runnable>(), new ThreadFactory() {
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, "PageDecoder");
+					thread.setPriority(Thread.NORM_PRIORITY - 1);
+					return thread;
+				}
+			});
+
+	private static final AtomicLong sSequence = new AtomicLong();
+
+	private final BitmapCache mCache;
+	private final Handler mHandler = new Handler(Looper.getMainLooper());
+
+	PageDecoder(BitmapCache cache) {
+		mCache = cache;
+	}
+
+	// Decodes a page the user is waiting for. width and height are the size of the image,
+	// or 0 to read it from the image first
+
+	void decode(int bookID, int page, ByteBuffer image, int width, int height, int reqHeight, int reqWidth, Callback callback) {
+		sExecutor.execute(new DecodeTask(bookID, page, image, width, height, reqHeight, reqWidth, callback));
+	}
+
+	// Decodes a page into the bitmap cache ahead of time
+
+	void predecode(int bookID, int page, ByteBuffer image, int width, int height, int reqHeight, int reqWidth) {
+		sExecutor.execute(new DecodeTask(bookID, page, image, width, height, reqHeight, reqWidth, null));
+	}
+
+	private class DecodeTask implements Runnable, Comparable<DecodeTask> {
+
+		private final int mBookID;
+		private final int mPage;
+		private final ByteBuffer mImage;
+		private final int mWidth;
+		private final int mHeight;
+		private final int mReqHeight;
+		private final int mReqWidth;
+		private final Callback mCallback;
+		private final long mSequence = sSequence.incrementAndGet();
+
+		DecodeTask(int bookID, int page, ByteBuffer image, int width, int height, int reqHeight, int reqWidth, Callback callback) {
+			mBookID = bookID;
+			mPage = page;
+			mImage = image;
+			mWidth = width;
+			mHeight = height;
+			mReqHeight = reqHeight;
+			mReqWidth = reqWidth;
+			mCallback = callback;
+		}
+
+		public void run() {
+			// May have been decoded while this task was queued. A bitmap for the UI thread is
+			// acquired here, so it can't be pooled and decoded into on its way there
+			boolean visible = mCallback != null;
+			Bitmap bitmap = visible
+					? mCache.acquire(mBookID, mPage, mReqHeight, mReqWidth)
+					: mCache.get(mBookID, mPage, mReqHeight, mReqWidth);
+
+			if(bitmap == null) {
+				long start = System.nanoTime();
+				int width = mWidth;
+				int height = mHeight;
+				if(width <= 0 || height <= 0) {
+					BitmapFactory.Options bounds = BitmapUtils.decodeBounds(mImage);
+					width = bounds.outWidth;
+					height = bounds.outHeight;
+				}
+				bitmap = BitmapUtils.decodeBitmap(mImage, width, height, mReqHeight, mReqWidth, mCache.getPool());
+				int sampleSize = HebrewBooksUtils.calculateSampleSize(width, height, mReqHeight, mReqWidth);
+				if(visible) mCache.acquire(bitmap);
+				mCache.put(mBookID, mPage, width, height, sampleSize, bitmap);
+				PageMetrics.record(PageMetrics.Stage.DECODE, start);
+				Tracer.end(mCallback != null ? "decode" : "predecode", start, mPage);
+			}
+
+			if(visible) {
+				final Bitmap result = bitmap;
+				mHandler.post(new Runnable() {
+					public void run() {
+						mCallback.onPageDecoded(mPage, result);
+					}
+				});
+			}
+		}
+
+		// Waited-for pages first, newest first. Pre-decodes in the order they were asked for
+
+		public int compareTo(DecodeTask other) {
+			boolean visible = mCallback != null;
+			boolean otherVisible = other.mCallback != null;
+			if(visible != otherVisible) {
+				return visible ? -1 : 1;
+			}
+			if(visible) {
+				return mSequence > other.mSequence ? -1 : (mSequence == other.mSequence ? 0 : 1);
+			}
+			return mSequence < other.mSequence ? -1 : (mSequence == other.mSequence ? 0 : 1);
+		}
+	}
+}
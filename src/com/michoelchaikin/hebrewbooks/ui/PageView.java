@@ -2,85 +2,316 @@ package com.michoelchaikin.hebrewbooks.ui;
 
 import it.sephiroth.android.library.imagezoom.ImageViewTouch;
 
-import java.io.File;
+import java.io.IOException;
 import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
 
+import android.app.ActivityManager;
 import android.content.Context;
 import android.graphics.Bitmap;
-import android.os.AsyncTask;
+import android.graphics.BitmapFactory;
+import android.graphics.Canvas;
+import android.graphics.Matrix;
+import android.os.Handler;
+import android.os.Looper;
 import android.util.AttributeSet;
 import android.util.Log;
 
+import com.michoelchaikin.hebrewbooks.HebrewBook;
 import com.michoelchaikin.hebrewbooks.PageCacheManager;
+import com.michoelchaikin.hebrewbooks.PageHandle;
 import com.michoelchaikin.hebrewbooks.R;
-import com.michoelchaikin.hebrewbooks.utils.HebrewBooksUtils;
+import com.michoelchaikin.hebrewbooks.cache.BitmapCache;
+import com.michoelchaikin.hebrewbooks.metrics.PageMetrics;
+import com.michoelchaikin.hebrewbooks.metrics.Tracer;
+import com.michoelchaikin.hebrewbooks.utils.BitmapUtils;
 
 public class PageView extends ImageViewTouch {
 
-	@SuppressWarnings("unused")
 	private static final String TAG = "PageView";
+	
+	// Share of the memory class given to the tiles of a zoomed-in page
+	private static final int TILE_HEAP_FRACTION = 8;
 
-	private AsyncTask<Void, Void, File> mGetPageTask = null;
+	private PageLoad mPageLoad = null;
+	private final BitmapCache mBitmapCache;
+	private final PageDecoder mDecoder;
+	
+	// Draws zoomed-in pages sharply, null before API 10
+	private final TileRenderer mTileRenderer;
+	private final Matrix mBitmapToView = new Matrix();
+	
+	private PageCacheManager mCacheManager = null;
+	private int mPage = 0;
+	
+	// The page bitmap being shown, if any
+	private Bitmap mBitmap = null;
+	
+	// When the page being loaded was asked for, 0 once it is shown, and whether it was a
+	// jump past the pages being prefetched
+	private long mLoadStart = 0;
+	private boolean mFarJump = false;
 
 	public PageView(Context context, AttributeSet attrs)
 	{
 		super(context, attrs);
+		mBitmapCache = BitmapCache.getInstance(context);
+		mDecoder = new PageDecoder(mBitmapCache);
+		
+		if(TileRenderer.isSupported()) {
+			ActivityManager am = (ActivityManager) context.getSystemService(Context.ACTIVITY_SERVICE);
+			mTileRenderer = new TileRenderer(this, am.getMemoryClass() * 1024 * 1024 / TILE_HEAP_FRACTION);
+		} else {
+			mTileRenderer = null;
+		}
 	}
 
 	public void loadPage(PageCacheManager cacheManager, int page) {
+		
+		mLoadStart = System.nanoTime();
+		mFarJump = mPage != 0 && Math.abs(page - mPage) > cacheManager.getPrefetchAhead();
+		mCacheManager = cacheManager;
+		mPage = page;
 
-		// Cancel any pending load requests
-		if(mGetPageTask != null) {
-			mGetPageTask.cancel(true);
+		// Stop waiting for the page we were loading. The cache manager carries on with it
+		// as a prefetch, so the work already done on it isn't lost
+		if(mPageLoad != null) {
+			mPageLoad.cancel();
+			mPageLoad = null;
+		}
+		
+		// Pages shown recently are still decoded in memory
+		int bookID = cacheManager.getBook().getBookID();
+		Bitmap cached = mBitmapCache.acquire(bookID, page, getRequiredHeight(), getRequiredWidth());
+		if(cached != null) {
+			PageMetrics.count(PageMetrics.Counter.BITMAP_HIT);
+			Tracer.instant("bitmap hit", page);
+			// Still let the cache manager know where the reader is
+			cacheManager.request(page);
+			showBitmap(cached);
+			showTiles(page, cacheManager.getPageIfReady(page), cached);
+			pageShown();
+			predecodeNeighbours(page);
+			return;
 		}
 		
+		PageMetrics.count(PageMetrics.Counter.BITMAP_MISS);
+		
 		// Clear for now (TODO: change to loading indicator)
-		setImageResource(android.R.color.white);
+		showResource(android.R.color.white);
 
-		mGetPageTask = new LoadPageAsyncTask(cacheManager, page, this);
-		mGetPageTask.execute();
+		mPageLoad = new PageLoad(cacheManager, page, this);
+		mPageLoad.start();
+	}
+	
+	// Called on the UI thread once the page image is ready, decodes it in the background
+	
+	void decodePage(int page, final ByteBuffer image) {
+		if(page != mPage) return;
+		
+		HebrewBook book = mCacheManager.getBook();
+		mDecoder.decode(book.getBookID(), page, image, book.getPageWidth(page), book.getPageHeight(page),
+				getRequiredHeight(), getRequiredWidth(), new PageDecoder.Callback() {
+			public void onPageDecoded(int page, Bitmap bitmap) {
+				// The user may have moved on while we were decoding
+				if(page != mPage) {
+					if(bitmap != mBitmap) mBitmapCache.release(bitmap);
+					return;
+				}
+				
+				if(bitmap != null) {
+					showBitmap(bitmap);
+					showTiles(page, image, bitmap);
+					pageShown();
+				} else {
+					showResource(R.drawable.error);
+				}
+				predecodeNeighbours(page);
+			}
+		});
+	}
+	
+	// Decodes the pages on either side into memory, so turning to them only swaps the bitmap
+	
+	private void predecodeNeighbours(int page) {
+		HebrewBook book = mCacheManager.getBook();
+		int bookID = book.getBookID();
+		int reqHeight = getRequiredHeight();
+		int reqWidth = getRequiredWidth();
+		
+		for(int neighbour = page - 1; neighbour <= page + 1; neighbour += 2) {
+			if(mBitmapCache.get(bookID, neighbour, reqHeight, reqWidth) != null) continue;
+			
+			ByteBuffer image = mCacheManager.getPageIfReady(neighbour);
+			if(image != null) {
+				mDecoder.predecode(bookID, neighbour, image, book.getPageWidth(neighbour), book.getPageHeight(neighbour),
+						reqHeight, reqWidth);
+			}
+		}
+	}
+	
+	// Shows a page bitmap, which the caller has acquired from the cache, handing the one it
+	// replaces back to the cache so its memory can be reused once it is no longer cached
+	// either
+	
+	void showBitmap(Bitmap bitmap) {
+		Bitmap old = mBitmap;
+		mBitmap = bitmap;
+		long start = System.nanoTime();
+		setImageBitmap(bitmap);
+		PageMetrics.record(PageMetrics.Stage.DISPLAY, start);
+		Tracer.end("setImageBitmap", start, mPage);
+		if(old != bitmap) {
+			mBitmapCache.release(old);
+		}
+	}
+	
+	// Lets the page be drawn from tiles of its image when it is zoomed in past its bitmap
+	
+	private void showTiles(int page, ByteBuffer image, Bitmap bitmap) {
+		if(mTileRenderer == null) return;
+		HebrewBook book = mCacheManager.getBook();
+		int width = book.getPageWidth(page);
+		int height = book.getPageHeight(page);
+		if(image != null && (width <= 0 || height <= 0)) {
+			BitmapFactory.Options bounds = BitmapUtils.decodeBounds(image);
+			width = bounds.outWidth;
+			height = bounds.outHeight;
+		}
+		mTileRenderer.setPage(page, image, width, height, bitmap.getWidth(), bitmap.getHeight());
+	}
+	
+	@Override
+	protected void onDraw(Canvas canvas) {
+		super.onDraw(canvas);
+		if(mTileRenderer != null && mBitmap != null) {
+			mBitmapToView.set(getImageMatrix());
+			mBitmapToView.postTranslate(getPaddingLeft(), getPaddingTop());
+			mTileRenderer.draw(canvas, mBitmapToView, getWidth(), getHeight());
+		}
+	}
+	
+	@Override
+	protected void onDetachedFromWindow() {
+		super.onDetachedFromWindow();
+		if(mTileRenderer != null) mTileRenderer.clear();
+	}
+	
+	// Records how long the reader waited for the page
+	
+	private void pageShown() {
+		if(mLoadStart == 0) return;
+		PageMetrics.record(PageMetrics.Stage.FIRST_PIXEL, mLoadStart);
+		if(mFarJump) {
+			PageMetrics.record(PageMetrics.Stage.FAR_JUMP, mLoadStart);
+		}
+		mLoadStart = 0;
+	}
+	
+	void showResource(int resId) {
+		Bitmap old = mBitmap;
+		mBitmap = null;
+		if(mTileRenderer != null) mTileRenderer.clear();
+		setImageResource(resId);
+		mBitmapCache.release(old);
+	}
+	
+	// Pages are decoded at twice the view size, so there is some room for zooming before
+	// tiles are needed
+	
+	int getRequiredHeight() {
+		return getHeight() * 2;
+	}
+	
+	int getRequiredWidth() {
+		return getWidth() * 2;
 	}
 }
 
-class LoadPageAsyncTask extends AsyncTask<Void, Void, File> {
+/**
+ * Waits for a page from the cache manager and passes it to the page view on the UI thread.
+ *
+ * No thread is held while waiting, the page handle calls back when the page is ready.
+ * Cancelling withdraws interest in the page instead of interrupting anything, so fast
+ * swiping doesn't leave a trail of interrupted work behind it.
+ */
+class PageLoad implements PageHandle.Callback {
 
-	private static final String TAG = "LoadPageAsyncTask";
+	private static final String TAG = "PageLoad";
+	
+	// Give up on a page that takes longer than this, rather than waiting forever
+	private static final long PAGE_TIMEOUT_MILLIS = 120 * 1000;
 
+	private final Handler mHandler = new Handler(Looper.getMainLooper());
 	private final WeakReference<PageView> mPageViewReference;
 	private final PageCacheManager mCacheManager;
 	private final int mPage;
+	private final long mStartTime = System.nanoTime();
+	
+	// Cancelled, timed out or delivered. Only used on the UI thread
+	private boolean mDone = false;
+	
+	private final Runnable mTimeout = new Runnable() {
+		public void run() {
+			Log.e(TAG, "loadPage(), timed out waiting for page " + mPage);
+			mCacheManager.withdraw(mPage, PageLoad.this);
+			deliver(null);
+		}
+	};
 
-	public LoadPageAsyncTask(PageCacheManager cacheManager, int page, PageView pageView) {
+	PageLoad(PageCacheManager cacheManager, int page, PageView pageView) {
 		mPageViewReference = new WeakReference<PageView>(pageView);
 		mCacheManager = cacheManager;
 		mPage = page;
 	}
+	
+	void start() {
+		PageHandle handle = mCacheManager.request(mPage);
+		mHandler.postDelayed(mTimeout, PAGE_TIMEOUT_MILLIS);
+		handle.addCallback(this);
+	}
+	
+	void cancel() {
+		if(mDone) return;
+		mDone = true;
+		mHandler.removeCallbacks(mTimeout);
+		mCacheManager.withdraw(mPage, this);
+	}
 
-	@Override
-	protected File doInBackground(Void... params) {
-		Log.i(TAG, "loadPage(), asking page manager for page");
-		File file = mCacheManager.getPage(mPage);
-		Log.i(TAG, "loadPage(), got page, passing to UI thread");
-		return file;
+	// Called on the thread that finished the page
+
+	public void onPageReady(int page, final ByteBuffer image) {
+		PageMetrics.record(PageMetrics.Stage.WAIT, mStartTime);
+		Tracer.end("wait", mStartTime, page);
+		mHandler.post(new Runnable() {
+			public void run() {
+				deliver(image);
+			}
+		});
 	}
 
-	@Override
-	protected void onPostExecute(File file) {
+	public void onPageFailed(int page, IOException error) {
+		Log.e(TAG, "loadPage(), page failed: " + error.getMessage());
+		mHandler.post(new Runnable() {
+			public void run() {
+				deliver(null);
+			}
+		});
+	}
+	
+	private void deliver(ByteBuffer image) {
+		if(mDone) return;
+		mDone = true;
+		mHandler.removeCallbacks(mTimeout);
 		
 		// Make sure that our view is still around
-		if (mPageViewReference == null) return;
 		final PageView pageView = mPageViewReference.get();
 		if (pageView == null) return;
 
-		if(file != null && file.exists()) {
-			Log.i(TAG, "LoadPage, in UI thread, decoding bitmap");
-			int reqHeight = (int) Math.round(pageView.getHeight() * 2);
-			int reqWidth = (int) Math.round(pageView.getWidth() * 2);;
-			Bitmap bm = HebrewBooksUtils.decodeBitmap(file, reqHeight, reqWidth);
-			Log.i(TAG, "LoadPage, done decoding, setting as image bitmap");
-			pageView.setImageBitmap(bm);
+		if(image != null) {
+			pageView.decodePage(mPage, image);
 		} else {
-			pageView.setImageResource(R.drawable.error);
-		}				
+			pageView.showResource(R.drawable.error);
+		}
 	}
 }
@@ -0,0 +1,371 @@
+package com.michoelchaikin.hebrewbooks.ui;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.BitmapRegionDecoder;
+import android.graphics.Canvas;
+import android.graphics.Matrix;
+import android.graphics.Paint;
+import android.graphics.Rect;
+import android.graphics.RectF;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.support.v4.util.LruCache;
+import android.util.Log;
+import android.view.View;
+
+import com.michoelchaikin.hebrewbooks.metrics.PageMetrics;
+import com.michoelchaikin.hebrewbooks.metrics.Tracer;
+import com.michoelchaikin.hebrewbooks.utils.ByteBufferInputStream;
+
+/**
+ * Draws the part of a page that is on screen at the resolution it is shown at, once the
+ * page is zoomed in further than its bitmap can show sharply.
+ *
+ * The page image is split into square tiles, decoded at the largest power of two sample
+ * size that still gives an image pixel for every screen pixel, so a tile is drawn at one
+ * to two times its size at any zoom. Only the tiles on screen are decoded, with
+ * BitmapRegionDecoder, one at a time on a background thread and the newest first. Tiles
+ * that have gone off screen by the time their turn comes are skipped. Tiles not decoded
+ * yet show the page bitmap underneath.
+ *
+ * Decoded tiles are kept in an LRU cache bounded in bytes. If the tiles on screen would
+ * not fit in it, a coarser sample size is used, so memory stays bounded at every zoom.
+ * Everything here except the decoding runs on the UI thread.
+ */
+class TileRenderer {
+
+	private static final String TAG = "TileRenderer";
+
+	// Width and height of a tile in decoded pixels
+	private static final int TILE_SIZE = 256;
+
+	// Tiles are decoded as RGB_565, like the page bitmaps
+	private static final int BYTES_PER_PIXEL = 2;
+
+	private static final ThreadPoolExecutor sExecutor = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS,
+			new PriorityBlockingQueue<Runnable>(), new ThreadFactory() {
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, "TileDecoder");
+					thread.setPriority(Thread.NORM_PRIORITY - 1);
+					return thread;
+				}
+			});
+
+	private static final AtomicLong sSequence = new AtomicLong();
+
+	private final View mView;
+	private final int mMaxBytes;
+	private final Handler mHandler = new Handler(Looper.getMainLooper());
+	private final LruCache<Long, Bitmap> mTiles;
+
+	// Tiles queued for decoding
+	private final Set<Long> mLoading = new HashSet<Long>();
+
+	// The page being drawn, and the size of its bitmap
+	private Source mSource = null;
+	private int mBitmapWidth;
+	private int mBitmapHeight;
+
+	// Tiles on screen at the last draw. Read by the decode thread to skip the others
+	private volatile Range mWanted = null;
+
+	// Reused on every draw
+	private final Paint mPaint = new Paint(Paint.FILTER_BITMAP_FLAG);
+	private final Matrix mImageToView = new Matrix();
+	private final Matrix mViewToImage = new Matrix();
+	private final float[] mValues = new float[9];
+	private final RectF mVisible = new RectF();
+	private final RectF mTileRect = new RectF();
+
+	// BitmapRegionDecoder is there from API 10
+
+	static boolean isSupported() {
+		return Build.VERSION.SDK_INT >= Build.VERSION_CODES.GINGERBREAD_MR1;
+	}
+
+	// view is invalidated whenever a tile is ready. maxBytes bounds the decoded tiles kept
+
+	TileRenderer(View view, int maxBytes) {
+		mView = view;
+		mMaxBytes = maxBytes;
+		mTiles = new LruCache<Long, Bitmap>(maxBytes) {
+			@Override
+			protected int sizeOf(Long key, Bitmap tile) {
+				return tile.getRowBytes() * tile.getHeight();
+			}
+		};
+	}
+
+	// Starts drawing a page, whose image is width by height pixels and whose bitmap is shown
+	// at bitmapWidth by bitmapHeight
+
+	void setPage(int page, ByteBuffer image, int width, int height, int bitmapWidth, int bitmapHeight) {
+		clear();
+		if(image == null || width <= 0 || height <= 0 || bitmapWidth <= 0 || bitmapHeight <= 0) return;
+		mSource = new Source(page, image, width, height);
+		mBitmapWidth = bitmapWidth;
+		mBitmapHeight = bitmapHeight;
+	}
+
+	// Drops the page's tiles, and its decoder once the decode thread is done with it
+
+	void clear() {
+		final Source source = mSource;
+		mSource = null;
+		mWanted = null;
+		mLoading.clear();
+		mTiles.evictAll();
+		if(source != null) {
+			sExecutor.execute(new Task() {
+				public void run() {
+					source.close();
+				}
+			});
+		}
+	}
+
+	// Draws the tiles on screen over the page bitmap, and queues the ones that are missing.
+	// bitmapToView is the matrix the bitmap is drawn with
+
+	void draw(Canvas canvas, Matrix bitmapToView, int viewWidth, int viewHeight) {
+		Source source = mSource;
+		if(source == null) return;
+
+		mImageToView.set(bitmapToView);
+		mImageToView.preScale((float) mBitmapWidth / source.mWidth, (float) mBitmapHeight / source.mHeight);
+		mImageToView.getValues(mValues);
+		float scale = mValues[Matrix.MSCALE_X];
+
+		// Not zoomed in past the bitmap, it is as sharp as tiles would be
+		int sampleSize = sampleSizeFor(scale);
+		if(1f / sampleSize <= (float) mBitmapWidth / source.mWidth || ! mImageToView.invert(mViewToImage)) {
+			mWanted = null;
+			return;
+		}
+
+		mVisible.set(0, 0, viewWidth, viewHeight);
+		mViewToImage.mapRect(mVisible);
+		if(! mVisible.intersect(0, 0, source.mWidth, source.mHeight)) {
+			mWanted = null;
+			return;
+		}
+
+		// Keep the tiles on screen within the cache, at a coarser sample size if need be
+		int span, left, top, right, bottom;
+		while(true) {
+			span = TILE_SIZE * sampleSize;
+			left = (int) (mVisible.left / span);
+			top = (int) (mVisible.top / span);
+			right = (int) Math.ceil(mVisible.right / span);
+			bottom = (int) Math.ceil(mVisible.bottom / span);
+			long bytes = (long) (right - left) * (bottom - top) * TILE_SIZE * TILE_SIZE * BYTES_PER_PIXEL;
+			if(bytes <= mMaxBytes) break;
+			sampleSize *= 2;
+		}
+		if(1f / sampleSize <= (float) mBitmapWidth / source.mWidth) {
+			mWanted = null;
+			return;
+		}
+
+		Range wanted = mWanted;
+		if(wanted == null || ! wanted.is(source, sampleSize, left, top, right, bottom)) {
+			mWanted = new Range(source, sampleSize, left, top, right, bottom);
+		}
+
+		int save = canvas.save();
+		canvas.concat(mImageToView);
+		for(int row = top; row < bottom; row++) {
+			for(int column = left; column < right; column++) {
+				Long key = key(sampleSize, column, row);
+				Bitmap tile = mTiles.get(key);
+				if(tile != null) {
+					mTileRect.set(column * span, row * span,
+							Math.min((column + 1) * span, source.mWidth), Math.min((row + 1) * span, source.mHeight));
+					canvas.drawBitmap(tile, null, mTileRect, mPaint);
+				} else if(mLoading.add(key)) {
+					sExecutor.execute(new TileTask(source, sampleSize, column, row, key));
+				}
+			}
+		}
+		canvas.restoreToCount(save);
+	}
+
+	// Largest power of two sample size that still has an image pixel for every screen pixel,
+	// scale being screen pixels per image pixel
+
+	private static int sampleSizeFor(float scale) {
+		int sampleSize = 1;
+		while(sampleSize * 2 * scale <= 1f) {
+			sampleSize *= 2;
+		}
+		return sampleSize;
+	}
+
+	private static Long key(int sampleSize, int column, int row) {
+		return Long.valueOf(((long) Integer.numberOfTrailingZeros(sampleSize) << 48) | ((long) column << 24) | row);
+	}
+
+	// Called on the UI thread with a decoded tile, or null if it failed. A tile that failed
+	// stays in mLoading, so it isn't tried again for this page
+
+	private void tileDecoded(Source source, Long key, Bitmap tile, boolean skipped) {
+		if(source != mSource) {
+			if(tile != null) tile.recycle();
+			return;
+		}
+		if(skipped) {
+			// It may be back on screen, in which case the next draw queues it again
+			mLoading.remove(key);
+			mView.invalidate();
+		} else if(tile != null) {
+			mLoading.remove(key);
+			mTiles.put(key, tile);
+			mView.invalidate();
+		}
+	}
+
+	// Tasks for the decode thread, newest first
+
+	private static abstract class Task implements Runnable, Comparable<Task> {
+
+		private final long mSequence = sSequence.incrementAndGet();
+
+		public int compareTo(Task other) {
+			return mSequence > other.mSequence ? -1 : (mSequence == other.mSequence ? 0 : 1);
+		}
+	}
+
+	private class TileTask extends Task {
+
+		private final Source mSource;
+		private final int mSampleSize;
+		private final int mColumn;
+		private final int mRow;
+		private final Long mKey;
+
+		TileTask(Source source, int sampleSize, int column, int row, Long key) {
+			mSource = source;
+			mSampleSize = sampleSize;
+			mColumn = column;
+			mRow = row;
+			mKey = key;
+		}
+
+		public void run() {
+			Bitmap tile = null;
+			Range wanted = mWanted;
+			final boolean skipped = wanted == null || ! wanted.contains(mSource, mSampleSize, mColumn, mRow);
+			if(! skipped) {
+				long start = System.nanoTime();
+				int span = TILE_SIZE * mSampleSize;
+				Rect region = new Rect(mColumn * span, mRow * span,
+						Math.min((mColumn + 1) * span, mSource.mWidth), Math.min((mRow + 1) * span, mSource.mHeight));
+				tile = mSource.decode(region, mSampleSize);
+				PageMetrics.record(PageMetrics.Stage.TILE, start);
+				Tracer.end("tile", start, mSource.mPage);
+			}
+
+			final Bitmap result = tile;
+			mHandler.post(new Runnable() {
+				public void run() {
+					tileDecoded(mSource, mKey, result, skipped);
+				}
+			});
+		}
+	}
+
+	// A page image and its region decoder, which is created on the decode thread the first
+	// time a tile is needed, and only used there
+
+	private static class Source {
+
+		private final int mPage;
+		private final ByteBuffer mImage;
+		private final int mWidth;
+		private final int mHeight;
+		private BitmapRegionDecoder mDecoder = null;
+		private boolean mFailed = false;
+
+		Source(int page, ByteBuffer image, int width, int height) {
+			mPage = page;
+			mImage = image;
+			mWidth = width;
+			mHeight = height;
+		}
+
+		Bitmap decode(Rect region, int sampleSize) {
+			if(mDecoder == null) {
+				if(mFailed) return null;
+				try {
+					mDecoder = BitmapRegionDecoder.newInstance(new ByteBufferInputStream(mImage), false);
+				} catch (IOException e) {
+					Log.e(TAG, "Could not open page " + mPage + " for tiles: " + e.getMessage());
+				}
+				if(mDecoder == null) {
+					mFailed = true;
+					return null;
+				}
+			}
+
+			BitmapFactory.Options options = new BitmapFactory.Options();
+			options.inSampleSize = sampleSize;
+			options.inPreferredConfig = Bitmap.Config.RGB_565;
+			try {
+				return mDecoder.decodeRegion(region, options);
+			} catch (OutOfMemoryError e) {
+				Log.e(TAG, "Out of memory decoding a tile of page " + mPage);
+				return null;
+			}
+		}
+
+		void close() {
+			if(mDecoder != null) {
+				mDecoder.recycle();
+				mDecoder = null;
+			}
+		}
+	}
+
+	// Tiles from left to right and top to bottom, exclusive, at a sample size
+
+	private static class Range {
+
+		private final Source mSource;
+		private final int mSampleSize;
+		private final int mLeft;
+		private final int mTop;
+		private final int mRight;
+		private final int mBottom;
+
+		Range(Source source, int sampleSize, int left, int top, int right, int bottom) {
+			mSource = source;
+			mSampleSize = sampleSize;
+			mLeft = left;
+			mTop = top;
+			mRight = right;
+			mBottom = bottom;
+		}
+
+		boolean is(Source source, int sampleSize, int left, int top, int right, int bottom) {
+			return source == mSource && sampleSize == mSampleSize
+					&& left == mLeft && top == mTop && right == mRight && bottom == mBottom;
+		}
+
+		boolean contains(Source source, int sampleSize, int column, int row) {
+			return source == mSource && sampleSize == mSampleSize
+					&& column >= mLeft && column < mRight && row >= mTop && row < mBottom;
+		}
+	}
+}
@@ -0,0 +1,59 @@
+package com.michoelchaikin.hebrewbooks.utils;
+
+import java.io.InterruptedIOException;
+
+/**
+ * Keeps transfers that share it to an average number of bytes per second.
+ *
+ * A token bucket holding up to a second's worth of bytes. Transfers take what they receive
+ * out of it, going into debt if need be, and wait until the debt has been paid back at the
+ * rate. A rate of 0 means no limit.
+ */
+public class BandwidthLimiter {
+
+	private long mBytesPerSecond;
+	private double mAvailable;
+	private long mLastRefill = System.nanoTime();
+
+	public BandwidthLimiter(long bytesPerSecond) {
+		mBytesPerSecond = bytesPerSecond;
+		mAvailable = bytesPerSecond;
+	}
+
+	public synchronized void setRate(long bytesPerSecond) {
+		refill();
+		mBytesPerSecond = bytesPerSecond;
+		mAvailable = Math.min(mAvailable, bytesPerSecond);
+	}
+
+	public synchronized long getRate() {
+		return mBytesPerSecond;
+	}
+
+	// Takes count bytes, waiting for as long as it takes to keep to the rate
+
+	public void acquire(int count) throws InterruptedIOException {
+		long waitNanos;
+		synchronized(this) {
+			if(mBytesPerSecond <= 0) return;
+			refill();
+			mAvailable -= count;
+			waitNanos = mAvailable < 0 ? (long) (-mAvailable * 1000000000L / mBytesPerSecond) : 0;
+		}
+
+		if(waitNanos > 0) {
+			try {
+				Thread.sleep(waitNanos / 1000000, (int) (waitNanos % 1000000));
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Interrupted waiting for bandwidth");
+			}
+		}
+	}
+
+	private void refill() {
+		long now = System.nanoTime();
+		mAvailable = Math.min(mBytesPerSecond, mAvailable + (now - mLastRefill) * mBytesPerSecond / 1e9);
+		mLastRefill = now;
+	}
+}
@@ -0,0 +1,102 @@
+package com.michoelchaikin.hebrewbooks.utils;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.util.Log;
+
+import com.michoelchaikin.hebrewbooks.cache.BitmapPool;
+
+/**
+ * Decoding of page images into bitmaps. Kept apart from HebrewBooksUtils, which the page
+ * pipeline uses, as it is the only part of the utilities that needs Android.
+ */
+public class BitmapUtils {
+	private static final String TAG = "BitmapUtils";
+	
+    // Decode a bitmap from a file in required size
+    
+    public static Bitmap decodeBitmap(File file, int reqHeight, int reqWidth) {
+    	// Get image size of file
+		BitmapFactory.Options bounds = decodeBounds(file);
+		return decodeBitmap(file, bounds.outWidth, bounds.outHeight, reqHeight, reqWidth);
+    }
+    
+    // Reads just the image size of a file, into outWidth and outHeight
+    
+    public static BitmapFactory.Options decodeBounds(File file) {
+		BitmapFactory.Options options = new BitmapFactory.Options();
+		options.inJustDecodeBounds = true;
+		BitmapFactory.decodeFile(file.getAbsolutePath(), options);
+		return options;
+    }
+    
+    // Same, for an image in memory, such as a page in a pack
+    
+    public static BitmapFactory.Options decodeBounds(ByteBuffer image) {
+		BitmapFactory.Options options = new BitmapFactory.Options();
+		options.inJustDecodeBounds = true;
+		BitmapFactory.decodeStream(new ByteBufferInputStream(image), null, options);
+		return options;
+    }
+    
+    // Decode a bitmap of known image size from a file in required size
+    
+    public static Bitmap decodeBitmap(File file, int width, int height, int reqHeight, int reqWidth) {
+    	return decodeBitmap(file, width, height, reqHeight, reqWidth, null);
+    }
+    
+    // Same, but decoding into a bitmap from the pool if there is a suitable one
+    
+    public static Bitmap decodeBitmap(File file, int width, int height, int reqHeight, int reqWidth, BitmapPool pool) {
+    	return decodeBitmap(file, null, width, height, reqHeight, reqWidth, pool);
+    }
+    
+    // Same, for an image in memory, such as a page in a pack
+    
+    public static Bitmap decodeBitmap(ByteBuffer image, int width, int height, int reqHeight, int reqWidth, BitmapPool pool) {
+    	return decodeBitmap(null, image, width, height, reqHeight, reqWidth, pool);
+    }
+    
+    // Decodes either the file or the image
+    
+    private static Bitmap decodeBitmap(File file, ByteBuffer image, int width, int height, int reqHeight, int reqWidth, BitmapPool pool) {
+		BitmapFactory.Options options = new BitmapFactory.Options();
+		options.inSampleSize = HebrewBooksUtils.calculateSampleSize(width, height, reqHeight, reqWidth);
+
+		// Decode bitmap
+	    options.inPreferredConfig = Bitmap.Config.RGB_565;
+		options.inDither = false;
+		
+		if(pool != null && BitmapPool.isSupported()) {
+			// Pooled bitmaps have to be mutable, which purgeable ones are not
+			int sampledWidth = (width + options.inSampleSize - 1) / options.inSampleSize;
+			int sampledHeight = (height + options.inSampleSize - 1) / options.inSampleSize;
+			options.inMutable = true;
+			options.inBitmap = pool.get(sampledWidth, sampledHeight, options.inSampleSize, options.inPreferredConfig);
+			
+			if(options.inBitmap != null) {
+				try {
+					Bitmap bitmap = decode(file, image, options);
+					if(bitmap != null) return bitmap;
+				} catch (IllegalArgumentException e) {
+					Log.w(TAG, "decodeBitmap(): could not reuse bitmap, " + e.getMessage());
+				}
+				options.inBitmap = null;
+			}
+		} else {
+			options.inPurgeable = true;
+		}
+		
+		return decode(file, image, options);
+    }
+    
+    private static Bitmap decode(File file, ByteBuffer image, BitmapFactory.Options options) {
+    	if(file != null) {
+    		return BitmapFactory.decodeFile(file.getAbsolutePath(), options);
+    	}
+    	return BitmapFactory.decodeStream(new ByteBufferInputStream(image), null, options);
+    }
+}
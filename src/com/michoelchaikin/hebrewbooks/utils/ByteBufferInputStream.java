@@ -0,0 +1,59 @@
+package com.michoelchaikin.hebrewbooks.utils;
+
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Reads a buffer from its position to its limit, such as a page image in a memory-mapped
+ * file. The buffer passed in is not modified.
+ */
+public class ByteBufferInputStream extends InputStream {
+
+	private final ByteBuffer mData;
+	private int mMark;
+
+	public ByteBufferInputStream(ByteBuffer data) {
+		mData = data.duplicate();
+		mMark = mData.position();
+	}
+
+	@Override
+	public int read() {
+		return mData.hasRemaining() ? mData.get() & 0xff : -1;
+	}
+
+	@Override
+	public int read(byte[] buffer, int offset, int count) {
+		if(! mData.hasRemaining()) return -1;
+		count = Math.min(count, mData.remaining());
+		mData.get(buffer, offset, count);
+		return count;
+	}
+
+	@Override
+	public long skip(long count) {
+		int skipped = (int) Math.max(0, Math.min(count, mData.remaining()));
+		mData.position(mData.position() + skipped);
+		return skipped;
+	}
+
+	@Override
+	public int available() {
+		return mData.remaining();
+	}
+
+	@Override
+	public boolean markSupported() {
+		return true;
+	}
+
+	@Override
+	public synchronized void mark(int readLimit) {
+		mMark = mData.position();
+	}
+
+	@Override
+	public synchronized void reset() {
+		mData.position(mMark);
+	}
+}
@@ -1,19 +1,15 @@
 package com.michoelchaikin.hebrewbooks.utils;
 
-import java.io.BufferedInputStream;
 import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.net.URL;
-import java.net.URLConnection;
 
-import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
-import android.util.Log;
+import com.michoelchaikin.hebrewbooks.cache.DiskCache;
+import com.michoelchaikin.hebrewbooks.metrics.PageMetrics;
+import com.michoelchaikin.hebrewbooks.metrics.Tracer;
 
 public class HebrewBooksUtils {
 	private static final String TAG = "HebrewBooksUtils";
@@ -21,49 +17,51 @@ public class HebrewBooksUtils {
     // If URL is already saved in cache folder, will locate it and return it. If not, will download and save to cache
 	
     public static File getFileFromCacheOrURL(File cacheDir, URL url) throws IOException {
-    	Log.i(TAG, "getFileFromCacheOrURL(): url = " + url.toExternalForm());
-    	
-    	String filename = url.getFile();
-		int lastSlashPos = filename.lastIndexOf('/');
-		String fileNameNoPath = new String(lastSlashPos == -1
-									? filename
-									: filename.substring(lastSlashPos+1));
-		
-    	File file = new File(cacheDir, fileNameNoPath);
+    	return getFileFromCacheOrURL(DiskCache.open(cacheDir), url);
+    }
+    
+    public static File getFileFromCacheOrURL(DiskCache cache, URL url) throws IOException {
+    	return getFileFromCacheOrURL(cache, url, null);
+    }
+    
+    // The same, downloading in the background with throttle if it is not null
+    
+    public static File getFileFromCacheOrURL(DiskCache cache, URL url, PageFetchClient.Throttle throttle) throws IOException {
+    	String fileNameNoPath = getFileName(url);
+    	File file = cache.get(fileNameNoPath);
     	
-    	if(file.exists()) {
+    	if(file != null) {
     		if(file.length() > 0) {
-	    		Log.i(TAG, "File exists in cache as: " + file.getAbsolutePath());
+	    		PageMetrics.count(PageMetrics.Counter.FILE_CACHE_HIT);
 	    		return file;
     		} else {
     			Log.i(TAG, "Deleting zero length file " + file.getAbsolutePath());
-    			file.delete();
+    			cache.remove(fileNameNoPath);
     		}
     	}
     	
-    	Log.i(TAG, "File " + file.getAbsolutePath() + " does not exists.");
-
-    	URLConnection ucon = url.openConnection();
-    	ucon.setReadTimeout(5000);
-    	ucon.setConnectTimeout(30000);
-
-    	InputStream is = ucon.getInputStream();
-    	BufferedInputStream inStream = new BufferedInputStream(is, 1024 * 5);
-    	FileOutputStream outStream = new FileOutputStream(file);
-    	byte[] buff = new byte[5 * 1024];
-
-    	// Read bytes (and store them) until there is nothing more to read(-1)
-    	int len;
-    	while ((len = inStream.read(buff)) != -1) {
-    		outStream.write(buff, 0, len);
-    	}
+    	file = cache.file(fileNameNoPath);
+    	
+    	PageMetrics.count(PageMetrics.Counter.FILE_CACHE_MISS);
 
-    	// Clean up
-    	outStream.flush();
-    	outStream.close();
-    	inStream.close();
+    	long start = System.nanoTime();
+    	PageFetchClient.getInstance().download(url, file, throttle);
+    	PageMetrics.record(PageMetrics.Stage.DOWNLOAD, start);
+    	Tracer.end("fetch", start);
+    	
+    	cache.put(fileNameNoPath);
     	return file;
     }
+    
+    // Name of the cache file for a URL, which is the last part of its path
+    
+    public static String getFileName(URL url) {
+    	String filename = url.getFile();
+		int lastSlashPos = filename.lastIndexOf('/');
+		return lastSlashPos == -1
+				? filename
+				: filename.substring(lastSlashPos+1);
+    }
 
     // Simple helper function to read a file into a string
     
@@ -79,29 +77,15 @@ public class HebrewBooksUtils {
 	    return sb.toString();
     }
     
-    // Decode a bitmap from a file in required size
+    // Largest sample size that still keeps the image at the required size in one dimension
     
-    public static Bitmap decodeBitmap(File file, int reqHeight, int reqWidth) {
-    	// Get image size of file
-		BitmapFactory.Options options = new BitmapFactory.Options();
-		options.inJustDecodeBounds = true;
-		BitmapFactory.decodeFile(file.getAbsolutePath(), options);
-		final int height = options.outHeight;
-		final int width = options.outWidth;
-
-		// Calculate sample size
+    public static int calculateSampleSize(int width, int height, int reqHeight, int reqWidth) {
 		if (height > reqHeight || width > reqWidth) {
 			final int heightRatio = Math.round((float) height / (float) reqHeight);
 			final int widthRatio = Math.round((float) width / (float) reqWidth);
-			options.inSampleSize = heightRatio < widthRatio ? heightRatio : widthRatio;
+			return Math.max(1, heightRatio < widthRatio ? heightRatio : widthRatio);
 		}
-
-		// Decode bitmap
-		options.inJustDecodeBounds = false;
-	    options.inPreferredConfig = Bitmap.Config.RGB_565;
-		options.inPurgeable = true;
-		options.inDither = false;
-		return BitmapFactory.decodeFile(file.getAbsolutePath(), options);
+		return 1;
     }
     
     // Parses a string using Integer.parseInt, but returns 0 in case of error instead of throwing exception
@@ -0,0 +1,169 @@
+package com.michoelchaikin.hebrewbooks.utils;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.jsoup.parser.Parser;
+
+/**
+ * Pulls the text of a few elements, found by id, and the source of the first image with a
+ * given prefix out of an HTML page in a single pass.
+ *
+ * The page is read a character at a time and only the tags and text being looked at are
+ * kept, so the long hidden form fields and the rest of the page are never held in memory.
+ * Reading stops as soon as everything has been found. Text is returned the way Jsoup's
+ * Element.text() would give it, with entities decoded and whitespace collapsed.
+ */
+public class HtmlMetadataExtractor {
+
+	// Longest tag kept. Anything after that, such as a view state value, is skipped
+	private static final int MAX_TAG = 1024;
+
+	// Longest element text kept
+	private static final int MAX_TEXT = 16 * 1024;
+
+	// Names are matched in any case, and lowercased the same way in every locale, so a
+	// Turkish one doesn't lowercase the I in IMG to a dotless i
+	private static final Pattern TAG_NAME = Pattern.compile("^/?([A-Za-z][A-Za-z0-9]*)");
+	private static final Pattern ID = Pattern.compile("\\sid\\s*=\\s*(?:\"([^\"]*)\"|'([^']*)'|([^\\s>]+))", Pattern.CASE_INSENSITIVE);
+	private static final Pattern SRC = Pattern.compile("\\ssrc\\s*=\\s*(?:\"([^\"]*)\"|'([^']*)'|([^\\s>]+))", Pattern.CASE_INSENSITIVE);
+	private static final Pattern WHITESPACE = Pattern.compile("[ \\t\\n\\f\\r]+");
+
+	private final Set<String> mIds;
+	private final String mImagePrefix;
+	private final Map<String, String> mText = new HashMap<String, String>();
+	private String mImageSource = null;
+
+	public HtmlMetadataExtractor(String[] ids, String imagePrefix) {
+		mIds = new HashSet<String>();
+		for(String id : ids) {
+			mIds.add(id);
+		}
+		mImagePrefix = imagePrefix;
+	}
+
+	// Reads the page until everything has been found. Returns whether it all was
+
+	public boolean extract(Reader in) throws IOException {
+		StringBuilder tag = new StringBuilder();
+
+		// The element whose text is being collected, if any
+		String element = null;
+		String elementId = null;
+		int depth = 0;
+		StringBuilder text = new StringBuilder();
+
+		int c;
+		while(! isComplete() && (c = in.read()) != -1) {
+			if(c != '<') {
+				if(element != null && text.length() < MAX_TEXT) text.append((char) c);
+				continue;
+			}
+
+			if(! readTag(in, tag)) continue;
+
+			Matcher name = TAG_NAME.matcher(tag);
+			if(! name.find()) continue;
+			String tagName = name.group(1).toLowerCase(Locale.US);
+			boolean closing = tag.charAt(0) == '/';
+
+			if(element != null) {
+				if(tagName.equals(element)) {
+					depth += closing ? -1 : 1;
+					if(depth == 0) {
+						mText.put(elementId, normalise(text));
+						element = null;
+					}
+				} else if(tagName.equals("br")) {
+					text.append(' ');
+				}
+				continue;
+			}
+
+			if(closing) continue;
+
+			if(mImageSource == null && tagName.equals("img")) {
+				String src = attribute(SRC, tag);
+				if(src != null && src.startsWith(mImagePrefix)) {
+					mImageSource = Parser.unescapeEntities(src, true);
+				}
+			}
+
+			String id = attribute(ID, tag);
+			if(id != null && mIds.contains(id) && ! mText.containsKey(id)) {
+				if(tag.charAt(tag.length() - 1) == '/') {
+					mText.put(id, "");
+				} else {
+					element = tagName;
+					elementId = id;
+					depth = 1;
+					text.setLength(0);
+				}
+			}
+		}
+
+		return isComplete();
+	}
+
+	// Element id to text, for the ids found
+
+	public Map<String, String> getText() {
+		return mText;
+	}
+
+	// Source of the first image with the prefix, or null if there was none
+
+	public String getImageSource() {
+		return mImageSource;
+	}
+
+	private boolean isComplete() {
+		return mImageSource != null && mText.size() == mIds.size();
+	}
+
+	// Reads the rest of a tag after its '<' into tag, without the brackets. Returns false
+	// for comments and declarations, which are skipped
+
+	private static boolean readTag(Reader in, StringBuilder tag) throws IOException {
+		tag.setLength(0);
+		int c;
+		while((c = in.read()) != -1 && c != '>') {
+			if(tag.length() < MAX_TAG) tag.append((char) c);
+			if(tag.length() == 3 && tag.charAt(0) == '!' && tag.charAt(1) == '-' && tag.charAt(2) == '-') {
+				skipComment(in);
+				return false;
+			}
+		}
+		return tag.length() > 0 && tag.charAt(0) != '!' && tag.charAt(0) != '?';
+	}
+
+	private static void skipComment(Reader in) throws IOException {
+		int dashes = 0;
+		int c;
+		while((c = in.read()) != -1) {
+			if(c == '>' && dashes >= 2) return;
+			dashes = c == '-' ? dashes + 1 : 0;
+		}
+	}
+
+	private static String attribute(Pattern pattern, CharSequence tag) {
+		Matcher matcher = pattern.matcher(tag);
+		if(! matcher.find()) return null;
+		for(int i = 1; i <= 3; i++) {
+			if(matcher.group(i) != null) return matcher.group(i);
+		}
+		return null;
+	}
+
+	private static String normalise(CharSequence text) {
+		String decoded = Parser.unescapeEntities(text.toString(), false);
+		return WHITESPACE.matcher(decoded).replaceAll(" ").trim();
+	}
+}
@@ -0,0 +1,80 @@
+package com.michoelchaikin.hebrewbooks.utils;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+
+/**
+ * Reads the pixel size of a JPEG or PNG file from its header, without decoding it or
+ * needing Android's BitmapFactory.
+ */
+public class ImageHeader {
+
+	private static final int PNG_SIGNATURE = 0x89504e47;
+
+	// Returns the width and height of an image, or null if they could not be read
+
+	public static int[] readSize(File file) {
+		try {
+			DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+			try {
+				int start = in.readUnsignedShort();
+				if(start == 0xffd8) return readJpegSize(in);
+				if(((start << 16) | in.readUnsignedShort()) == PNG_SIGNATURE) return readPngSize(in);
+				return null;
+			} finally {
+				in.close();
+			}
+		} catch (IOException e) {
+			return null;
+		}
+	}
+
+	// After the signature: the rest of the signature, then the IHDR chunk
+
+	private static int[] readPngSize(DataInputStream in) throws IOException {
+		in.readInt();
+		in.readInt();
+		if(in.readInt() != 0x49484452) return null;
+		return new int[] { in.readInt(), in.readInt() };
+	}
+
+	// After the SOI marker: segments up to the first start of frame
+
+	private static int[] readJpegSize(DataInputStream in) throws IOException {
+		while(true) {
+			int marker = in.readUnsignedByte();
+			if(marker != 0xff) return null;
+			while(marker == 0xff) {
+				marker = in.readUnsignedByte();
+			}
+
+			// Markers without a segment
+			if(marker == 0x01 || (marker >= 0xd0 && marker <= 0xd8)) continue;
+			if(marker == 0xd9) return null;
+
+			int length = in.readUnsignedShort();
+			boolean startOfFrame = marker >= 0xc0 && marker <= 0xcf
+					&& marker != 0xc4 && marker != 0xc8 && marker != 0xcc;
+			if(startOfFrame) {
+				in.readUnsignedByte();
+				int height = in.readUnsignedShort();
+				int width = in.readUnsignedShort();
+				return new int[] { width, height };
+			}
+
+			skipFully(in, length - 2);
+		}
+	}
+
+	private static void skipFully(DataInputStream in, int count) throws IOException {
+		while(count > 0) {
+			int skipped = in.skipBytes(count);
+			if(skipped <= 0) throw new EOFException();
+			count -= skipped;
+		}
+	}
+}
@@ -0,0 +1,82 @@
+package com.michoelchaikin.hebrewbooks.utils;
+
+import java.io.PrintStream;
+
+/**
+ * Logging for the page pipeline, with the same calls as android.util.Log.
+ *
+ * Messages go to a {@link Logger}: android.util.Log on a device, and standard error on a
+ * plain JVM, so the pipeline can run and be measured off the device. setLogger() replaces
+ * it, for example to silence logging in a benchmark.
+ */
+public final class Log {
+
+	// Same values as android.util.Log
+	public static final int INFO = 4;
+	public static final int WARN = 5;
+	public static final int ERROR = 6;
+
+	public interface Logger {
+		void log(int priority, String tag, String message);
+	}
+
+	private static volatile Logger sLogger = createDefaultLogger();
+
+	private Log() {
+	}
+
+	public static void setLogger(Logger logger) {
+		sLogger = logger;
+	}
+
+	public static void i(String tag, String message) {
+		sLogger.log(INFO, tag, message);
+	}
+
+	public static void w(String tag, String message) {
+		sLogger.log(WARN, tag, message);
+	}
+
+	public static void e(String tag, String message) {
+		sLogger.log(ERROR, tag, message);
+	}
+
+	private static Logger createDefaultLogger() {
+		return AndroidLogger.isAvailable() ? new AndroidLogger() : new StreamLogger(System.err);
+	}
+
+	// In a class of its own, so android.util.Log is only loaded when it is there
+
+	private static class AndroidLogger implements Logger {
+
+		static boolean isAvailable() {
+			try {
+				android.util.Log.isLoggable("Log", INFO);
+				return true;
+			} catch (Throwable t) {
+				// Not on a device, or only the stub android.jar
+				return false;
+			}
+		}
+
+		public void log(int priority, String tag, String message) {
+			android.util.Log.println(priority, tag, message);
+		}
+	}
+
+	public static class StreamLogger implements Logger {
+
+		private static final String LEVELS = "VVVVIWE";
+
+		private final PrintStream mOut;
+
+		public StreamLogger(PrintStream out) {
+			mOut = out;
+		}
+
+		public void log(int priority, String tag, String message) {
+			char level = priority >= 0 && priority < LEVELS.length() ? LEVELS.charAt(priority) : '?';
+			mOut.println(level + "/" + tag + ": " + message);
+		}
+	}
+}
@@ -5,22 +5,22 @@ import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 
-import android.util.Log;
-
+import com.itextpdf.text.io.RandomAccessSourceFactory;
 import com.itextpdf.text.pdf.PdfReader;
+import com.itextpdf.text.pdf.RandomAccessFileOrArray;
 import com.itextpdf.text.pdf.parser.ImageRenderInfo;
 import com.itextpdf.text.pdf.parser.PdfImageObject;
 import com.itextpdf.text.pdf.parser.PdfReaderContentParser;
 import com.itextpdf.text.pdf.parser.RenderListener;
 import com.itextpdf.text.pdf.parser.TextRenderInfo;
+import com.michoelchaikin.hebrewbooks.metrics.PageMetrics;
+import com.michoelchaikin.hebrewbooks.metrics.Tracer;
 
 public class PDFUtils {
 	private static final String TAG = "PDFUtils";
 	
 	// Expects a single page PDF with one image. Extracts the image, and returns the file with the image
 	public static File extractImage(final File pdf, final File dir)  {
-		Log.i(TAG, "extractImage(): PDF file " + pdf.getAbsolutePath());
-
 		// Prepare the output file	
 		
 		String infile = pdf.getName();
@@ -30,7 +30,6 @@ public class PDFUtils {
 		
 		if(output.exists()) {
 			if(output.length() > 0) {
-				Log.i(TAG, "extractImage(): image already exists " + output.getAbsolutePath() + ". Returning it");
 				return output;
 			} else {
 				Log.i(TAG, "extractImage(): deleting zero size file " + output.getAbsolutePath());
@@ -38,18 +37,63 @@ public class PDFUtils {
 			}
 		}
 				
-		// Open PDF
+		// Pagefeed PDFs are a single image, which can usually be copied straight out
+		
+		long start = System.nanoTime();
+		try {
+			if(PdfImageLocator.extract(pdf, output)) {
+				PageMetrics.record(PageMetrics.Stage.EXTRACT, start);
+				Tracer.end("copy image", start);
+				return output;
+			}
+		} catch (IOException e) {
+			Log.w(TAG, "extractImage(): Could not copy image out, parsing PDF " + e.getMessage());
+			output.delete();
+		}
 		
 		PdfReader reader;
 		try {
-			reader = new PdfReader(pdf.getAbsolutePath());
+			reader = open(pdf);
 		} catch (IOException e) {
 			Log.e(TAG, "extractImage(): Could not open PDF file " + e.getMessage());
 			return null;
+		} catch (OutOfMemoryError e) {
+			Log.e(TAG, "extractImage(): Out of memory opening PDF file " + e.getMessage());
+			return null;
+		}
+		
+		try {
+			extractImage(reader, 1, output);
+		} finally {
+			reader.close();
 		}
 		
-		// Parsing Code
+		Log.i(TAG, "extractImage(): parsed PDF in " + (System.nanoTime() - start) / 1000000 + " ms");
 		
+		// If everything went well the output file will exist, return it, otherwise return null to indicate error
+		
+		if(! output.exists()) return null;
+		PageMetrics.record(PageMetrics.Stage.EXTRACT, start);
+		Tracer.end("parse pdf", start);
+		return output;
+		
+	}
+
+	// Opens a PDF for reading a page at a time. The file is memory-mapped, and read partially
+	// so only the objects needed are loaded, rather than the whole file going into the heap.
+	// A reader is not thread safe, so each thread needs its own
+	
+	public static PdfReader open(File pdf) throws IOException {
+		RandomAccessFileOrArray source = new RandomAccessFileOrArray(
+				new RandomAccessSourceFactory().setForceRead(false).createBestSource(pdf.getAbsolutePath()));
+		return new PdfReader(source, null);
+	}
+	
+	// Writes the image on a page of an open PDF to output, returning whether there was one.
+	// The page's objects are released afterwards, so going through a whole book keeps only
+	// one page in memory
+	
+	public static boolean extractImage(PdfReader reader, int page, final File output) {
 		PdfReaderContentParser parser = new PdfReaderContentParser(reader);
 		RenderListener listener = new RenderListener () {
 			public void renderImage(ImageRenderInfo renderInfo) {
@@ -90,20 +134,16 @@ public class PDFUtils {
 			
 		};
 		
-		// Parse the PDF
+		// Parse the page
 		try {
-			parser.processContent(1, listener);
+			parser.processContent(page, listener);
 		} catch (IOException e) {
 			Log.e(TAG, "imageExtract(): Error tyring to parse PDF " + e.getMessage());
+		} finally {
+			reader.releasePage(page);
 		}
 		
-		
-		// If everything went well the output file will exist, return it, otherwise return null to indicate error
-		
-		return output.exists()
-			? output
-			: null;
-		
+		return output.exists();
 	}
 
 }
@@ -0,0 +1,384 @@
+package com.michoelchaikin.hebrewbooks.utils;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Semaphore;
+
+import com.michoelchaikin.hebrewbooks.cache.DiskCache;
+import com.michoelchaikin.hebrewbooks.metrics.PageMetrics;
+
+/**
+ * HTTP client shared by all downloads.
+ *
+ * Connections are kept alive and reused by HttpURLConnection's pool, which only happens
+ * when every response is read to the end and its stream closed, so this class always does
+ * that. The number of requests in flight to each host is limited, and copy buffers are
+ * shared between requests instead of allocated for each one.
+ *
+ * Downloads go to a ".part" file next to the destination, which is renamed into place only
+ * once its length matches what the server announced. A transfer that breaks off is resumed
+ * from the last byte received with an HTTP Range request, both straight away and the next
+ * time the same file is downloaded.
+ *
+ * Interrupting the thread cancels a transfer at its next read, with an
+ * InterruptedIOException. What was received so far stays in the ".part" file.
+ *
+ * Downloads given a {@link Throttle} are background downloads. They are told about each
+ * chunk they receive, so they can be slowed down, and are kept to one request per host
+ * fewer than the limit, so there is always a slot free for the page the reader is waiting for.
+ */
+public class PageFetchClient {
+
+	private static final String TAG = "PageFetchClient";
+
+	public static final int DEFAULT_MAX_REQUESTS_PER_HOST = 4;
+	public static final int DEFAULT_CONNECT_TIMEOUT = 30000;
+	public static final int DEFAULT_READ_TIMEOUT = 15000;
+
+	private static final int BUFFER_SIZE = 16 * 1024;
+	private static final int MAX_POOLED_BUFFERS = 8;
+
+	// Times a broken-off transfer is resumed before giving up
+	private static final int MAX_RESUMES = 3;
+
+	private static final String PART_SUFFIX = DiskCache.SCRATCH_SUFFIX;
+	private static final int HTTP_RANGE_NOT_SATISFIABLE = 416;
+
+	private static PageFetchClient sInstance;
+
+	private final Map<String, Semaphore> mHostPermits = new HashMap<String, Semaphore>();
+	private final Map<String, Semaphore> mBackgroundPermits = new HashMap<String, Semaphore>();
+	private final BlockingQueue<byte[]> mBuffers = new ArrayBlockingQueue<byte[]>(MAX_POOLED_BUFFERS);
+
+	private int mMaxRequestsPerHost = DEFAULT_MAX_REQUESTS_PER_HOST;
+	private volatile int mConnectTimeout = DEFAULT_CONNECT_TIMEOUT;
+	private volatile int mReadTimeout = DEFAULT_READ_TIMEOUT;
+
+	public static synchronized PageFetchClient getInstance() {
+		if(sInstance == null) {
+			sInstance = new PageFetchClient();
+		}
+		return sInstance;
+	}
+
+	private PageFetchClient() {
+		// Keep as many idle connections as we can have requests in flight
+		System.setProperty("http.keepAlive", "true");
+		System.setProperty("http.maxConnections", Integer.toString(DEFAULT_MAX_REQUESTS_PER_HOST));
+	}
+
+	// Takes effect for hosts that have not been used yet
+
+	public synchronized void setMaxRequestsPerHost(int maxRequests) {
+		mMaxRequestsPerHost = maxRequests;
+		mHostPermits.clear();
+		mBackgroundPermits.clear();
+	}
+
+	public void setConnectTimeout(int millis) {
+		mConnectTimeout = millis;
+	}
+
+	public void setReadTimeout(int millis) {
+		mReadTimeout = millis;
+	}
+
+	// Slows down a background download, see download(URL, File, Throttle)
+
+	public interface Throttle {
+		// Called with each chunk received, and may block to hold the transfer back
+		void onReceived(int bytes) throws InterruptedIOException;
+	}
+
+	// Downloads a URL into a file, waiting for a free request slot for its host first.
+	// The file only appears once it has been downloaded completely
+
+	public void download(URL url, File file) throws IOException {
+		download(url, file, null);
+	}
+
+	// The same, as a background download if throttle is not null
+
+	public void download(URL url, File file, Throttle throttle) throws IOException {
+		Semaphore background = null;
+		if(throttle != null) {
+			background = backgroundPermitsFor(url.getHost());
+			acquire(background, url);
+		}
+
+		Semaphore permits = permitsFor(url.getHost());
+		try {
+			acquire(permits, url);
+		} catch (IOException e) {
+			if(background != null) background.release();
+			throw e;
+		}
+
+		try {
+			File part = getPartFile(file);
+			int resumes = 0;
+			while(true) {
+				try {
+					if(transfer(url, part, throttle)) break;
+					Log.w(TAG, "download(): " + url + " ended early at " + part.length() + " bytes");
+				} catch (IOException e) {
+					if(Thread.currentThread().isInterrupted() || part.length() == 0 || resumes >= MAX_RESUMES) throw e;
+					Log.w(TAG, "download(): " + url + " broke off at " + part.length() + " bytes: " + e.getMessage());
+				}
+				if(++resumes > MAX_RESUMES) {
+					throw new IOException("Incomplete download of " + url);
+				}
+			}
+
+			if(file.exists()) file.delete();
+			if(! part.renameTo(file)) {
+				throw new IOException("Could not move " + part + " into place");
+			}
+		} finally {
+			permits.release();
+			if(background != null) background.release();
+		}
+	}
+
+	private static void acquire(Semaphore permits, URL url) throws InterruptedIOException {
+		try {
+			permits.acquire();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted waiting to download " + url);
+		}
+	}
+
+	// Receives a response body as it arrives, see stream()
+
+	public interface StreamHandler {
+		// contentLength is -1 if the server did not give one
+		void onResponse(InputStream in, long contentLength) throws IOException;
+	}
+
+	// Fetches a URL and hands its body to handler without saving it anywhere. Whatever the
+	// handler leaves unread is read to the end, so the connection can be reused
+
+	public void stream(URL url, StreamHandler handler) throws IOException {
+		Semaphore permits = permitsFor(url.getHost());
+		try {
+			permits.acquire();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted waiting to fetch " + url);
+		}
+
+		try {
+			HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+			connection.setConnectTimeout(mConnectTimeout);
+			connection.setReadTimeout(mReadTimeout);
+
+			int code = connection.getResponseCode();
+			if(code != HttpURLConnection.HTTP_OK) {
+				discard(connection.getErrorStream());
+				throw new IOException("HTTP " + code + " fetching " + url);
+			}
+
+			InputStream in = connection.getInputStream();
+			CountingInputStream counted = new CountingInputStream(in);
+			try {
+				handler.onResponse(counted, parseLength(connection.getHeaderField("Content-Length")));
+			} finally {
+				PageMetrics.add(PageMetrics.Counter.BYTES_DOWNLOADED, counted.mCount);
+				discard(in);
+			}
+		} finally {
+			permits.release();
+		}
+	}
+
+	// The file a download into file is written to until it is complete. A partial file
+	// left here is resumed by the next download()
+
+	public static File getPartFile(File file) {
+		return new File(file.getPath() + PART_SUFFIX);
+	}
+
+	// Downloads into the part file, continuing from its current length. Returns whether the
+	// part file is now complete
+
+	private boolean transfer(URL url, File part, Throttle throttle) throws IOException {
+		long offset = part.exists() ? part.length() : 0;
+
+		HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+		connection.setConnectTimeout(mConnectTimeout);
+		connection.setReadTimeout(mReadTimeout);
+		if(offset > 0) {
+			Log.i(TAG, "transfer(): resuming " + url + " from byte " + offset);
+			connection.setRequestProperty("Range", "bytes=" + offset + "-");
+		}
+
+		int code = connection.getResponseCode();
+		long total;
+		if(code == HttpURLConnection.HTTP_PARTIAL && offset > 0) {
+			String range = connection.getHeaderField("Content-Range");
+			if(range == null || ! range.startsWith("bytes " + offset + "-")) {
+				// Not the range we asked for, start again next time
+				Log.w(TAG, "transfer(): unexpected Content-Range " + range);
+				discard(connection.getInputStream());
+				part.delete();
+				return false;
+			}
+			int slash = range.indexOf('/');
+			total = slash == -1 ? -1 : parseLength(range.substring(slash + 1));
+		} else if(code == HttpURLConnection.HTTP_OK) {
+			// Server ignored the range, start again
+			offset = 0;
+			total = parseLength(connection.getHeaderField("Content-Length"));
+		} else if(code == HTTP_RANGE_NOT_SATISFIABLE) {
+			// The part file is no good for this resource, start again next time
+			discard(connection.getErrorStream());
+			part.delete();
+			return false;
+		} else {
+			discard(connection.getErrorStream());
+			throw new IOException("HTTP " + code + " downloading " + url);
+		}
+
+		InputStream in = connection.getInputStream();
+		OutputStream out = null;
+		byte[] buffer = acquireBuffer();
+		long received = 0;
+		try {
+			out = new FileOutputStream(part, offset > 0);
+			int len;
+			while((len = in.read(buffer)) != -1) {
+				out.write(buffer, 0, len);
+				received += len;
+				checkCancelled();
+				if(throttle != null) throttle.onReceived(len);
+			}
+		} finally {
+			PageMetrics.add(PageMetrics.Counter.BYTES_DOWNLOADED, received);
+			releaseBuffer(buffer);
+			in.close();
+			if(out != null) out.close();
+		}
+
+		// Without a length to check against, a clean end of stream is all we have
+		return total < 0 || part.length() == total;
+	}
+
+	// Stops a transfer whose thread has been interrupted
+
+	private static void checkCancelled() throws InterruptedIOException {
+		if(Thread.currentThread().isInterrupted()) {
+			throw new InterruptedIOException("Transfer cancelled");
+		}
+	}
+
+	// Content-Length, or -1 if not given
+
+	private static long parseLength(String value) {
+		if(value == null) return -1;
+		try {
+			return Long.parseLong(value.trim());
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+
+	private synchronized Semaphore permitsFor(String host) {
+		Semaphore permits = mHostPermits.get(host);
+		if(permits == null) {
+			permits = new Semaphore(mMaxRequestsPerHost);
+			mHostPermits.put(host, permits);
+		}
+		return permits;
+	}
+
+	private synchronized Semaphore backgroundPermitsFor(String host) {
+		Semaphore permits = mBackgroundPermits.get(host);
+		if(permits == null) {
+			permits = new Semaphore(Math.max(1, mMaxRequestsPerHost - 1));
+			mBackgroundPermits.put(host, permits);
+		}
+		return permits;
+	}
+
+	byte[] acquireBuffer() {
+		byte[] buffer = mBuffers.poll();
+		return buffer != null ? buffer : new byte[BUFFER_SIZE];
+	}
+
+	void releaseBuffer(byte[] buffer) {
+		mBuffers.offer(buffer);
+	}
+
+	// Reads a response body to the end, so the connection can go back to the pool. A
+	// cancelled transfer is just closed, the rest of it is not worth waiting for
+
+	private void discard(InputStream in) {
+		if(in == null) return;
+		byte[] buffer = acquireBuffer();
+		long received = 0;
+		try {
+			int len;
+			while(! Thread.currentThread().isInterrupted() && (len = in.read(buffer)) != -1) {
+				received += len;
+			}
+		} catch (IOException e) {
+			Log.w(TAG, "Error discarding response: " + e.getMessage());
+		} finally {
+			PageMetrics.add(PageMetrics.Counter.BYTES_DOWNLOADED, received);
+			releaseBuffer(buffer);
+			try {
+				in.close();
+			} catch (IOException e) {
+				// Ignore
+			}
+		}
+	}
+
+	// Counts the bytes a stream handler reads, for the download counter, and stops the
+	// handler when the transfer is cancelled. Only used by one thread, so the count is a
+	// plain field
+
+	private static class CountingInputStream extends FilterInputStream {
+
+		long mCount = 0;
+
+		CountingInputStream(InputStream in) {
+			super(in);
+		}
+
+		@Override
+		public int read() throws IOException {
+			checkCancelled();
+			int b = super.read();
+			if(b != -1) mCount++;
+			return b;
+		}
+
+		@Override
+		public int read(byte[] buffer, int offset, int length) throws IOException {
+			checkCancelled();
+			int len = super.read(buffer, offset, length);
+			if(len > 0) mCount += len;
+			return len;
+		}
+
+		@Override
+		public long skip(long n) throws IOException {
+			long skipped = super.skip(n);
+			if(skipped > 0) mCount += skipped;
+			return skipped;
+		}
+	}
+}
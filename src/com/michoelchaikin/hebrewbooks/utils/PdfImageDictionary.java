@@ -0,0 +1,245 @@
+package com.michoelchaikin.hebrewbooks.utils;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.CRC32;
+
+/**
+ * The few entries of a PDF image XObject dictionary needed to copy its stream out as an
+ * image file without decoding it.
+ *
+ * A DCTDecode stream is a JPEG file as it is. A FlateDecode stream with a PNG predictor is
+ * already the compressed data of a PNG, so it only needs PNG chunks around it. Anything
+ * else (CCITT, JPX, palettes, masks, decode arrays and so on) is not supported and has to
+ * go through iText.
+ */
+class PdfImageDictionary {
+
+	private static final Pattern IMAGE = Pattern.compile("/Subtype\\s*/Image\\b");
+	private static final Pattern LENGTH = Pattern.compile("/Length\\s+(\\d+)(\\s+\\d+\\s+R)?");
+	// A single filter, either as a name or as an array of one name
+	private static final Pattern FILTER = Pattern.compile("/Filter\\s*(?:/(\\w+)|\\[\\s*/(\\w+)\\s*\\])");
+	private static final Pattern WIDTH = Pattern.compile("/Width\\s+(\\d+)");
+	private static final Pattern HEIGHT = Pattern.compile("/Height\\s+(\\d+)");
+	private static final Pattern BITS = Pattern.compile("/BitsPerComponent\\s+(\\d+)");
+	private static final Pattern COLOR_SPACE = Pattern.compile("/ColorSpace\\s*/(DeviceGray|DeviceRGB)\\b");
+	private static final Pattern PREDICTOR = Pattern.compile("/Predictor\\s+(\\d+)");
+	private static final Pattern COLORS = Pattern.compile("/Colors\\s+(\\d+)");
+	private static final Pattern COLUMNS = Pattern.compile("/Columns\\s+(\\d+)");
+	private static final Pattern UNSUPPORTED = Pattern.compile("/ImageMask\\s+true|/Decode\\s*\\[|/SMask\\b|/Mask\\b");
+
+	private static final byte[] PNG_SIGNATURE = { (byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1a, '\n' };
+	private static final int PNG_GRAY = 0;
+	private static final int PNG_RGB = 2;
+
+	static final int DCT = 1;
+	static final int FLATE_PNG = 2;
+
+	private final int mFormat;
+	private final long mLength;
+	private final int mWidth;
+	private final int mHeight;
+	private final int mBits;
+	private final int mColors;
+
+	private PdfImageDictionary(int format, long length, int width, int height, int bits, int colors) {
+		mFormat = format;
+		mLength = length;
+		mWidth = width;
+		mHeight = height;
+		mBits = bits;
+		mColors = colors;
+	}
+
+	// Whether the dictionary text is that of an image XObject
+
+	static boolean isImage(CharSequence dictionary) {
+		return IMAGE.matcher(dictionary).find();
+	}
+
+	// Parses an image dictionary, returning null if its stream can't be copied out directly.
+	// The stream length must be a direct number, as an indirect one can't be resolved here
+
+	static PdfImageDictionary parse(CharSequence dictionary) {
+		Matcher length = LENGTH.matcher(dictionary);
+		if(! length.find() || length.group(2) != null) return null;
+		return parse(dictionary, Long.parseLong(length.group(1)));
+	}
+
+	// Parses an image dictionary whose stream length is already known
+
+	static PdfImageDictionary parse(CharSequence dictionary, long length) {
+		if(! isImage(dictionary) || UNSUPPORTED.matcher(dictionary).find()) return null;
+
+		// No filter, or a chain of filters, won't match
+		Matcher filter = FILTER.matcher(dictionary);
+		if(! filter.find()) return null;
+		String filterName = filter.group(1) != null ? filter.group(1) : filter.group(2);
+
+		if("DCTDecode".equals(filterName)) {
+			return new PdfImageDictionary(DCT, length, 0, 0, 0, 0);
+		}
+
+		if(! "FlateDecode".equals(filterName)) return null;
+
+		int width = find(WIDTH, dictionary);
+		int height = find(HEIGHT, dictionary);
+		int bits = find(BITS, dictionary);
+		Matcher colorSpace = COLOR_SPACE.matcher(dictionary);
+		if(width <= 0 || height <= 0 || ! colorSpace.find()) return null;
+		int colors = "DeviceRGB".equals(colorSpace.group(1)) ? 3 : 1;
+
+		// PNG predictors are PNG row filters, so the data is laid out as PNG expects.
+		// Predictor 10 and up, with the row layout matching the image
+		if(find(PREDICTOR, dictionary) < 10) return null;
+		int parmColors = find(COLORS, dictionary);
+		int columns = find(COLUMNS, dictionary);
+		if((parmColors > 0 && parmColors != colors) || (columns > 0 && columns != width)) return null;
+		if(colors == 3 ? bits != 8 : (bits != 1 && bits != 2 && bits != 4 && bits != 8)) return null;
+
+		return new PdfImageDictionary(FLATE_PNG, length, width, height, bits, colors);
+	}
+
+	// Skips the data of any stream whose dictionary gives a direct length. Otherwise the
+	// data is left to be scanned
+
+	static void skipStream(CharSequence dictionary, InputStream in) throws IOException {
+		Matcher length = LENGTH.matcher(dictionary);
+		if(! length.find() || length.group(2) != null) return;
+		long remaining = Long.parseLong(length.group(1));
+		while(remaining > 0) {
+			long skipped = in.skip(remaining);
+			if(skipped <= 0) return;
+			remaining -= skipped;
+		}
+	}
+
+	// Index just past the ">>" closing the dictionary that opens at start, or -1
+
+	static int dictionaryEnd(CharSequence text, int start) {
+		if(start < 0) return -1;
+		int depth = 0;
+		for(int i = start; i < text.length() - 1; i++) {
+			if(text.charAt(i) == '<' && text.charAt(i + 1) == '<') {
+				depth++;
+				i++;
+			} else if(text.charAt(i) == '>' && text.charAt(i + 1) == '>') {
+				if(--depth == 0) return i + 2;
+				i++;
+			}
+		}
+		return -1;
+	}
+
+	// Object number of the stream length if it is an indirect reference, otherwise -1
+
+	static int lengthReference(CharSequence dictionary) {
+		Matcher length = LENGTH.matcher(dictionary);
+		if(! length.find() || length.group(2) == null) return -1;
+		return Integer.parseInt(length.group(1));
+	}
+
+	int getFormat() {
+		return mFormat;
+	}
+
+	long getLength() {
+		return mLength;
+	}
+
+	// Copies the image stream of getLength() bytes from in, writing it out as an image file
+
+	void writeImage(InputStream in, OutputStream out, byte[] buffer) throws IOException {
+		if(mFormat == DCT) {
+			copy(in, out, mLength, buffer);
+			return;
+		}
+
+		out.write(PNG_SIGNATURE);
+
+		byte[] header = new byte[13];
+		putInt(header, 0, mWidth);
+		putInt(header, 4, mHeight);
+		header[8] = (byte) mBits;
+		header[9] = (byte) (mColors == 3 ? PNG_RGB : PNG_GRAY);
+		// Compression, filter and interlace methods are all 0
+		writeChunk(out, "IHDR", header, header.length);
+
+		long remaining = mLength;
+		while(remaining > 0) {
+			int len = in.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+			if(len == -1) throw new IOException("Image stream ended " + remaining + " bytes early");
+			writeChunk(out, "IDAT", buffer, len);
+			remaining -= len;
+		}
+
+		writeChunk(out, "IEND", buffer, 0);
+	}
+
+	// Writes the image to a file, which only appears once it is complete
+
+	void writeImage(InputStream in, File output, byte[] buffer) throws IOException {
+		File tmp = new File(output.getPath() + ".tmp");
+		OutputStream out = new BufferedOutputStream(new FileOutputStream(tmp), buffer.length);
+		boolean written = false;
+		try {
+			writeImage(in, out, buffer);
+			written = true;
+		} finally {
+			out.close();
+			if(! written) tmp.delete();
+		}
+
+		if(output.exists()) output.delete();
+		if(! tmp.renameTo(output)) {
+			tmp.delete();
+			throw new IOException("Could not move " + tmp + " into place");
+		}
+	}
+
+	private static void copy(InputStream in, OutputStream out, long length, byte[] buffer) throws IOException {
+		long remaining = length;
+		while(remaining > 0) {
+			int len = in.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+			if(len == -1) throw new IOException("Image stream ended " + remaining + " bytes early");
+			out.write(buffer, 0, len);
+			remaining -= len;
+		}
+	}
+
+	private static void writeChunk(OutputStream out, String type, byte[] data, int len) throws IOException {
+		byte[] head = new byte[8];
+		putInt(head, 0, len);
+		for(int i = 0; i < 4; i++) {
+			head[4 + i] = (byte) type.charAt(i);
+		}
+
+		CRC32 crc = new CRC32();
+		crc.update(head, 4, 4);
+		crc.update(data, 0, len);
+		byte[] tail = new byte[4];
+		putInt(tail, 0, (int) crc.getValue());
+
+		out.write(head);
+		out.write(data, 0, len);
+		out.write(tail);
+	}
+
+	private static void putInt(byte[] bytes, int offset, int value) {
+		bytes[offset] = (byte) (value >>> 24);
+		bytes[offset + 1] = (byte) (value >>> 16);
+		bytes[offset + 2] = (byte) (value >>> 8);
+		bytes[offset + 3] = (byte) value;
+	}
+
+	private static int find(Pattern pattern, CharSequence dictionary) {
+		Matcher matcher = pattern.matcher(dictionary);
+		return matcher.find() ? Integer.parseInt(matcher.group(1)) : -1;
+	}
+}
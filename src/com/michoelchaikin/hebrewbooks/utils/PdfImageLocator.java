@@ -0,0 +1,206 @@
+package com.michoelchaikin.hebrewbooks.utils;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Finds the image of a single page PDF through its cross-reference table and copies the
+ * image stream out, without building iText's object model or decoding the image.
+ *
+ * The file is memory-mapped rather than read into the heap, so memory use doesn't grow with
+ * the size of the page scan. Only the file's tail, its xref table and the start of each
+ * object are touched before the image is copied out. PDFs using
+ * cross-reference streams or object streams, and images PdfImageDictionary can't copy out,
+ * are left to iText.
+ */
+class PdfImageLocator {
+
+	private static final String TAG = "PdfImageLocator";
+
+	private static final int BUFFER_SIZE = 16 * 1024;
+
+	// Bytes read from the end of the file to find startxref
+	private static final int TAIL_SIZE = 1024;
+
+	// Bytes read at the start of an object to find its dictionary
+	private static final int OBJECT_HEAD_SIZE = 4096;
+
+	// Largest xref section read, far more than a page PDF needs
+	private static final int MAX_XREF_SIZE = 256 * 1024;
+
+	private static final Pattern STARTXREF = Pattern.compile("startxref\\s+(\\d+)");
+	private static final Pattern SUBSECTION = Pattern.compile("\\G\\s*(\\d+)\\s+(\\d+)");
+	private static final Pattern ENTRY = Pattern.compile("\\G\\s*(\\d{10})\\s+(\\d{5})\\s+([nf])");
+	private static final Pattern TRAILER = Pattern.compile("\\G\\s*trailer");
+	private static final Pattern PREV = Pattern.compile("/Prev\\s+(\\d+)");
+	private static final Pattern OBJECT = Pattern.compile("^\\s*(\\d+)\\s+(\\d+)\\s+obj");
+	private static final Pattern INTEGER = Pattern.compile("\\s*(\\d+)");
+
+	private final ByteBuffer mData;
+
+	// Object number to file offset of every object in use
+	private final Map<Integer, Long> mOffsets = new HashMap<Integer, Long>();
+
+	private PdfImageLocator(ByteBuffer data) {
+		mData = data;
+	}
+
+	// Copies the image of a PDF into output. Returns false if the PDF has to go through
+	// iText instead
+
+	static boolean extract(File pdf, File output) throws IOException {
+		RandomAccessFile file = new RandomAccessFile(pdf, "r");
+		MappedByteBuffer data;
+		try {
+			// The mapping stays valid after the file is closed
+			data = file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, file.length());
+		} finally {
+			file.close();
+		}
+		return new PdfImageLocator(data).extract(output);
+	}
+
+	private boolean extract(File output) throws IOException {
+		if(! readXref()) {
+			Log.i(TAG, "extract(): no usable cross-reference table");
+			return false;
+		}
+
+		for(Map.Entry<Integer, Long> object : mOffsets.entrySet()) {
+			long offset = object.getValue();
+			String head = read(offset, OBJECT_HEAD_SIZE);
+			if(! head.contains("/Image")) continue;
+
+			int start = head.indexOf("<<");
+			int end = PdfImageDictionary.dictionaryEnd(head, start);
+			if(start == -1 || end == -1) continue;
+			String dictionary = head.substring(start, end);
+			if(! PdfImageDictionary.isImage(dictionary)) continue;
+
+			long dataOffset = streamData(head, end);
+			if(dataOffset == -1) return false;
+
+			PdfImageDictionary image;
+			int lengthObject = PdfImageDictionary.lengthReference(dictionary);
+			if(lengthObject == -1) {
+				image = PdfImageDictionary.parse(dictionary);
+			} else {
+				long length = readInteger(lengthObject);
+				image = length < 0 ? null : PdfImageDictionary.parse(dictionary, length);
+			}
+
+			if(image == null) {
+				Log.i(TAG, "extract(): image can't be copied out directly: " + dictionary);
+				return false;
+			}
+
+			ByteBuffer data = mData.duplicate();
+			data.position((int) (offset + dataOffset));
+			image.writeImage(new ByteBufferInputStream(data), output, new byte[BUFFER_SIZE]);
+			return true;
+		}
+
+		Log.i(TAG, "extract(): no image found");
+		return false;
+	}
+
+	// Reads the xref table and the sections it updates. Returns false if there is none
+	// we can read
+
+	private boolean readXref() throws IOException {
+		long length = mData.capacity();
+		int tailSize = (int) Math.min(length, TAIL_SIZE);
+		String tail = read(length - tailSize, tailSize);
+		Matcher startxref = STARTXREF.matcher(tail);
+		long xref = -1;
+		while(startxref.find()) {
+			xref = Long.parseLong(startxref.group(1));
+		}
+
+		// Sections read later are older, so entries already seen win
+		int sections = 0;
+		while(xref >= 0 && xref < length) {
+			if(++sections > 32) return false;
+			xref = readXrefSection(xref);
+			if(xref == -2) return false;
+		}
+		return ! mOffsets.isEmpty();
+	}
+
+	// Reads one xref section, returning the offset of the previous one, -1 if there is none,
+	// or -2 if the section is not a table we can read
+
+	private long readXrefSection(long offset) throws IOException {
+		String text = read(offset, MAX_XREF_SIZE);
+		String trimmed = text.trim();
+		if(! trimmed.startsWith("xref")) return -2;
+
+		int position = text.indexOf("xref") + 4;
+		Matcher subsection = SUBSECTION.matcher(text);
+		Matcher entry = ENTRY.matcher(text);
+		Matcher trailer = TRAILER.matcher(text);
+		while(true) {
+			if(trailer.find(position)) {
+				Matcher prev = PREV.matcher(text.substring(trailer.end()));
+				return prev.find() ? Long.parseLong(prev.group(1)) : -1;
+			}
+			if(! subsection.find(position)) return -2;
+			int first = Integer.parseInt(subsection.group(1));
+			int count = Integer.parseInt(subsection.group(2));
+			position = subsection.end();
+
+			for(int i = 0; i < count; i++) {
+				if(! entry.find(position)) return -2;
+				position = entry.end();
+				Integer number = first + i;
+				if("n".equals(entry.group(3)) && ! mOffsets.containsKey(number)) {
+					mOffsets.put(number, Long.parseLong(entry.group(1)));
+				}
+			}
+		}
+	}
+
+	// Offset of the stream data following the dictionary that ends at dictionaryEnd, or -1
+
+	private static long streamData(String head, int dictionaryEnd) {
+		int keyword = head.indexOf("stream", dictionaryEnd);
+		if(keyword == -1 || head.substring(dictionaryEnd, keyword).trim().length() > 0) return -1;
+		int data = keyword + "stream".length();
+		if(data < head.length() && head.charAt(data) == '\r') data++;
+		if(data >= head.length() || head.charAt(data) != '\n') return -1;
+		return data + 1;
+	}
+
+	// Value of an object that is just an integer, such as an indirect stream length, or -1
+
+	private long readInteger(int number) throws IOException {
+		Long offset = mOffsets.get(number);
+		if(offset == null) return -1;
+		String head = read(offset, 64);
+		Matcher object = OBJECT.matcher(head);
+		if(! object.find()) return -1;
+		Matcher value = INTEGER.matcher(head);
+		if(! value.find(object.end())) return -1;
+		return Long.parseLong(value.group(1));
+	}
+
+	// Reads up to size bytes at offset as Latin-1 text, which keeps one char per byte
+
+	private String read(long offset, int size) throws IOException {
+		if(offset < 0 || offset >= mData.capacity()) return "";
+		size = (int) Math.min(size, mData.capacity() - offset);
+		byte[] bytes = new byte[size];
+		ByteBuffer data = mData.duplicate();
+		data.position((int) offset);
+		data.get(bytes);
+		return new String(bytes, "ISO-8859-1");
+	}
+}
@@ -0,0 +1,258 @@
+package com.michoelchaikin.hebrewbooks.utils;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Extracts the page image from a single page PDF while it is still downloading.
+ *
+ * The PDF is scanned as it arrives, and as soon as the image XObject's stream starts, its
+ * bytes are copied straight into the image file, so the PDF is never written to disk. The
+ * bytes read up to then are kept, so that when the image can't be copied out directly the
+ * PDF can still be saved with savePdf() and handed to iText, and a broken-off transfer
+ * can be resumed. They are kept in memory while there are few of them, as there are in
+ * front of a page's image, and past that in the PDF's ".part" file.
+ */
+public class StreamingImageExtractor {
+
+	private static final String TAG = "StreamingImageExtractor";
+
+	private static final int BUFFER_SIZE = 16 * 1024;
+
+	// Text kept while looking for the dictionary in front of a stream
+	private static final int MAX_DICTIONARY = 8 * 1024;
+
+	// Bytes of the PDF kept in memory before they go to the part file instead
+	private static final int MAX_IN_MEMORY = 256 * 1024;
+
+	private final long mExpectedLength;
+	private final File mPartFile;
+	private long mBytesWritten = 0;
+
+	// The PDF read so far, in memory until it outgrows it and then in the part file. Null
+	// once the image is found, as the PDF is no longer needed
+	private ByteArrayOutputStream mPdf;
+	private OutputStream mPart;
+	private long mLength = 0;
+	private boolean mCopying = true;
+
+	// Whether the PDF was read to its end, rather than broken off by an error
+	private boolean mEnded = false;
+
+	// expectedLength is the Content-Length of the PDF, or -1 if not known. partFile is where
+	// the PDF goes if it gets too big to keep in memory
+
+	public StreamingImageExtractor(long expectedLength, File partFile) {
+		mExpectedLength = expectedLength;
+		mPartFile = partFile;
+		mPdf = new ByteArrayOutputStream(expectedLength > 0 ? (int) Math.min(expectedLength, BUFFER_SIZE) : BUFFER_SIZE);
+	}
+
+	// Reads the PDF from in, writing its image to output. Returns false if the image could
+	// not be copied out, in which case the whole PDF has been read and can be saved
+
+	public boolean extract(InputStream in, File output) throws IOException {
+		TeeInputStream pdf = new TeeInputStream(new BufferedInputStream(in, BUFFER_SIZE));
+		StringBuilder text = new StringBuilder();
+
+		int b;
+		while((b = pdf.read()) != -1) {
+			text.append((char) b);
+			if(text.length() > MAX_DICTIONARY) {
+				text.delete(0, text.length() - MAX_DICTIONARY / 2);
+			}
+
+			if(b != 'm' || ! endsWith(text, "stream") || endsWith(text, "endstream")) continue;
+
+			// The stream data starts after the end of line following the keyword
+			int c = pdf.read();
+			if(c == '\r') c = pdf.read();
+			if(c != '\n') {
+				if(c == -1) break;
+				text.append((char) c);
+				continue;
+			}
+
+			CharSequence dictionary = lastDictionary(text);
+			text.setLength(0);
+			if(dictionary == null) continue;
+
+			if(PdfImageDictionary.isImage(dictionary)) {
+				PdfImageDictionary image = PdfImageDictionary.parse(dictionary);
+				if(image != null) {
+					// What was kept is a start for a resumed transfer if the image breaks off,
+					// but the image itself needn't be kept
+					mCopying = false;
+					image.writeImage(pdf, output, new byte[BUFFER_SIZE]);
+					discard();
+					mBytesWritten += output.length();
+					return true;
+				}
+				Log.i(TAG, "extract(): image can't be copied out directly: " + dictionary);
+				break;
+			}
+
+			// Skip over other streams when we know how long they are
+			PdfImageDictionary.skipStream(dictionary, pdf);
+		}
+
+		// Keep all of the PDF for the fallback
+		byte[] buffer = new byte[BUFFER_SIZE];
+		while(pdf.read(buffer) != -1) {
+			// Nothing to do, the tee keeps it
+		}
+		mEnded = true;
+		return false;
+	}
+
+	// Whether the PDF kept is all of it: it was read to its end, with the length the server
+	// announced if there was one
+
+	public boolean isComplete() {
+		return mCopying && mEnded && (mExpectedLength < 0 || mLength == mExpectedLength);
+	}
+
+	// Saves the PDF kept as file, which may be the part file. If the image was found it is
+	// the PDF up to the image, and only good for resuming from
+
+	public void savePdf(File file) throws IOException {
+		if(mPart != null) {
+			mPart.close();
+			mPart = null;
+			if(! file.equals(mPartFile) && ! mPartFile.renameTo(file)) {
+				throw new IOException("Could not rename " + mPartFile + " to " + file);
+			}
+			return;
+		}
+
+		if(mPdf == null) return;
+
+		// Written beside it first, so a PDF cut short by a failed write never takes its place
+		File tmp = new File(file.getPath() + ".tmp");
+		OutputStream out = new FileOutputStream(tmp);
+		boolean written = false;
+		try {
+			mPdf.writeTo(out);
+			written = true;
+		} finally {
+			out.close();
+			if(! written) tmp.delete();
+		}
+		mBytesWritten += mPdf.size();
+
+		if(file.exists()) file.delete();
+		if(! tmp.renameTo(file)) {
+			tmp.delete();
+			throw new IOException("Could not move " + tmp + " into place");
+		}
+	}
+
+	// Bytes written to disk for this page
+
+	public long getBytesWritten() {
+		return mBytesWritten;
+	}
+
+	// The dictionary right in front of the stream keyword at the end of text, or null
+
+	private static CharSequence lastDictionary(StringBuilder text) {
+		int end = text.lastIndexOf(">>");
+		if(end == -1) return null;
+
+		int depth = 0;
+		for(int i = end + 1; i > 0; i--) {
+			if(text.charAt(i) == '>' && text.charAt(i - 1) == '>') {
+				depth++;
+				i--;
+			} else if(text.charAt(i) == '<' && text.charAt(i - 1) == '<') {
+				if(--depth == 0) return text.subSequence(i - 1, end + 2);
+				i--;
+			}
+		}
+		return null;
+	}
+
+	private static boolean endsWith(StringBuilder text, String suffix) {
+		int start = text.length() - suffix.length();
+		if(start < 0) return false;
+		for(int i = 0; i < suffix.length(); i++) {
+			if(text.charAt(start + i) != suffix.charAt(i)) return false;
+		}
+		return true;
+	}
+
+	// Keeps bytes read, moving what is in memory to the part file once there is too much
+
+	private void keep(byte[] buffer, int offset, int count) throws IOException {
+		if(mPart == null && mPdf.size() + count > MAX_IN_MEMORY) {
+			mPart = new FileOutputStream(mPartFile);
+			mPdf.writeTo(mPart);
+			mBytesWritten += mPdf.size();
+			mPdf = null;
+		}
+		if(mPart != null) {
+			mPart.write(buffer, offset, count);
+			mBytesWritten += count;
+		} else {
+			mPdf.write(buffer, offset, count);
+		}
+		mLength += count;
+	}
+
+	// Drops the copy of the PDF, once the image has been extracted
+
+	private void discard() throws IOException {
+		if(mPart != null) {
+			mPart.close();
+			mPart = null;
+			mPartFile.delete();
+		}
+		mPdf = null;
+	}
+
+	// Keeps a copy of everything read, until the image is found
+
+	private class TeeInputStream extends FilterInputStream {
+
+		private final byte[] mByte = new byte[1];
+
+		TeeInputStream(InputStream in) {
+			super(in);
+		}
+
+		@Override
+		public int read() throws IOException {
+			int b = super.read();
+			if(b != -1 && mCopying) {
+				mByte[0] = (byte) b;
+				keep(mByte, 0, 1);
+			}
+			return b;
+		}
+
+		@Override
+		public int read(byte[] buffer, int offset, int count) throws IOException {
+			int len = super.read(buffer, offset, count);
+			if(len > 0 && mCopying) keep(buffer, offset, len);
+			return len;
+		}
+
+		@Override
+		public long skip(long count) throws IOException {
+			byte[] buffer = new byte[(int) Math.min(count, BUFFER_SIZE)];
+			long skipped = 0;
+			while(skipped < count) {
+				int len = read(buffer, 0, (int) Math.min(buffer.length, count - skipped));
+				if(len == -1) break;
+				skipped += len;
+			}
+			return skipped;
+		}
+	}
+}
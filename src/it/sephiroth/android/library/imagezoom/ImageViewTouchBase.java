@@ -15,6 +15,8 @@ import android.util.AttributeSet;
 import android.util.Log;
 import android.widget.ImageView;
 
+import com.michoelchaikin.hebrewbooks.metrics.Tracer;
+
 /**
  * Base View to manage image zoom/scrool/pinch operations
  * 
@@ -600,6 +602,7 @@ public class ImageViewTouchBase extends ImageView implements IDisposable {
 
 			@Override
 			public void run() {
+				long trace = Tracer.begin();
 				long now = System.currentTimeMillis();
 				double currentMs = Math.min( durationMs, now - startTime );
 				double x = mEasing.easeOut( currentMs, 0, dx, durationMs );
@@ -613,6 +616,7 @@ public class ImageViewTouchBase extends ImageView implements IDisposable {
 					RectF centerRect = getCenter( mSuppMatrix, true, true );
 					if ( centerRect.left != 0 || centerRect.top != 0 ) scrollBy( centerRect.left, centerRect.top );
 				}
+				Tracer.end( "scroll frame", trace );
 			}
 		} );
 	}
@@ -636,6 +640,7 @@ public class ImageViewTouchBase extends ImageView implements IDisposable {
 
 			@Override
 			public void run() {
+				long trace = Tracer.begin();
 				long now = System.currentTimeMillis();
 				float currentMs = Math.min( durationMs, now - startTime );
 				float newScale = (float) mEasing.easeInOut( currentMs, 0, deltaScale, durationMs );
@@ -646,6 +651,7 @@ public class ImageViewTouchBase extends ImageView implements IDisposable {
 					onZoomAnimationCompleted( getScale() );
 					center( true, true );
 				}
+				Tracer.end( "zoom frame", trace );
 			}
 		} );
 	}